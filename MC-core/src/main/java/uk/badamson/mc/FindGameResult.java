@@ -20,12 +20,28 @@ package uk.badamson.mc;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import java.util.UUID;
 
+/**
+ * @param version The version of the saved game:
+ *                the number of times the game has been updated since it was added.
+ *                Repositories use it to detect concurrent updates of the game.
+ */
 @SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "DTO")
 public record FindGameResult(
         @Nonnull Game game,
-        @Nonnull UUID scenarioId
+        @Nonnull UUID scenarioId,
+        @Nonnegative long version
 ) {
+
+    /**
+     * <p>
+     * Construct a result for a game that has not been updated since it was added.
+     * </p>
+     */
+    public FindGameResult(@Nonnull final Game game, @Nonnull final UUID scenarioId) {
+        this(game, scenarioId, 0L);
+    }
 }
@@ -0,0 +1,36 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * <p>
+ * The ID, scenario and creation time of a {@linkplain Game game},
+ * without its other attributes.
+ * </p>
+ */
+public record GameScenarioProjection(
+        @Nonnull UUID id,
+        @Nonnull UUID scenarioId,
+        @Nonnull Instant created
+) {
+}
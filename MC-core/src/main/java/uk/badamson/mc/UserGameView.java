@@ -0,0 +1,152 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * <p>
+ * A read-only view of a {@linkplain Game game}, as seen by a given user who is not a game manager.
+ * </p>
+ * <p>
+ * Non game managers may not see the complete list of players of a game,
+ * but may see that they are a player of a game.
+ * So the view exposes the attributes of the game, but, of its {@linkplain Game#getUsers() users},
+ * only the entry (if any) for the viewing user.
+ * </p>
+ * <p>
+ * The view records the state of the game when it is created,
+ * so later changes to the game do not change the view.
+ * It records only the attributes of the game and the entry of the viewing user,
+ * so creating a view does not copy the users of the game.
+ * </p>
+ */
+@Immutable
+public final class UserGameView {
+
+    @Nonnull
+    private final Instant created;
+    @Nonnull
+    private final Scenario scenario;
+    @Nonnull
+    private final UUID scenarioId;
+    private final long version;
+    @Nonnull
+    private final Game.RunState runState;
+    private final boolean recruiting;
+    @Nonnull
+    private final UUID user;
+    @Nullable
+    private final UUID character;
+
+    /**
+     * @param result The game to view, with its scenario ID and version.
+     * @param user   The ID of the user viewing the game.
+     * @throws NullPointerException If the game does not have a {@linkplain Game#getScenario() scenario}.
+     */
+    public UserGameView(@Nonnull final FindGameResult result, @Nonnull final UUID user) {
+        Objects.requireNonNull(result, "result");
+        final var game = result.game();
+        this.created = game.getCreated();
+        this.scenario = Objects.requireNonNull(game.getScenario(), "scenario");
+        this.scenarioId = result.scenarioId();
+        this.version = result.version();
+        this.runState = game.getRunState();
+        this.recruiting = game.isRecruiting();
+        this.user = Objects.requireNonNull(user, "user");
+        this.character = game.getCharacterOfUser(user);
+    }
+
+    @Nonnull
+    public Instant getCreated() {
+        return created;
+    }
+
+    @Nonnull
+    public Scenario getScenario() {
+        return scenario;
+    }
+
+    @Nonnull
+    public UUID getScenarioId() {
+        return scenarioId;
+    }
+
+    /**
+     * @see FindGameResult#version()
+     */
+    @Nonnegative
+    public long getVersion() {
+        return version;
+    }
+
+    @Nonnull
+    public Game.RunState getRunState() {
+        return runState;
+    }
+
+    public boolean isRecruiting() {
+        return recruiting;
+    }
+
+    /**
+     * <p>
+     * The ID of the user viewing the game.
+     * </p>
+     */
+    @Nonnull
+    public UUID getUser() {
+        return user;
+    }
+
+    /**
+     * <p>
+     * The ID of the character that the {@linkplain #getUser() viewing user} plays in the game,
+     * or null if the user is not a player of the game.
+     * </p>
+     */
+    @Nullable
+    public UUID getCharacter() {
+        return character;
+    }
+
+    /**
+     * <p>
+     * The {@linkplain Game#getUsers() users} of the game that the {@linkplain #getUser() viewing user}
+     * may see.
+     * </p>
+     * <ul>
+     *     <li>Either empty, or the single entry that maps the {@linkplain #getCharacter() character}
+     *     of the viewing user to the viewing user.</li>
+     *     <li>Not modifiable.</li>
+     * </ul>
+     */
+    @Nonnull
+    public Map<UUID, UUID> getUsers() {
+        return character == null ? Map.of() : Map.of(character, user);
+    }
+}
@@ -0,0 +1,214 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import uk.badamson.mc.FindGameResult;
+import uk.badamson.mc.Scenario;
+import uk.badamson.mc.User;
+import uk.badamson.mc.UserGameAssociation;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A context through which entities of a {@link MCRepository} may be found without blocking,
+ * and which may be used by several threads.
+ * </p>
+ * <p>
+ * Like an {@linkplain MCRepository.Context ordinary context}, it retains the entities it finds,
+ * so finding an entity again provides the same object;
+ * it also uses the {@linkplain MCRepository#getSharedCache() shared cache}, if the repository has one.
+ * Entities that are not retained or cached are retrieved using the asynchronous backing store operations,
+ * such as {@link MCRepository.Context#findGameUncachedAsync(UUID)}.
+ * Concurrent requests to find one entity share one retrieval.
+ * If a retrieval fails, including because the asynchronous executor rejected it,
+ * the request fails, and a later request begins a new retrieval.
+ * Because several threads may be given the same entity object, they should not modify it.
+ * </p>
+ * <p>
+ * The context may be used only to find entities.
+ * </p>
+ */
+@ThreadSafe
+public final class AsyncContext implements AutoCloseable {
+
+    @Nonnull
+    private final MCRepository.Context context;
+    @Nullable
+    private final SharedCache sharedCache;
+    private final ConcurrentMap<UUID, CompletableFuture<Optional<FindGameResult>>> games
+            = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, CompletableFuture<Optional<User>>> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, CompletableFuture<Optional<UserGameAssociation>>> currentUserGames
+            = new ConcurrentHashMap<>();
+
+    AsyncContext(@Nonnull final MCRepository.Context context) {
+        this.context = Objects.requireNonNull(context, "context");
+        sharedCache = context.getRepository().getSharedCache().orElse(null);
+    }
+
+    /*
+     * The retrieval is begun outside the map operation,
+     * so it does not block other uses of the map, and may itself find entities.
+     */
+    @Nonnull
+    private static <VALUE> CompletableFuture<Optional<VALUE>> find(
+            @Nonnull final ConcurrentMap<UUID, CompletableFuture<Optional<VALUE>>> map,
+            @Nonnull final UUID id,
+            @Nonnull final Function<UUID, CompletableFuture<Optional<VALUE>>> retrieve) {
+        final var result = new CompletableFuture<Optional<VALUE>>();
+        final var existing = map.putIfAbsent(id, result);
+        if (existing != null) {
+            return existing;
+        }
+        CompletableFuture<Optional<VALUE>> retrieval;
+        try {
+            retrieval = retrieve.apply(id);
+        } catch (RuntimeException e) {// for example, RejectedExecutionException
+            retrieval = CompletableFuture.failedFuture(e);
+        }
+        retrieval.whenComplete((value, e) -> {
+            if (e == null) {
+                result.complete(value);
+            } else {
+                map.remove(id, result);// allow a later retry
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                        ? e.getCause() : e);
+            }
+        });
+        return result;
+    }
+
+    @Nonnull
+    private static <VALUE> CompletableFuture<Optional<VALUE>> found(@Nullable final VALUE value) {
+        return CompletableFuture.completedFuture(Optional.ofNullable(value));
+    }
+
+    /**
+     * <p>
+     * The repository that this context uses.
+     * </p>
+     */
+    @Nonnull
+    public MCRepository getRepository() {
+        return context.getRepository();
+    }
+
+    @Nonnull
+    public Optional<Scenario> findScenario(@Nonnull final UUID id) {
+        return context.findScenario(id);
+    }
+
+    @Nonnull
+    public CompletableFuture<Optional<FindGameResult>> findGame(@Nonnull final UUID id) {
+        Objects.requireNonNull(id, "id");
+        return find(games, id, this::retrieveGame);
+    }
+
+    @Nonnull
+    private CompletableFuture<Optional<FindGameResult>> retrieveGame(@Nonnull final UUID id) {
+        if (sharedCache == null) {
+            return context.findGameUncachedAsync(id);
+        }
+        final var cached = sharedCache.getGame(id);
+        if (cached != null || sharedCache.isGameAbsent(id)) {
+            return found(cached);
+        }
+        final long stamp = sharedCache.gameStamp(id);
+        return context.findGameUncachedAsync(id).thenApply(result -> {
+            result.ifPresentOrElse(
+                    game -> sharedCache.putGame(id, game, stamp),
+                    () -> sharedCache.putGameAbsent(id, stamp));
+            return result;
+        });
+    }
+
+    @Nonnull
+    public CompletableFuture<Optional<User>> findUser(@Nonnull final UUID id) {
+        Objects.requireNonNull(id, "id");
+        return find(users, id, this::retrieveUser);
+    }
+
+    @Nonnull
+    private CompletableFuture<Optional<User>> retrieveUser(@Nonnull final UUID id) {
+        if (sharedCache == null) {
+            return context.findUserUncachedAsync(id);
+        }
+        final var cached = sharedCache.getUser(id);
+        if (cached != null || sharedCache.isUserAbsent(id)) {
+            return found(cached);
+        }
+        final long stamp = sharedCache.userStamp(id);
+        return context.findUserUncachedAsync(id).thenApply(result -> {
+            result.ifPresentOrElse(
+                    user -> sharedCache.putUser(id, user, stamp),
+                    () -> sharedCache.putUserAbsent(id, stamp));
+            return result;
+        });
+    }
+
+    @Nonnull
+    public CompletableFuture<Optional<UserGameAssociation>> findCurrentUserGame(@Nonnull final UUID userId) {
+        Objects.requireNonNull(userId, "userId");
+        return find(currentUserGames, userId, this::retrieveCurrentUserGame);
+    }
+
+    @Nonnull
+    private CompletableFuture<Optional<UserGameAssociation>> retrieveCurrentUserGame(@Nonnull final UUID userId) {
+        if (sharedCache == null) {
+            return context.findCurrentUserGameUncachedAsync(userId);
+        }
+        final var cached = sharedCache.getCurrentUserGame(userId);
+        if (cached != null || sharedCache.isCurrentUserGameAbsent(userId)) {
+            return found(cached);
+        }
+        final long stamp = sharedCache.currentUserGameStamp(userId);
+        return context.findCurrentUserGameUncachedAsync(userId).thenApply(result -> {
+            result.ifPresentOrElse(
+                    association -> sharedCache.putCurrentUserGame(userId, association, stamp),
+                    () -> sharedCache.putCurrentUserGameAbsent(userId, stamp));
+            return result;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Retrievals that have begun are not cancelled.
+     * </p>
+     */
+    @Override
+    public void close() {
+        games.clear();
+        users.clear();
+        currentUserGames.clear();
+        context.close();
+    }
+}
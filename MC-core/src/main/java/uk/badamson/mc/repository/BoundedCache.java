@@ -0,0 +1,205 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * <p>
+ * A concurrent map of limited total weight, which evicts its least recently used entries
+ * to remain within that limit.
+ * </p>
+ * <p>
+ * The map is divided into stripes, each with its own lock and its own share of the weight limit,
+ * so threads using different keys rarely contend.
+ * Each stripe also counts invalidations, so a value read from a slow backing store
+ * is not cached if the key was invalidated while the value was being read.
+ * </p>
+ * <p>
+ * The cache can notify a listener of the entries it evicts,
+ * so related caches can discard values that depend on those entries.
+ * The listener is called without holding any lock of the cache,
+ * but is not told of entries that were explicitly invalidated.
+ * </p>
+ */
+@ThreadSafe
+final class BoundedCache<KEY, VALUE> {
+
+    private static final int MAX_STRIPES = 16;
+
+    private final Stripe<KEY, VALUE>[] stripes;
+    private final ToIntFunction<VALUE> weigher;
+    @Nullable
+    private final BiConsumer<KEY, VALUE> evictionListener;
+
+    /**
+     * @param maximumWeight The maximum total weight of the values in the cache.
+     *                      Zero disables caching.
+     * @param weigher       Computes the (positive) weight of a value.
+     */
+    BoundedCache(@Nonnegative final long maximumWeight, @Nonnull final ToIntFunction<VALUE> weigher) {
+        this(maximumWeight, weigher, null);
+    }
+
+    /**
+     * @param maximumWeight    The maximum total weight of the values in the cache.
+     *                         Zero disables caching.
+     * @param weigher          Computes the (positive) weight of a value.
+     * @param evictionListener Told of each entry that is evicted to remain within the weight limit,
+     *                         if not null.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BoundedCache(@Nonnegative final long maximumWeight, @Nonnull final ToIntFunction<VALUE> weigher,
+                 @Nullable final BiConsumer<KEY, VALUE> evictionListener) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("maximumWeight");
+        }
+        this.weigher = Objects.requireNonNull(weigher, "weigher");
+        this.evictionListener = evictionListener;
+        final int nStripes = Math.max(1, Integer.highestOneBit(
+                Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors() * 2)));
+        final long stripeWeight = (maximumWeight + nStripes - 1) / nStripes;
+        stripes = new Stripe[nStripes];
+        for (int s = 0; s < nStripes; ++s) {
+            stripes[s] = new Stripe<>(stripeWeight);
+        }
+    }
+
+    @Nonnull
+    private Stripe<KEY, VALUE> stripe(@Nonnull final Object key) {
+        final int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    @Nullable
+    VALUE get(@Nonnull final KEY key) {
+        return stripe(key).get(key);
+    }
+
+    /**
+     * <p>
+     * A token to pass to {@link #put(Object, Object, long)},
+     * to be obtained before reading a value for the key from the backing store.
+     * </p>
+     */
+    long stamp(@Nonnull final KEY key) {
+        return stripe(key).stamp();
+    }
+
+    /**
+     * <p>
+     * Cache a value, unless the key has (or might have) been invalidated since the {@code stamp} was obtained.
+     * </p>
+     *
+     * @return Whether the value was cached.
+     */
+    boolean put(@Nonnull final KEY key, @Nonnull final VALUE value, final long stamp) {
+        final List<Map.Entry<KEY, VALUE>> evicted = evictionListener == null ? null : new ArrayList<>(1);
+        final boolean cached = stripe(key).put(key, value, weigher.applyAsInt(value), stamp, evicted);
+        if (evicted != null) {
+            evicted.forEach(entry -> evictionListener.accept(entry.getKey(), entry.getValue()));
+        }
+        return cached;
+    }
+
+    void invalidate(@Nonnull final KEY key) {
+        stripe(key).invalidate(key);
+    }
+
+    void invalidateAll() {
+        for (final var stripe : stripes) {
+            stripe.invalidateAll();
+        }
+    }
+
+    private static final class Stripe<KEY, VALUE> {
+
+        private final long maximumWeight;
+        @GuardedBy("this")
+        private final LinkedHashMap<KEY, Weighted<VALUE>> map = new LinkedHashMap<>(16, 0.75f, true);
+        @GuardedBy("this")
+        private long weight;
+        @GuardedBy("this")
+        private long invalidations;
+
+        Stripe(final long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+        }
+
+        synchronized long stamp() {
+            return invalidations;
+        }
+
+        @Nullable
+        synchronized VALUE get(@Nonnull final KEY key) {
+            final var entry = map.get(key);
+            return entry == null ? null : entry.value;
+        }
+
+        synchronized boolean put(@Nonnull final KEY key, @Nonnull final VALUE value, final int valueWeight,
+                                 final long stamp, @Nullable final List<Map.Entry<KEY, VALUE>> evicted) {
+            if (stamp != invalidations || maximumWeight < valueWeight) {
+                return false;
+            }
+            final var previous = map.put(key, new Weighted<>(value, valueWeight));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += valueWeight;
+            final var iterator = map.entrySet().iterator();
+            while (maximumWeight < weight) {
+                final Map.Entry<KEY, Weighted<VALUE>> eldest = iterator.next();
+                weight -= eldest.getValue().weight;
+                iterator.remove();
+                if (evicted != null) {
+                    evicted.add(Map.entry(eldest.getKey(), eldest.getValue().value));
+                }
+            }
+            return true;
+        }
+
+        synchronized void invalidate(@Nonnull final KEY key) {
+            ++invalidations;
+            final var previous = map.remove(key);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+        }
+
+        synchronized void invalidateAll() {
+            ++invalidations;
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    private record Weighted<VALUE>(@Nonnull VALUE value, int weight) {
+    }
+}
@@ -0,0 +1,94 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import uk.badamson.mc.Game;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * <p>
+ * A change to the saved entities of a {@link MCRepository},
+ * as {@linkplain MCRepository#getChangeEvents() published} by the repository.
+ * </p>
+ * <ul>
+ *     <li>The {@linkplain #sequence() sequence number} of each published event is one more than
+ *     that of the previously published event, so a subscriber can detect that it has missed events.</li>
+ *     <li>The {@linkplain #id() ID} is the ID of the changed game,
+ *     or of the added user for a {@link Type#USER_ADDED} event.</li>
+ *     <li>The {@linkplain #runState() run state} is the new run state of the game for
+ *     {@link Type#GAME_CREATED} and {@link Type#GAME_RUN_STATE_CHANGED} events, and null otherwise.</li>
+ *     <li>The {@linkplain #character() character} and {@linkplain #user() user} are the character and user
+ *     that joined the game for a {@link Type#USER_JOINED_GAME} event, and null otherwise.</li>
+ * </ul>
+ */
+@Immutable
+public record ChangeEvent(
+        long sequence,
+        @Nonnull Type type,
+        @Nonnull UUID id,
+        @Nullable Game.RunState runState,
+        @Nullable UUID character,
+        @Nullable UUID user
+) {
+
+    public ChangeEvent {
+        Objects.requireNonNull(type, "type");
+        Objects.requireNonNull(id, "id");
+    }
+
+    @Nonnull
+    static ChangeEvent gameCreated(@Nonnull UUID gameId, @Nonnull Game.RunState runState) {
+        return new ChangeEvent(0L, Type.GAME_CREATED, gameId, runState, null, null);
+    }
+
+    @Nonnull
+    static ChangeEvent gameRunStateChanged(@Nonnull UUID gameId, @Nonnull Game.RunState runState) {
+        return new ChangeEvent(0L, Type.GAME_RUN_STATE_CHANGED, gameId, runState, null, null);
+    }
+
+    @Nonnull
+    static ChangeEvent gameRecruitmentEnded(@Nonnull UUID gameId) {
+        return new ChangeEvent(0L, Type.GAME_RECRUITMENT_ENDED, gameId, null, null, null);
+    }
+
+    @Nonnull
+    static ChangeEvent userJoinedGame(@Nonnull UUID gameId, @Nonnull UUID character, @Nonnull UUID user) {
+        return new ChangeEvent(0L, Type.USER_JOINED_GAME, gameId, null, character, user);
+    }
+
+    @Nonnull
+    static ChangeEvent userAdded(@Nonnull UUID userId) {
+        return new ChangeEvent(0L, Type.USER_ADDED, userId, null, null, null);
+    }
+
+    @Nonnull
+    ChangeEvent withSequence(long sequence) {
+        return new ChangeEvent(sequence, type, id, runState, character, user);
+    }
+
+    public enum Type {
+        GAME_CREATED, GAME_RUN_STATE_CHANGED, GAME_RECRUITMENT_ENDED, USER_JOINED_GAME, USER_ADDED
+    }
+}
@@ -0,0 +1,96 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * <p>
+ * Publishes the {@linkplain ChangeEvent change events} of a {@link MCRepository}
+ * to any number of subscribers.
+ * </p>
+ * <p>
+ * Each subscriber has its own bounded buffer of events, and receives events only as it requests them.
+ * Publishing never blocks: if the buffer of a subscriber is full, that subscriber does not receive the event,
+ * and can detect the omission from the gap in the {@linkplain ChangeEvent#sequence() sequence numbers}.
+ * Other subscribers are unaffected.
+ * </p>
+ * <p>
+ * Events are delivered through the default asynchronous executor of {@link SubmissionPublisher}
+ * (usually the {@linkplain java.util.concurrent.ForkJoinPool#commonPool() common pool}),
+ * which never delivers events through the publishing thread.
+ * That executor is not the executor of the asynchronous operations of the repository,
+ * so slow subscribers can not delay those operations.
+ * </p>
+ */
+@ThreadSafe
+final class ChangeEventPublisher implements Flow.Publisher<ChangeEvent> {
+
+    private final SubmissionPublisher<ChangeEvent> publisher;
+    @GuardedBy("this")
+    private long sequence = 0L;
+
+    /**
+     * <p>
+     * Construct a publisher that gives each subscriber a buffer of {@linkplain Flow#defaultBufferSize() default size}.
+     * </p>
+     */
+    ChangeEventPublisher() {
+        publisher = new SubmissionPublisher<>();
+    }
+
+    boolean hasSubscribers() {
+        return publisher.hasSubscribers();
+    }
+
+    /**
+     * <p>
+     * Publish events, giving them consecutive sequence numbers.
+     * </p>
+     */
+    synchronized void publish(@Nonnull final List<ChangeEvent> events) {
+        if (publisher.isClosed()) {
+            return;
+        }
+        // Holding the lock while offering ensures subscribers receive events in sequence order.
+        for (final var event : events) {
+            publisher.offer(event.withSequence(++sequence), (subscriber, dropped) -> false);
+        }
+    }
+
+    /**
+     * <p>
+     * Complete the stream of events: subsequent {@linkplain #publish(List) publication} has no effect.
+     * </p>
+     */
+    synchronized void close() {
+        publisher.close();
+    }
+
+    @Override
+    public void subscribe(@Nonnull final Flow.Subscriber<? super ChangeEvent> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+}
@@ -0,0 +1,70 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import uk.badamson.mc.Game;
+import uk.badamson.mc.GameSnapshot;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+/**
+ * <p>
+ * The state of a game when a context retrieved or last saved it,
+ * against which the context finds the changes to save.
+ * </p>
+ */
+record GameBaseline(@Nonnull UUID scenarioId, @Nonnull GameSnapshot snapshot) {
+
+    GameBaseline(@Nonnull UUID scenarioId, @Nonnull Game game) {
+        this(scenarioId, game.toSnapshot());
+    }
+
+    /**
+     * <p>
+     * Whether the {@linkplain #changesTo(Game) changes} from this baseline to a given game
+     * are all the differences between them.
+     * </p>
+     */
+    boolean canChangeTo(@Nullable UUID scenarioId, @Nonnull Game game) {
+        return this.scenarioId.equals(scenarioId) && game.toSnapshot().hasAllCharactersOf(snapshot);
+    }
+
+    /**
+     * <p>
+     * The changes from this baseline to a given game,
+     * ignoring any change of scenario or removal of users.
+     * </p>
+     * <p>
+     * The game shares the structure of its users map with the baseline, except where it has changed,
+     * so this does not scan the users.
+     * </p>
+     */
+    @Nonnull
+    GameDelta changesTo(@Nonnull Game game) {
+        final var gameRunState = game.getRunState();
+        final boolean gameRecruiting = game.isRecruiting();
+        return new GameDelta(
+                gameRunState == snapshot.getRunState() ? null : gameRunState,
+                gameRecruiting == snapshot.isRecruiting() ? null : gameRecruiting,
+                game.toSnapshot().getUsersNotIn(snapshot));
+    }
+}
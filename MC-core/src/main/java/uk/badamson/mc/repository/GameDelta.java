@@ -0,0 +1,58 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import uk.badamson.mc.FindGameResult;
+import uk.badamson.mc.Game;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * The changes made to a {@link Game} since a {@linkplain MCRepository.Context context} retrieved or saved it,
+ * so a backing store can save only the changed fields, rather than the whole game.
+ * </p>
+ * <ul>
+ *     <li>A null {@linkplain #runState() run state} indicates that the run state did not change.</li>
+ *     <li>A null {@linkplain #recruiting() recruiting} flag indicates that the flag did not change.</li>
+ *     <li>The {@linkplain #addedUsers() added users} map holds the entries of the
+ *     {@linkplain Game#getUsers() users map} of the game that are new or have a different user.
+ *     It is not modifiable.</li>
+ *     <li>A delta never removes entries of the users map, and never changes the scenario of the game:
+ *     contexts save such changes as whole games.</li>
+ *     <li>Applying a delta to the saved game increments its {@linkplain FindGameResult#version() version},
+ *     even if the delta {@linkplain #isEmpty() is empty}.</li>
+ * </ul>
+ */
+@SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "DTO")
+public record GameDelta(
+        @Nullable Game.RunState runState,
+        @Nullable Boolean recruiting,
+        @Nonnull Map<UUID, UUID> addedUsers
+) {
+
+    public boolean isEmpty() {
+        return runState == null && recruiting == null && addedUsers.isEmpty();
+    }
+}
@@ -0,0 +1,225 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * {@linkplain RepositoryMetrics Repository metrics} that accumulate counts and histograms
+ * of the measurements, for later inspection.
+ * </p>
+ */
+@ThreadSafe
+public final class HistogramRepositoryMetrics implements RepositoryMetrics {
+
+    private final Map<EntityType, LongAdder> hits = createCounters();
+    private final Map<EntityType, LongAdder> misses = createCounters();
+    private final Map<EntityType, LongAdder> fullScans = createCounters();
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Histogram writesPerContext = new Histogram();
+
+    public HistogramRepositoryMetrics() {
+        for (final var operation : Operation.values()) {
+            latencies.put(operation, new Histogram());
+        }
+    }
+
+    @Nonnull
+    private static Map<EntityType, LongAdder> createCounters() {
+        final Map<EntityType, LongAdder> counters = new EnumMap<>(EntityType.class);
+        for (final var type : EntityType.values()) {
+            counters.put(type, new LongAdder());
+        }
+        return counters;
+    }
+
+    @Override
+    public void hit(@Nonnull final EntityType type) {
+        hits.get(type).increment();
+    }
+
+    @Override
+    public void miss(@Nonnull final EntityType type) {
+        misses.get(type).increment();
+    }
+
+    @Override
+    public void fullScan(@Nonnull final EntityType type) {
+        fullScans.get(type).increment();
+    }
+
+    @Override
+    public void call(@Nonnull final Operation operation, @Nonnegative final long nanos) {
+        latencies.get(operation).record(nanos);
+    }
+
+    @Override
+    public void contextClosed(@Nonnegative final int writes) {
+        writesPerContext.record(writes);
+    }
+
+    @Nonnegative
+    public long getHits(@Nonnull final EntityType type) {
+        return hits.get(Objects.requireNonNull(type, "type")).sum();
+    }
+
+    @Nonnegative
+    public long getMisses(@Nonnull final EntityType type) {
+        return misses.get(Objects.requireNonNull(type, "type")).sum();
+    }
+
+    /**
+     * <p>
+     * The fraction of the attempts to find entities of a type that did not use the backing store.
+     * </p>
+     *
+     * @return the ratio, or {@link Double#NaN} if there have been no attempts.
+     */
+    public double getHitRatio(@Nonnull final EntityType type) {
+        final long hitCount = getHits(type);
+        final long total = hitCount + getMisses(type);
+        return total == 0 ? Double.NaN : (double) hitCount / total;
+    }
+
+    @Nonnegative
+    public long getFullScans(@Nonnull final EntityType type) {
+        return fullScans.get(Objects.requireNonNull(type, "type")).sum();
+    }
+
+    /**
+     * <p>
+     * The distribution of the times, in nanoseconds, that an operation of the backing store took.
+     * </p>
+     */
+    @Nonnull
+    public Histogram getLatencies(@Nonnull final Operation operation) {
+        return latencies.get(Objects.requireNonNull(operation, "operation"));
+    }
+
+    /**
+     * <p>
+     * The distribution of the number of save operations performed through each context.
+     * </p>
+     */
+    @Nonnull
+    public Histogram getWritesPerContext() {
+        return writesPerContext;
+    }
+
+    /**
+     * <p>
+     * A distribution of non-negative values, recorded in buckets that grow in powers of two,
+     * so it has a constant size and constant relative precision.
+     * </p>
+     * <p>
+     * Bucket 0 holds the value 0, and bucket <var>n</var> holds values in the range
+     * [2<sup><var>n</var>-1</sup>, 2<sup><var>n</var></sup>).
+     * </p>
+     */
+    @ThreadSafe
+    public static final class Histogram {
+
+        public static final int BUCKETS = Long.SIZE;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram() {
+        }
+
+        static int bucket(@Nonnegative final long value) {
+            return value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value);
+        }
+
+        void record(@Nonnegative final long value) {
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        @Nonnegative
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Nonnegative
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * <p>
+         * The number of recorded values in each bucket.
+         * </p>
+         *
+         * @return a new array of {@link #BUCKETS} elements.
+         */
+        @Nonnull
+        public long[] getBucketCounts() {
+            final long[] result = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; ++b) {
+                result[b] = counts.get(b);
+            }
+            return result;
+        }
+
+        /**
+         * <p>
+         * An upper bound of a given quantile of the recorded values.
+         * </p>
+         * <p>
+         * That is, the largest value that the bucket that holds the quantile can hold.
+         * </p>
+         *
+         * @param quantile The quantile, such as 0.99 for the 99th percentile.
+         * @return the upper bound, or 0 if no values have been recorded.
+         * @throws IllegalArgumentException If {@code quantile} is not in the range [0, 1].
+         */
+        @Nonnegative
+        public long getQuantileUpperBound(final double quantile) {
+            if (!(0.0 <= quantile && quantile <= 1.0)) {
+                throw new IllegalArgumentException("quantile");
+            }
+            final var bucketCounts = getBucketCounts();
+            long total = 0;
+            for (final long c : bucketCounts) {
+                total += c;
+            }
+            final long rank = (long) Math.ceil(quantile * total);
+            long cumulative = 0;
+            for (int b = 0; b < BUCKETS; ++b) {
+                cumulative += bucketCounts[b];
+                if (0 < cumulative && rank <= cumulative) {
+                    return b == 0 ? 0L : (1L << b) - 1;
+                }
+            }
+            return 0L;
+        }
+    }
+}
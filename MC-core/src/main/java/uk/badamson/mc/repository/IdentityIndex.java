@@ -0,0 +1,70 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.IdentityHashMap;
+import java.util.UUID;
+
+/**
+ * <p>
+ * A map from entity objects to their IDs, using reference equality,
+ * which allocates its table only when first needed,
+ * and which can be disabled so it records nothing.
+ * </p>
+ */
+final class IdentityIndex<ENTITY> {
+    private final boolean enabled;
+    @Nullable
+    private IdentityHashMap<ENTITY, UUID> map;
+
+    IdentityIndex(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean containsKey(@Nonnull ENTITY entity) {
+        return map != null && map.containsKey(entity);
+    }
+
+    @Nullable
+    UUID get(@Nonnull ENTITY entity) {
+        return map == null ? null : map.get(entity);
+    }
+
+    void put(@Nonnull ENTITY entity, @Nonnull UUID id) {
+        if (enabled) {
+            if (map == null) {
+                map = new IdentityHashMap<>();
+            }
+            map.put(entity, id);
+        }
+    }
+
+    void remove(@Nonnull ENTITY entity) {
+        if (map != null) {
+            map.remove(entity);
+        }
+    }
+
+    void clear() {
+        map = null;
+    }
+}
@@ -0,0 +1,602 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import uk.badamson.mc.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>
+ * An {@link MCRepository} that holds all its data in memory.
+ * </p>
+ * <p>
+ * This is suitable for single-node deployments and for load testing.
+ * It is safe for heavy concurrent use:
+ * each entity is held in a concurrent map, and is saved and retrieved independently of other entities,
+ * without any global lock.
+ * The repository holds an immutable {@linkplain GameSnapshot snapshot} of each game,
+ * replacing the snapshot when the game is saved.
+ * Neither retrieving nor saving a game copies its users:
+ * each reader gets its own {@link Game} object, which shares the persistent users map of the snapshot,
+ * and adding users to the game, or saving it, derives new maps that share most of the structure of the old map.
+ * It maintains indexes of games by scenario and by creation time, and of users by username,
+ * so it can answer the index and page queries of {@link MCRepository.Context} without scanning all entities.
+ * </p>
+ */
+@ThreadSafe
+public class InMemoryMCRepository extends MCRepository {
+
+    private static final Comparator<PageToken> CREATED_ORDER = Comparator
+            .comparing(PageToken::created)
+            .thenComparing(PageToken::id);
+
+    private final ConcurrentNavigableMap<UUID, StoredGame> games = new ConcurrentSkipListMap<>();
+    private final NavigableSet<PageToken> gamesByCreated = new ConcurrentSkipListSet<>(CREATED_ORDER);
+    private final Map<UUID, Set<UUID>> gamesByScenario = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<UUID, User> users = new ConcurrentSkipListMap<>();
+    private final Map<String, UUID> usernameToUserId = new ConcurrentHashMap<>();
+    private final Map<UUID, UserGameAssociation> currentUserGames = new ConcurrentHashMap<>();
+
+    public InMemoryMCRepository() {
+        this(null);
+    }
+
+    /**
+     * @param sharedCache The cache that all the contexts of this repository should share,
+     *                    or null if contexts should not share a cache.
+     */
+    public InMemoryMCRepository(@Nullable final SharedCache sharedCache) {
+        super(sharedCache);
+    }
+
+    /**
+     * @param scenarioCatalogue The scenarios that games of this repository may use.
+     * @param sharedCache       The cache that all the contexts of this repository should share,
+     *                          or null if contexts should not share a cache.
+     */
+    public InMemoryMCRepository(@Nonnull final ScenarioCatalogue scenarioCatalogue,
+                                @Nullable final SharedCache sharedCache) {
+        super(scenarioCatalogue, sharedCache, true);
+    }
+
+    @Nonnull
+    private static User copy(@Nonnull final User user) {
+        return new User(user.getId(), user);
+    }
+
+    @Nonnull
+    @Override
+    public Context openContext() {
+        return new InMemoryContext(ContextMode.WRITE_THROUGH);
+    }
+
+    @Nonnull
+    @Override
+    public Context openReadOnlyContext() {
+        return new InMemoryContext(ContextMode.READ_ONLY);
+    }
+
+    /**
+     * <p>
+     * Save a game, replacing any previously saved version of the game.
+     * </p>
+     * <p>
+     * Contexts of this repository use this method, directly or through
+     * {@link #storeNewGame(UUID, UUID, Game)}, {@link #storeNextGameVersion(UUID, UUID, Game)}
+     * or {@link #compareAndStoreGame(UUID, UUID, Game, long)},
+     * for all their game save operations,
+     * so subclasses can override it to record, or otherwise act on, the save.
+     * </p>
+     *
+     * @param version The {@linkplain FindGameResult#version() version} of the saved game.
+     */
+    protected void storeGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId, @Nonnull final Game game,
+                             final long version) {
+        Objects.requireNonNull(id, "id");
+        Objects.requireNonNull(scenarioId, "scenarioId");
+        final var stored = new StoredGame(scenarioId, game, version);
+        index(id, games.put(id, stored), stored);
+    }
+
+    /**
+     * <p>
+     * Save a snapshot of a game, replacing any previously saved version of the game,
+     * without going through {@link #storeGame(UUID, UUID, Game, long)}.
+     * </p>
+     * <p>
+     * For subclasses that recover saves that they recorded earlier.
+     * </p>
+     */
+    protected final void restoreGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                     @Nonnull final GameSnapshot snapshot, final long version) {
+        Objects.requireNonNull(id, "id");
+        Objects.requireNonNull(scenarioId, "scenarioId");
+        Objects.requireNonNull(snapshot, "snapshot");
+        final var stored = new StoredGame(scenarioId, snapshot, version);
+        index(id, games.put(id, stored), stored);
+    }
+
+    /**
+     * <p>
+     * Save a new game, with the initial {@linkplain FindGameResult#version() version}.
+     * </p>
+     * <p>
+     * The check and save are atomic, but do not lock out saves of other games.
+     * </p>
+     *
+     * @throws IllegalStateException If there is already a saved game with the given ID.
+     */
+    protected void storeNewGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId, @Nonnull final Game game) {
+        Objects.requireNonNull(id, "id");
+        Objects.requireNonNull(scenarioId, "scenarioId");
+        final var stored = new StoredGame(scenarioId, game, 0L);
+        if (games.putIfAbsent(id, stored) != null) {
+            throw new IllegalStateException("Game already saved " + id);
+        }
+        index(id, null, stored);
+    }
+
+    /**
+     * <p>
+     * Save a game, replacing any previously saved version of the game,
+     * and giving it the {@linkplain FindGameResult#version() version} after that of the replaced game.
+     * </p>
+     * <p>
+     * The save is atomic, so concurrent saves of the game are given distinct versions,
+     * but does not lock out saves of other games.
+     * </p>
+     */
+    protected void storeNextGameVersion(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                        @Nonnull final Game game) {
+        Objects.requireNonNull(id, "id");
+        Objects.requireNonNull(scenarioId, "scenarioId");
+        final var snapshot = game.toSnapshot();
+        StoredGame previous;
+        StoredGame stored;
+        do {
+            previous = games.get(id);
+            stored = new StoredGame(scenarioId, snapshot, previous == null ? 0L : previous.version + 1);
+        } while (previous == null ? games.putIfAbsent(id, stored) != null : !games.replace(id, previous, stored));
+        index(id, previous, stored);
+    }
+
+    /**
+     * <p>
+     * Update a saved game, provided that its {@linkplain FindGameResult#version() version}
+     * is a given version, incrementing the version.
+     * </p>
+     * <p>
+     * The check and update are atomic, but do not lock out updates of other games.
+     * </p>
+     *
+     * @throws VersionConflictException If the game is not saved, or its version is not the {@code expectedVersion}.
+     */
+    protected void compareAndStoreGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                       @Nonnull final Game game, final long expectedVersion)
+            throws VersionConflictException {
+        Objects.requireNonNull(scenarioId, "scenarioId");
+        final var stored = new StoredGame(scenarioId, game, expectedVersion + 1);
+        StoredGame previous;
+        do {
+            previous = games.get(id);
+            if (previous == null || previous.version != expectedVersion) {
+                throw new VersionConflictException(id, expectedVersion);
+            }
+        } while (!games.replace(id, previous, stored));
+        index(id, previous, stored);
+    }
+
+    /**
+     * <p>
+     * Apply changes to a saved game, giving it a new {@linkplain FindGameResult#version() version}.
+     * </p>
+     * <p>
+     * This is the unconditional counterpart of {@link #compareAndStoreGameDelta(UUID, GameDelta, long)},
+     * for subclasses that check the version themselves, or that replay previously recorded changes.
+     * </p>
+     *
+     * @throws IllegalStateException If there is no saved game with the given ID.
+     */
+    protected void storeGameDelta(@Nonnull final UUID id, @Nonnull final GameDelta delta, final long version) {
+        Objects.requireNonNull(delta, "delta");
+        final var stored = games.computeIfPresent(id, (k, previous) -> previous.apply(delta, version));
+        if (stored == null) {
+            throw new IllegalStateException("No saved game " + id);
+        }
+    }
+
+    /**
+     * <p>
+     * Apply changes to a saved game, provided that its {@linkplain FindGameResult#version() version}
+     * is a given version, incrementing the version.
+     * </p>
+     * <p>
+     * The check and update are atomic, but do not lock out updates of other games.
+     * Unlike {@link #compareAndStoreGame(UUID, UUID, Game, long)},
+     * this derives the new snapshot from the saved snapshot, rather than from a game.
+     * </p>
+     *
+     * @throws VersionConflictException If the game is not saved, or its version is not the {@code expectedVersion}.
+     */
+    protected void compareAndStoreGameDelta(@Nonnull final UUID id, @Nonnull final GameDelta delta,
+                                            final long expectedVersion) throws VersionConflictException {
+        Objects.requireNonNull(delta, "delta");
+        StoredGame previous;
+        do {
+            previous = games.get(id);
+            if (previous == null || previous.version != expectedVersion) {
+                throw new VersionConflictException(id, expectedVersion);
+            }
+        } while (!games.replace(id, previous, previous.apply(delta, expectedVersion + 1)));
+        // A delta does not change the creation time or scenario, so the indexes remain correct.
+    }
+
+    /**
+     * <p>
+     * The {@linkplain FindGameResult#version() version} of a saved game,
+     * or empty if there is no saved game with the given ID.
+     * </p>
+     */
+    @Nonnull
+    protected final OptionalLong findGameVersion(@Nonnull final UUID id) {
+        final var stored = games.get(id);
+        return stored == null ? OptionalLong.empty() : OptionalLong.of(stored.version);
+    }
+
+    private void index(@Nonnull final UUID id, @Nullable final StoredGame previous, @Nonnull final StoredGame stored) {
+        if (previous == null || !previous.created().equals(stored.created())) {
+            gamesByCreated.add(new PageToken(id, stored.created()));
+        }
+        if (previous == null || !previous.scenarioId.equals(stored.scenarioId)) {
+            gamesByScenario.computeIfAbsent(stored.scenarioId, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+        if (previous != null) {
+            if (!previous.created().equals(stored.created())) {
+                gamesByCreated.remove(new PageToken(id, previous.created()));
+            }
+            if (!previous.scenarioId.equals(stored.scenarioId)) {
+                gamesByScenario.getOrDefault(previous.scenarioId, Set.of()).remove(id);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Save a user, replacing any previously saved version of the user.
+     * </p>
+     * <p>
+     * Contexts of this repository use this method for all their user save operations,
+     * so subclasses can override it to record, or otherwise act on, the save.
+     * </p>
+     */
+    protected void storeUser(@Nonnull final UUID id, @Nonnull final User user) {
+        Objects.requireNonNull(id, "id");
+        final var previous = users.put(id, copy(user));
+        usernameToUserId.put(user.getUsername(), id);
+        if (previous != null && !previous.getUsername().equals(user.getUsername())) {
+            usernameToUserId.remove(previous.getUsername(), id);
+        }
+    }
+
+    /**
+     * <p>
+     * Save the current-game association of a user, replacing any previously saved association of the user.
+     * </p>
+     * <p>
+     * Contexts of this repository use this method for all their association save operations,
+     * so subclasses can override it to record, or otherwise act on, the save.
+     * </p>
+     */
+    protected void storeCurrentUserGame(@Nonnull final UUID userId, @Nonnull final UserGameAssociation association) {
+        Objects.requireNonNull(userId, "userId");
+        Objects.requireNonNull(association, "association");
+        currentUserGames.put(userId, association);
+    }
+
+    /**
+     * <p>
+     * Perform an action for each saved game.
+     * </p>
+     * <p>
+     * Each game passed to the action is a new object, which the action may retain.
+     * Games saved while this method is running might or might not be included.
+     * </p>
+     */
+    protected final void forEachGame(@Nonnull final BiConsumer<UUID, FindGameResult> action) {
+        Objects.requireNonNull(action, "action");
+        games.forEach((id, stored) -> action.accept(id, stored.toFindGameResult()));
+    }
+
+    /**
+     * <p>
+     * Perform an action for each saved user.
+     * </p>
+     * <p>
+     * Each user passed to the action is a new object, which the action may retain.
+     * Users saved while this method is running might or might not be included.
+     * </p>
+     */
+    protected final void forEachUser(@Nonnull final BiConsumer<UUID, User> action) {
+        Objects.requireNonNull(action, "action");
+        users.forEach((id, user) -> action.accept(id, copy(user)));
+    }
+
+    /**
+     * <p>
+     * Perform an action for each saved current-game association.
+     * </p>
+     */
+    protected final void forEachCurrentUserGame(@Nonnull final BiConsumer<UUID, UserGameAssociation> action) {
+        Objects.requireNonNull(action, "action");
+        currentUserGames.forEach(action);
+    }
+
+    /**
+     * <p>
+     * An immutable snapshot of a saved game.
+     * </p>
+     * <p>
+     * Retrieving the game does not copy its users map,
+     * because the {@linkplain Game#Game(GameSnapshot) retrieved game} shares the map of the snapshot.
+     * </p>
+     */
+    @Immutable
+    private static final class StoredGame {
+        final UUID scenarioId;
+        final GameSnapshot snapshot;
+        final long version;
+
+        StoredGame(@Nonnull final UUID scenarioId, @Nonnull final Game game, final long version) {
+            this(scenarioId, game.toSnapshot(), version);
+        }
+
+        private StoredGame(@Nonnull final UUID scenarioId, @Nonnull final GameSnapshot snapshot, final long version) {
+            this.scenarioId = scenarioId;
+            this.snapshot = snapshot;
+            this.version = version;
+        }
+
+        @Nonnull
+        Instant created() {
+            return snapshot.getCreated();
+        }
+
+        @Nonnull
+        StoredGame apply(@Nonnull final GameDelta delta, final long version) {
+            var changed = snapshot.withUsers(delta.addedUsers());
+            if (delta.runState() != null) {
+                changed = changed.withRunState(delta.runState());
+            }
+            if (delta.recruiting() != null) {
+                changed = changed.withRecruiting(delta.recruiting());
+            }
+            return new StoredGame(scenarioId, changed, version);
+        }
+
+        @Nonnull
+        FindGameResult toFindGameResult() {
+            return new FindGameResult(new Game(snapshot), scenarioId, version);
+        }
+    }
+
+    private final class InMemoryContext extends Context {
+
+        InMemoryContext(@Nonnull final ContextMode mode) {
+            super(mode);
+        }
+
+        @Override
+        protected void addGameUncached(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                       @Nonnull final Game game) {
+            storeNewGame(id, scenarioId, game);
+        }
+
+        @Override
+        protected void updateGameUncached(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                          @Nonnull final Game game) {
+            storeNextGameVersion(id, scenarioId, game);
+        }
+
+        @Override
+        protected void updateGameUncached(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                          @Nonnull final Game game, final long expectedVersion)
+                throws VersionConflictException {
+            compareAndStoreGame(id, scenarioId, game, expectedVersion);
+        }
+
+        @Override
+        protected void updateGameUncached(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                          @Nonnull final Game game, @Nonnull final GameDelta delta,
+                                          final long expectedVersion) throws VersionConflictException {
+            compareAndStoreGameDelta(id, delta, expectedVersion);
+        }
+
+        @Nonnull
+        @Override
+        protected Optional<FindGameResult> findGameUncached(@Nonnull final UUID id) {
+            Objects.requireNonNull(id, "id");
+            final var stored = games.get(id);
+            return stored == null ? Optional.empty() : Optional.of(stored.toFindGameResult());
+        }
+
+        @Nonnull
+        @Override
+        protected Iterable<Map.Entry<UUID, FindGameResult>> findAllGamesUncached() {
+            final List<Map.Entry<UUID, FindGameResult>> result = new ArrayList<>();
+            games.forEach((id, stored) -> result.add(Map.entry(id, stored.toFindGameResult())));
+            return result;
+        }
+
+        @Nonnull
+        @Override
+        protected Iterable<UUID> findAllGameIdsUncached() {
+            return List.copyOf(games.keySet());
+        }
+
+        @Nonnull
+        @Override
+        protected Iterable<GameScenarioProjection> findAllGameScenariosUncached() {
+            final List<GameScenarioProjection> result = new ArrayList<>();
+            games.forEach((id, stored) -> result.add(new GameScenarioProjection(id, stored.scenarioId, stored.created())));
+            return result;
+        }
+
+        @Nonnull
+        @Override
+        protected Iterable<GameStateProjection> findAllGameStatesUncached() {
+            final List<GameStateProjection> result = new ArrayList<>();
+            games.forEach((id, stored) -> result.add(
+                    new GameStateProjection(id, stored.snapshot.getRunState(), stored.snapshot.isRecruiting())));
+            return result;
+        }
+
+        @Nonnull
+        @Override
+        protected Iterable<Map.Entry<UUID, Instant>> findGameIdsOfScenarioUncached(@Nonnull final UUID scenarioId) {
+            final List<Map.Entry<UUID, Instant>> result = new ArrayList<>();
+            for (var id : gamesByScenario.getOrDefault(scenarioId, Set.of())) {
+                final var stored = games.get(id);
+                if (stored != null && scenarioId.equals(stored.scenarioId)) {
+                    result.add(Map.entry(id, stored.created()));
+                }
+            }
+            return result;
+        }
+
+        @Nonnull
+        @Override
+        protected List<Map.Entry<UUID, FindGameResult>> findGamesPageUncached(
+                @Nonnull final PageOrder order, @Nullable final PageToken after, final int limit) {
+            final List<Map.Entry<UUID, FindGameResult>> result = new ArrayList<>(Math.min(limit, 1024));
+            switch (order) {
+                case ID -> {
+                    final var tail = after == null ? games : games.tailMap(after.id(), false);
+                    for (var entry : tail.entrySet()) {
+                        if (limit <= result.size()) {
+                            break;
+                        }
+                        result.add(Map.entry(entry.getKey(), entry.getValue().toFindGameResult()));
+                    }
+                }
+                case CREATED -> {
+                    if (after != null && after.created() == null) {
+                        throw new IllegalArgumentException("token does not have a creation time");
+                    }
+                    final var tail = after == null ? gamesByCreated : gamesByCreated.tailSet(after, false);
+                    for (var key : tail) {
+                        if (limit <= result.size()) {
+                            break;
+                        }
+                        final var stored = games.get(key.id());
+                        if (stored != null && stored.created().equals(key.created())) {
+                            result.add(Map.entry(key.id(), stored.toFindGameResult()));
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        protected void addCurrentUserGameUncached(@Nonnull final UUID id, @Nonnull final UserGameAssociation entry) {
+            storeCurrentUserGame(id, entry);
+        }
+
+        @Override
+        protected void updateCurrentUserGameUncached(@Nonnull final UUID id,
+                                                     @Nonnull final UserGameAssociation entry) {
+            storeCurrentUserGame(id, entry);
+        }
+
+        @Nonnull
+        @Override
+        protected Optional<UserGameAssociation> findCurrentUserGameUncached(@Nonnull final UUID userId) {
+            Objects.requireNonNull(userId, "userId");
+            return Optional.ofNullable(currentUserGames.get(userId));
+        }
+
+        @Nonnull
+        @Override
+        protected Optional<UUID> findUserIdForUsernameUncached(@Nonnull final String username) {
+            Objects.requireNonNull(username, "username");
+            return Optional.ofNullable(usernameToUserId.get(username));
+        }
+
+        @Nonnull
+        @Override
+        protected Optional<User> findUserForUsernameUncached(@Nonnull final String username) {
+            Objects.requireNonNull(username, "username");
+            final var id = usernameToUserId.get(username);
+            final var user = id == null ? null : users.get(id);
+            return user == null ? Optional.empty() : Optional.of(copy(user));
+        }
+
+        @Nonnull
+        @Override
+        protected Optional<User> findUserUncached(@Nonnull final UUID id) {
+            Objects.requireNonNull(id, "id");
+            final var user = users.get(id);
+            return user == null ? Optional.empty() : Optional.of(copy(user));
+        }
+
+        @Override
+        protected void addUserUncached(@Nonnull final UUID id, @Nonnull final User user) {
+            storeUser(id, user);
+        }
+
+        @Override
+        protected void updateUserUncached(@Nonnull final UUID id, @Nonnull final User user) {
+            storeUser(id, user);
+        }
+
+        @Nonnull
+        @Override
+        protected Iterable<Map.Entry<UUID, User>> findAllUsersUncached() {
+            final List<Map.Entry<UUID, User>> result = new ArrayList<>();
+            users.forEach((id, user) -> result.add(Map.entry(id, copy(user))));
+            return result;
+        }
+
+        @Nonnull
+        @Override
+        protected List<Map.Entry<UUID, User>> findUsersPageUncached(@Nullable final UUID after, final int limit) {
+            final List<Map.Entry<UUID, User>> result = new ArrayList<>(Math.min(limit, 1024));
+            final var tail = after == null ? users : users.tailMap(after, false);
+            for (var entry : tail.entrySet()) {
+                if (limit <= result.size()) {
+                    break;
+                }
+                result.add(Map.entry(entry.getKey(), copy(entry.getValue())));
+            }
+            return result;
+        }
+    }
+}
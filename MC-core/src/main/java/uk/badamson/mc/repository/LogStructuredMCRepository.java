@@ -0,0 +1,696 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import uk.badamson.mc.Game;
+import uk.badamson.mc.GameSnapshot;
+import uk.badamson.mc.User;
+import uk.badamson.mc.UserGameAssociation;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * An {@link MCRepository} that persists its data in files in a local directory,
+ * so small deployments can run without an external database.
+ * </p>
+ * <p>
+ * The repository holds all its data in memory, as for an {@link InMemoryMCRepository},
+ * so finding entities does not access the files.
+ * It records each save by appending a record to a write-ahead log file,
+ * so saving is a cheap sequential write.
+ * An update of a game that changes only some of its fields appends a record of only those changes.
+ * When the log becomes large, the save that made it large retires the log, by renaming it and starting a new log,
+ * and a background thread then writes a compacted snapshot file, which holds one record for each entity,
+ * and deletes the retired log.
+ * Saves therefore do not wait for the snapshot to be written.
+ * The snapshot can include saves recorded in the new log, which is harmless,
+ * because each record sets the values it records, so replaying the new log on top of the snapshot
+ * reaches the same state whether or not the snapshot includes some of its records.
+ * Writing the snapshot is an optimisation, so a failure to write it does not cause any save to fail:
+ * the repository records the {@linkplain #getCheckpointFailure() failure},
+ * and tries again after the log has grown by the checkpoint log size again.
+ * </p>
+ * <p>
+ * On construction, the repository recovers its data by reading the snapshot through a memory mapping,
+ * and then replaying the retired log, if there is one, and the log.
+ * Each record has a checksum, so the repository can detect and discard a record
+ * that was only partly written when the process crashed.
+ * Such a record can only be at the end of the log, and the repository truncates the log to remove it.
+ * </p>
+ * <p>
+ * Only one repository object may use a directory at a time.
+ * </p>
+ */
+@ThreadSafe
+public final class LogStructuredMCRepository extends InMemoryMCRepository implements Closeable {
+
+    /**
+     * <p>
+     * The default size, in bytes, of the log that triggers writing a snapshot.
+     * </p>
+     */
+    public static final long DEFAULT_CHECKPOINT_LOG_SIZE = 64L * 1024 * 1024;
+
+    static final String LOG_FILE = "mc.log";
+    static final String OLD_LOG_FILE = "mc.log.old";
+    static final String NEXT_LOG_FILE = "mc.log.next";
+    static final String SNAPSHOT_FILE = "mc.snapshot";
+    static final String NEW_SNAPSHOT_FILE = "mc.snapshot.new";
+    private static final int MAGIC = 0x4D434C47;
+    private static final byte FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = Integer.BYTES + 1;
+
+    private final Path directory;
+    private final long checkpointLogSize;
+    private final boolean sync;
+    private final Object lock = new Object();
+    // Held while writing a snapshot, which does not hold the lock, so snapshots are not written concurrently.
+    private final Object checkpointLock = new Object();
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(runnable -> {
+        final var thread = new Thread(runnable, "LogStructuredMCRepository-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    @GuardedBy("lock")
+    @Nullable
+    private FileChannel log;
+    @GuardedBy("lock")
+    private long logSize;
+    @GuardedBy("lock")
+    private long nextCheckpointLogSize;
+    @GuardedBy("lock")
+    private boolean checkpointPending;
+    @GuardedBy("lock")
+    private boolean hasOldLog;
+    @GuardedBy("lock")
+    @Nullable
+    private IOException checkpointFailure;
+
+    /**
+     * <p>
+     * Open a repository that uses the files in a given directory,
+     * with the {@linkplain #DEFAULT_CHECKPOINT_LOG_SIZE default checkpoint log size},
+     * without a shared cache, and without forcing each write to the storage device.
+     * </p>
+     *
+     * @see #LogStructuredMCRepository(Path, SharedCache, long, boolean)
+     */
+    public LogStructuredMCRepository(@Nonnull final Path directory) throws IOException {
+        this(directory, null, DEFAULT_CHECKPOINT_LOG_SIZE, false);
+    }
+
+    /**
+     * <p>
+     * Open a repository that uses the files in a given directory,
+     * with the default scenarios.
+     * </p>
+     *
+     * @see #LogStructuredMCRepository(Path, ScenarioCatalogue, SharedCache, long, boolean)
+     */
+    public LogStructuredMCRepository(@Nonnull final Path directory,
+                                     @Nullable final SharedCache sharedCache,
+                                     @Nonnegative final long checkpointLogSize,
+                                     final boolean sync) throws IOException {
+        this(directory, DEFAULT_SCENARIOS, sharedCache, checkpointLogSize, sync);
+    }
+
+    /**
+     * <p>
+     * Open a repository that uses the files in a given directory,
+     * creating the directory and files if necessary, and recovering the data they hold.
+     * </p>
+     *
+     * @param directory         The directory that holds (or will hold) the files of the repository.
+     * @param scenarioCatalogue The scenarios that games of this repository may use.
+     * @param sharedCache       The cache that all the contexts of this repository should share,
+     *                          or null if contexts should not share a cache.
+     * @param checkpointLogSize The size, in bytes, of the log that triggers writing a snapshot.
+     * @param sync              Whether each save must be forced to the storage device before it completes.
+     *                          If false, saves made shortly before an operating system crash can be lost,
+     *                          but saves are much faster.
+     * @throws NullPointerException     If {@code directory} is null.
+     * @throws IllegalArgumentException If {@code checkpointLogSize} is not positive.
+     * @throws IOException              <ul>
+     *                                  <li>If the directory or its files can not be created, read or written.</li>
+     *                                  <li>If the snapshot file is corrupt.</li>
+     *                                  </ul>
+     */
+    public LogStructuredMCRepository(@Nonnull final Path directory,
+                                     @Nonnull final ScenarioCatalogue scenarioCatalogue,
+                                     @Nullable final SharedCache sharedCache,
+                                     @Nonnegative final long checkpointLogSize,
+                                     final boolean sync) throws IOException {
+        super(scenarioCatalogue, sharedCache);
+        this.directory = Objects.requireNonNull(directory, "directory");
+        if (checkpointLogSize <= 0) {
+            throw new IllegalArgumentException("checkpointLogSize");
+        }
+        this.checkpointLogSize = checkpointLogSize;
+        this.nextCheckpointLogSize = checkpointLogSize;
+        this.sync = sync;
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(NEW_SNAPSHOT_FILE));
+        Files.deleteIfExists(directory.resolve(NEXT_LOG_FILE));
+        synchronized (lock) {
+            readSnapshot();
+            hasOldLog = Files.exists(directory.resolve(OLD_LOG_FILE));
+            if (hasOldLog) {
+                replayOldLog();
+            }
+            openLog();
+        }
+    }
+
+    private static void writeFully(@Nonnull final FileChannel channel, @Nonnull final ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Nonnull
+    private static ByteBuffer header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(FORMAT_VERSION).flip();
+    }
+
+    private static boolean isValidHeader(@Nonnull final ByteBuffer buffer) {
+        return HEADER_SIZE <= buffer.remaining()
+                && buffer.getInt() == MAGIC && buffer.get() == FORMAT_VERSION;
+    }
+
+    @GuardedBy("lock")
+    private void readSnapshot() throws IOException {
+        final var file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (Integer.MAX_VALUE < size) {
+                throw new IOException("Snapshot too large " + file);
+            }
+            final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (!isValidHeader(buffer)) {
+                throw new IOException("Not a snapshot file " + file);
+            }
+            while (buffer.hasRemaining()) {
+                if (!RecordCodec.decode(buffer, new Replay())) {
+                    throw new IOException("Corrupt snapshot file " + file + " at " + buffer.position());
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot file " + file, e);
+        }
+    }
+
+    /*
+     * The retired log was fully written before it was retired, so a partly written record is corruption.
+     */
+    @GuardedBy("lock")
+    private void replayOldLog() throws IOException {
+        final var file = directory.resolve(OLD_LOG_FILE);
+        final var buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (!isValidHeader(buffer)) {
+            throw new IOException("Not a log file " + file);
+        }
+        try {
+            final var replay = new Replay();
+            while (buffer.hasRemaining()) {
+                if (!RecordCodec.decode(buffer, replay)) {
+                    throw new IOException("Corrupt log file " + file + " at " + buffer.position());
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt log file " + file, e);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void openLog() throws IOException {
+        final var file = directory.resolve(LOG_FILE);
+        final var channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final long size = channel.size();
+            if (Integer.MAX_VALUE < size) {
+                throw new IOException("Log too large " + file);
+            }
+            final var buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && 0 <= channel.read(buffer, buffer.position())) {
+                // Keep reading
+            }
+            buffer.flip();
+            long end = 0;
+            if (isValidHeader(buffer)) {
+                final var replay = new Replay();
+                try {
+                    while (RecordCodec.decode(buffer, replay)) {
+                        // Keep replaying
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Corrupt log file " + file, e);
+                }
+                end = buffer.position();
+            } else if (HEADER_SIZE <= size) {
+                throw new IOException("Not a log file " + file);
+            }
+            if (end < size) {// Discard a partly written record or header
+                channel.truncate(end);
+            }
+            if (end == 0) {
+                writeFully(channel.position(0), header());
+                end = HEADER_SIZE;
+            }
+            channel.position(end);
+            channel.force(true);
+            log = channel;
+            logSize = end;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @GuardedBy("lock")
+    @Nonnull
+    private FileChannel requireOpen() {
+        if (log == null) {
+            throw new IllegalStateException("Closed");
+        }
+        return log;
+    }
+
+    private void append(@Nonnull final ByteBuffer record, @Nonnull final Runnable apply) {
+        synchronized (lock) {
+            final var channel = requireOpen();
+            final int length = record.remaining();
+            try {
+                writeFully(channel, record);
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                discardPartialRecord(channel, e);
+                throw new UncheckedIOException(e);
+            }
+            logSize += length;
+            apply.run();
+            if (!checkpointPending && nextCheckpointLogSize <= logSize) {
+                beginCheckpointLocked();
+            }
+        }
+    }
+
+    /*
+     * The save is already durable and visible, so a failure must not be reported as a failure of the save.
+     */
+    @GuardedBy("lock")
+    private void beginCheckpointLocked() {
+        try {
+            rotateLogLocked();
+            checkpointer.execute(this::checkpointInBackground);
+            checkpointPending = true;
+        } catch (IOException e) {
+            checkpointFailed(e);
+        } catch (RejectedExecutionException e) {
+            // Closing; the retired log will be replayed on recovery.
+        }
+    }
+
+    @GuardedBy("lock")
+    private void checkpointFailed(@Nonnull final IOException e) {
+        checkpointFailure = e;
+        // Back off, rather than retrying (and probably failing again) on every save.
+        nextCheckpointLogSize = logSize + checkpointLogSize;
+    }
+
+    private void checkpointInBackground() {
+        IOException failure = null;
+        synchronized (checkpointLock) {
+            try {
+                writeSnapshot();
+            } catch (IOException | RuntimeException e) {
+                failure = e instanceof IOException ioException ? ioException : new IOException(e);
+            }
+        }
+        synchronized (lock) {
+            checkpointPending = false;
+            if (failure == null) {
+                checkpointSucceeded();
+            } else {
+                checkpointFailed(failure);
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void checkpointSucceeded() {
+        checkpointFailure = null;
+        /* If the log could not be retired, because the previously retired log had not yet been deleted,
+         * the log still holds records that the snapshot includes, so this triggers another checkpoint soon. */
+        nextCheckpointLogSize = checkpointLogSize;
+    }
+
+    /*
+     * Renaming the log, rather than copying or truncating it, keeps the work done while holding the lock small.
+     * All saves hold the lock, so the retired log holds only records that the in-memory data already include.
+     *
+     * Returns whether the log was retired: it is not if there is still a retired log, which a snapshot must
+     * include before it can be deleted.
+     */
+    @GuardedBy("lock")
+    private boolean rotateLogLocked() throws IOException {
+        final var channel = requireOpen();
+        if (hasOldLog) {
+            return false;
+        }
+        final var file = directory.resolve(LOG_FILE);
+        final var oldFile = directory.resolve(OLD_LOG_FILE);
+        final var nextFile = directory.resolve(NEXT_LOG_FILE);
+        try (var next = FileChannel.open(nextFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(next, header());
+            next.force(true);
+        }
+        Files.move(file, oldFile, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            Files.move(nextFile, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.move(oldFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e2) {
+                // Appending to the retired log would make recovery depend on it being retained, so stop appending.
+                e.addSuppressed(e2);
+                log = null;
+                try {
+                    channel.close();
+                } catch (IOException e3) {
+                    e.addSuppressed(e3);
+                }
+            }
+            throw e;
+        }
+        hasOldLog = true;
+        forceDirectory();
+        final var newChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        newChannel.position(HEADER_SIZE);
+        log = newChannel;
+        logSize = HEADER_SIZE;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The retired log has been forced (if required) record by record, so nothing is lost.
+        }
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void discardPartialRecord(@Nonnull final FileChannel channel, @Nonnull final IOException cause) {
+        try {
+            channel.truncate(logSize);
+            channel.position(logSize);
+        } catch (IOException e) {
+            /* Later records would be lost on recovery, because they would follow a damaged record,
+             * so refuse to write any more. */
+            cause.addSuppressed(e);
+            log = null;
+            try {
+                channel.close();
+            } catch (IOException e2) {
+                cause.addSuppressed(e2);
+            }
+        }
+    }
+
+    @Override
+    protected void storeGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId, @Nonnull final Game game,
+                             final long version) {
+        append(RecordCodec.encodeGame(id, scenarioId, game, version),
+                () -> super.storeGame(id, scenarioId, game, version));
+    }
+
+    @Override
+    protected void storeNewGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId, @Nonnull final Game game) {
+        synchronized (lock) {// all saves hold the lock, so the game can not be saved before the store
+            if (findGameVersion(id).isPresent()) {
+                throw new IllegalStateException("Game already saved " + id);
+            }
+            storeGame(id, scenarioId, game, 0L);
+        }
+    }
+
+    @Override
+    protected void storeNextGameVersion(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                        @Nonnull final Game game) {
+        synchronized (lock) {// all saves hold the lock, so the version can not change before the store
+            storeGame(id, scenarioId, game, findGameVersion(id).orElse(-1L) + 1);
+        }
+    }
+
+    @Override
+    protected void compareAndStoreGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId,
+                                       @Nonnull final Game game, final long expectedVersion)
+            throws VersionConflictException {
+        synchronized (lock) {// all saves hold the lock, so the version can not change before the store
+            final var version = findGameVersion(id);
+            if (version.isEmpty() || version.getAsLong() != expectedVersion) {
+                throw new VersionConflictException(id, expectedVersion);
+            }
+            storeGame(id, scenarioId, game, expectedVersion + 1);
+        }
+    }
+
+    @Override
+    protected void storeGameDelta(@Nonnull final UUID id, @Nonnull final GameDelta delta, final long version) {
+        append(RecordCodec.encodeGameDelta(id, delta, version),
+                () -> super.storeGameDelta(id, delta, version));
+    }
+
+    @Override
+    protected void compareAndStoreGameDelta(@Nonnull final UUID id, @Nonnull final GameDelta delta,
+                                            final long expectedVersion) throws VersionConflictException {
+        synchronized (lock) {// all saves hold the lock, so the version can not change before the store
+            final var version = findGameVersion(id);
+            if (version.isEmpty() || version.getAsLong() != expectedVersion) {
+                throw new VersionConflictException(id, expectedVersion);
+            }
+            storeGameDelta(id, delta, expectedVersion + 1);
+        }
+    }
+
+    @Override
+    protected void storeUser(@Nonnull final UUID id, @Nonnull final User user) {
+        append(RecordCodec.encodeUser(id, user), () -> super.storeUser(id, user));
+    }
+
+    @Override
+    protected void storeCurrentUserGame(@Nonnull final UUID userId, @Nonnull final UserGameAssociation association) {
+        append(RecordCodec.encodeCurrentUserGame(userId, association),
+                () -> super.storeCurrentUserGame(userId, association));
+    }
+
+    /**
+     * <p>
+     * Write a snapshot of all the data of this repository, and empty the log.
+     * </p>
+     * <p>
+     * The repository does this automatically, in the background, when the log becomes large,
+     * but it can be useful to do it before a planned shutdown, to speed up the next start.
+     * Unlike the automatic checkpoint, this waits for the snapshot to be written.
+     * Saves made while the snapshot is being written are not delayed, and are recorded in the new log.
+     * </p>
+     *
+     * @throws IllegalStateException If this repository has been {@linkplain #close() closed}.
+     * @throws IOException           If the snapshot could not be written.
+     *                               The logs and any previous snapshot are retained in that case,
+     *                               so no data is lost.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            boolean rotated;
+            do {
+                synchronized (lock) {
+                    rotated = rotateLogLocked();
+                }
+                writeSnapshot();
+            } while (!rotated);
+            synchronized (lock) {
+                checkpointSucceeded();
+            }
+        }
+    }
+
+    /*
+     * Does not hold the lock, so saves can continue while the snapshot is written.
+     * The snapshot might therefore include some saves recorded in the new log.
+     */
+    @GuardedBy("checkpointLock")
+    private void writeSnapshot() throws IOException {
+        final var newSnapshot = directory.resolve(NEW_SNAPSHOT_FILE);
+        try (var snapshot = FileChannel.open(newSnapshot,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(snapshot, header());
+            try {
+                forEachUser((id, user) -> writeRecord(snapshot, RecordCodec.encodeUser(id, user)));
+                forEachGame((id, result) -> writeRecord(snapshot,
+                        RecordCodec.encodeGame(id, result.scenarioId(), result.game(), result.version())));
+                forEachCurrentUserGame((userId, association) -> writeRecord(snapshot,
+                        RecordCodec.encodeCurrentUserGame(userId, association)));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            snapshot.force(true);
+        }
+        Files.move(newSnapshot, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+        /* Replaying the retired log on top of the new snapshot would be harmless,
+         * so a crash before this deletion does not lose or corrupt data. */
+        Files.deleteIfExists(directory.resolve(OLD_LOG_FILE));
+        forceDirectory();
+        synchronized (lock) {
+            hasOldLog = false;
+        }
+    }
+
+    /**
+     * <p>
+     * Wait for any automatic checkpoint that has begun to complete.
+     * </p>
+     */
+    void awaitCheckpoints() throws InterruptedException {
+        try {
+            checkpointer.submit(() -> {
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * The reason that the most recent automatic writing of a snapshot failed,
+     * or null if no automatic writing of a snapshot has failed since a snapshot was last written.
+     * </p>
+     */
+    @Nullable
+    public IOException getCheckpointFailure() {
+        synchronized (lock) {
+            return checkpointFailure;
+        }
+    }
+
+    private static void writeRecord(@Nonnull final FileChannel channel, @Nonnull final ByteBuffer record) {
+        try {
+            writeFully(channel, record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void forceDirectory() {
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms do not support forcing directories; the rename is then as durable as it can be.
+        }
+    }
+
+    /**
+     * <p>
+     * Close the log file, and complete the {@linkplain #getChangeEvents() change events}.
+     * This waits for any automatic checkpoint that has begun to complete.
+     * </p>
+     * <p>
+     * Saving to a closed repository throws an {@link IllegalStateException}.
+     * Closing a closed repository has no effect.
+     * </p>
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (log != null) {
+                try {
+                    log.close();
+                } finally {
+                    log = null;
+                    closeChangeEvents();
+                }
+            }
+        }
+        checkpointer.shutdown();
+        try {
+            while (!checkpointer.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Replay implements RecordCodec.Handler {
+
+        @Override
+        public void game(@Nonnull final UUID id, @Nonnull final UUID scenarioId, @Nonnull final GameSnapshot game,
+                         final long version) {
+            restoreGame(id, scenarioId, game, version);
+        }
+
+        @Override
+        public void gameDelta(@Nonnull final UUID id, @Nonnull final GameDelta delta, final long version) {
+            try {
+                LogStructuredMCRepository.super.storeGameDelta(id, delta, version);
+            } catch (IllegalStateException e) {
+                throw new IllegalArgumentException("Game delta without game", e);
+            }
+        }
+
+        @Override
+        public void user(@Nonnull final UUID id, @Nonnull final User user) {
+            LogStructuredMCRepository.super.storeUser(id, user);
+        }
+
+        @Override
+        public void currentUserGame(@Nonnull final UUID userId, @Nonnull final UserGameAssociation association) {
+            LogStructuredMCRepository.super.storeCurrentUserGame(userId, association);
+        }
+    }
+}
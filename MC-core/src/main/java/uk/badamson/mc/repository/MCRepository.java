@@ -21,10 +21,11 @@ package uk.badamson.mc.repository;
 import uk.badamson.mc.*;
 
 import javax.annotation.Nonnull;
-import javax.annotation.OverridingMethodsMustInvokeSuper;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.annotation.concurrent.ThreadSafe;
 import java.util.*;
+import java.util.concurrent.*;
 
 @ThreadSafe
 public abstract class MCRepository {
@@ -36,242 +37,327 @@ public abstract class MCRepository {
             List.of(new NamedUUID(UUID.randomUUID(), "Lt. Winters"),
                     new NamedUUID(UUID.randomUUID(), "Sgt. Summer"))) {
     };
-    private static final Map<UUID, Scenario> ID_TO_SCENARIO_MAP  = Map.of(SCENARIO_ID, SCENARIO);
-    private static final IdentityHashMap<Scenario, UUID> SCENARIO_TO_ID_MAP = new IdentityHashMap<>();
-    static {
-        ID_TO_SCENARIO_MAP.forEach((id, scenario) -> SCENARIO_TO_ID_MAP.put(scenario, id));
-    }
+    static final ScenarioCatalogue DEFAULT_SCENARIOS = new ScenarioCatalogue(Map.of(SCENARIO_ID, SCENARIO));
 
     @Nonnull
-    public abstract Context openContext();
-
-    @NotThreadSafe
-    public abstract class Context implements AutoCloseable {
-
-        private final IdentityHashMap<Game, UUID> gameToIdMap = new IdentityHashMap<>();
-        private final Map<UUID, FindGameResult> idToGameMap = new HashMap<>();
-        private final IdentityHashMap<UserGameAssociation, UUID> userGameAssociationToIdMap = new IdentityHashMap<>();
-        private final Map<UUID, UserGameAssociation> idToUserGameAssociationMap = new HashMap<>();
-        private final IdentityHashMap<User, UUID> userToIdMap = new IdentityHashMap<>();
-        private final Map<UUID, User> idToUserMap = new HashMap<>();
-        private final Map<String, User> usernameToUserMap = new HashMap<>();
-        private boolean haveAllGames = false;
-        private boolean haveAllUsers = false;
-
-
+    private final ScenarioCatalogue scenarioCatalogue;
+    @Nullable
+    private final SharedCache sharedCache;
+    private final boolean cacheMisses;
+    final ThreadLocal<Context> currentContext = new ThreadLocal<>();
+    @Nonnull
+    private volatile RepositoryMetrics metrics = RepositoryMetrics.NO_OP;
+    final ChangeEventPublisher changeEvents = new ChangeEventPublisher();
 
-        @Nonnull
-        public final Optional<Scenario> findScenario(@Nonnull UUID id) {
-            Objects.requireNonNull(id);
-            return Optional.ofNullable(ID_TO_SCENARIO_MAP.get(id));
-        }
+    protected MCRepository() {
+        this(null);
+    }
 
-        @Nonnull
-        public final Iterable<Map.Entry<UUID, Scenario>> findAllScenarios() {
-            return ID_TO_SCENARIO_MAP.entrySet();
-        }
+    /**
+     * @param sharedCache The cache that all the contexts of this repository should share,
+     *                    or null if contexts should not share a cache.
+     */
+    protected MCRepository(@Nullable final SharedCache sharedCache) {
+        this(sharedCache, true);
+    }
 
+    /**
+     * @param sharedCache The cache that all the contexts of this repository should share,
+     *                    or null if contexts should not share a cache.
+     * @param cacheMisses Whether each context should record that an entity was not found,
+     *                    so it does not look for the entity again.
+     *                    Whether the shared cache records such misses is a property of the shared cache.
+     */
+    protected MCRepository(@Nullable final SharedCache sharedCache, final boolean cacheMisses) {
+        this(DEFAULT_SCENARIOS, sharedCache, cacheMisses);
+    }
 
+    /**
+     * @param scenarioCatalogue The scenarios that games of this repository may use.
+     * @param sharedCache       The cache that all the contexts of this repository should share,
+     *                          or null if contexts should not share a cache.
+     * @param cacheMisses       Whether each context should record that an entity was not found,
+     *                          so it does not look for the entity again.
+     */
+    protected MCRepository(@Nonnull final ScenarioCatalogue scenarioCatalogue,
+                           @Nullable final SharedCache sharedCache, final boolean cacheMisses) {
+        this.scenarioCatalogue = Objects.requireNonNull(scenarioCatalogue, "scenarioCatalogue");
+        this.sharedCache = sharedCache;
+        this.cacheMisses = cacheMisses;
+    }
 
-        public final void addGame(@Nonnull UUID id, @Nonnull Game game) {
-            if (gameToIdMap.containsKey(game) || idToGameMap.containsKey(id)) {
-                throw new IllegalStateException("already present");
-            }
-            final var scenario = game.getScenario();
-            Objects.requireNonNull(scenario);
-            final var scenarioId = SCENARIO_TO_ID_MAP.get(scenario);
-            Objects.requireNonNull(scenarioId);
-            gameToIdMap.put(game, id);
-            idToGameMap.put(id, new FindGameResult(game, scenarioId));
-            addGameUncached(id, scenarioId, game);
-        }
+    @Nonnull
+    public abstract Context openContext();
 
-        public final void updateGame(@Nonnull Game game) {
-            final var scenario = game.getScenario();
-            final var id = gameToIdMap.get(game);
-            if (id == null) {
-                throw new IllegalStateException("not present");
-            }
-            Objects.requireNonNull(scenario);
-            updateGameUncached(id, SCENARIO_TO_ID_MAP.get(scenario), game);
-        }
+    /**
+     * <p>
+     * Open a context that will be used only to find (read) entities.
+     * </p>
+     * <p>
+     * The default implementation returns an {@linkplain #openContext() ordinary context},
+     * which is correct, but does not provide the savings of a {@linkplain ContextMode#READ_ONLY read-only}
+     * context. Backing stores should override it.
+     * </p>
+     */
+    @Nonnull
+    public Context openReadOnlyContext() {
+        return openContext();
+    }
 
-        @Nonnull
-        public final Optional<FindGameResult> findGame(@Nonnull UUID id) {
-            Optional<FindGameResult> result = Optional.ofNullable(idToGameMap.get(id));
-            if (result.isEmpty()) {
-                result = findGameUncached(id);
-                result.ifPresent(value -> cacheGame(id, value));
-            }
-            return result;
-        }
+    /**
+     * <p>
+     * Open a context through which entities may be found without blocking, by several threads.
+     * </p>
+     * <p>
+     * The context uses a {@linkplain #openReadOnlyContext() read-only context}
+     * for its {@linkplain Context#findGameUncachedAsync(UUID) asynchronous} backing store operations.
+     * </p>
+     */
+    @Nonnull
+    public final AsyncContext openAsyncContext() {
+        return new AsyncContext(openReadOnlyContext());
+    }
 
-        @Nonnull
-        public final Iterable<Map.Entry<UUID, FindGameResult>> findAllGames() {
-            if (!haveAllGames) {
-                findAllGamesUncached().forEach(entry -> cacheGame(entry.getKey(), entry.getValue()));
-                haveAllGames = true;
-            }
-            return Set.copyOf(idToGameMap.entrySet());
-        }
+    /**
+     * <p>
+     * The executor that the default asynchronous backing store operations of contexts use
+     * to perform the blocking operations that they adapt.
+     * </p>
+     * <p>
+     * The default is an executor, shared by all repositories, with bounded threads and a bounded queue.
+     * When the queue is full it rejects tasks, so an asynchronous find fails with a
+     * {@link RejectedExecutionException}, and a {@linkplain Context#prefetchGame(UUID) prefetch} is not begun.
+     * </p>
+     */
+    @Nonnull
+    protected Executor getAsyncExecutor() {
+        return DefaultAsyncExecutor.INSTANCE;
+    }
 
-        private void cacheGame(@Nonnull UUID id, @Nonnull FindGameResult findGameResult) {
-            gameToIdMap.put(findGameResult.game(), id);
-            idToGameMap.put(id, findGameResult);
-        }
+    /**
+     * <p>
+     * The context of this repository that the current thread is using, if there is one.
+     * </p>
+     * <p>
+     * That is, the most recently {@linkplain #joinContext() joined} context
+     * that the current thread has not yet {@linkplain Context#close() closed}.
+     * </p>
+     */
+    @Nonnull
+    public final Optional<Context> getCurrentContext() {
+        return Optional.ofNullable(currentContext.get());
+    }
 
-        @Nonnull
-        public final Optional<UserGameAssociation> findCurrentUserGame(@Nonnull UUID id) {
-            var game = idToUserGameAssociationMap.get(id);
-            if (game != null) {
-                return Optional.of(game);
-            }
-            final var result = findCurrentUserGameUncached(id);
-            if (result.isPresent()) {
-                game = result.get();
-                userGameAssociationToIdMap.put(game, id);
-                idToUserGameAssociationMap.put(id, game);
-            }
-            return result;
+    /**
+     * <p>
+     * Use the {@linkplain #getCurrentContext() current context} of the current thread,
+     * or open a new context (which becomes the current context) if there is none.
+     * </p>
+     * <p>
+     * This enables a service operation to share the cached entities and deferred save operations
+     * of the service operation that called it.
+     * The caller must {@linkplain Context#close() close} the returned context;
+     * the context is closed by the close that balances the join that opened it.
+     * A {@linkplain ContextMode#READ_ONLY read-only} current context is not used, because the caller might
+     * save entities.
+     * </p>
+     */
+    @Nonnull
+    public final Context joinContext() {
+        final var current = currentContext.get();
+        if (current != null && current.mode != ContextMode.READ_ONLY) {
+            current.joins++;
+            return current;
         }
+        return bind(openContext());
+    }
 
-        public final void addCurrentUserGame(@Nonnull UUID id, @Nonnull UserGameAssociation entry) {
-            if (userGameAssociationToIdMap.containsKey(entry) || idToUserGameAssociationMap.containsKey(id)) {
-                throw new IllegalStateException("already present");
-            }
-            userGameAssociationToIdMap.put(entry, id);
-            idToUserGameAssociationMap.put(id, entry);
-            addCurrentUserGameUncached(id, entry);
+    /**
+     * <p>
+     * Use the {@linkplain #getCurrentContext() current context} of the current thread,
+     * or open a new {@linkplain #openReadOnlyContext() read-only context}
+     * (which becomes the current context) if there is none.
+     * </p>
+     * <p>
+     * As for {@link #joinContext()}, but any current context may be used.
+     * </p>
+     */
+    @Nonnull
+    public final Context joinReadOnlyContext() {
+        final var current = currentContext.get();
+        if (current != null) {
+            current.joins++;
+            return current;
         }
+        return bind(openReadOnlyContext());
+    }
 
-        public final void updateCurrentUserGame(@Nonnull UserGameAssociation entry) {
-            final var id = userGameAssociationToIdMap.get(entry);
-            if (id == null) {
-                throw new IllegalStateException("not present");
-            }
-            updateCurrentUserGameUncached(id, entry);
-        }
+    @Nonnull
+    private Context bind(@Nonnull Context context) {
+        context.enclosing = currentContext.get();
+        context.bound = true;
+        currentContext.set(context);
+        return context;
+    }
 
-        public final void addUser(@Nonnull UUID id, @Nonnull User user) {
-            if (userToIdMap.containsKey(user) || idToUserMap.containsKey(id)) {
-                throw new IllegalStateException("already present");
-            }
-            cacheUser(id, user);
-            addUserUncached(id, user);
-        }
+    /**
+     * <p>
+     * The changes to the saved entities of this repository, as a stream of events.
+     * </p>
+     * <p>
+     * Events are published once the saves have been performed, so for a
+     * {@linkplain ContextMode#WRITE_BEHIND write-behind} context when it is {@linkplain Context#flush() flushed}.
+     * They are published in {@linkplain ChangeEvent#sequence() sequence} order, which follows the order of
+     * the saves of one context, but not necessarily the order in which the backing store performed
+     * concurrent saves of different contexts; a subscriber that needs the latest state of an entity
+     * should retrieve it.
+     * A repository that can be closed completes the stream when it is closed.
+     * </p>
+     * <p>
+     * Saving does not wait for subscribers: a subscriber whose {@linkplain Flow#defaultBufferSize() buffer}
+     * is full misses the event, which it can detect from the gap in the sequence numbers.
+     * Subscribers should not block, because they are called through a shared executor.
+     * </p>
+     */
+    @Nonnull
+    public final Flow.Publisher<ChangeEvent> getChangeEvents() {
+        return changeEvents;
+    }
 
-        public final void updateUser(@Nonnull User user) {
-            final var id = userToIdMap.get(user);
-            if (id == null) {
-                throw new IllegalStateException("not present");
-            }
-            updateUserUncached(id, user);
-        }
+    /**
+     * <p>
+     * Complete the {@linkplain #getChangeEvents() change events} of this repository,
+     * so current subscribers are {@linkplain Flow.Subscriber#onComplete() told} there will be no more events,
+     * and later subscribers are told so immediately.
+     * </p>
+     * <p>
+     * Repositories that can be closed should call this when they are closed.
+     * Changes saved afterwards are not published.
+     * </p>
+     */
+    protected final void closeChangeEvents() {
+        changeEvents.close();
+    }
 
-        @Nonnull
-        public final Optional<User> findUser(@Nonnull UUID id) {
-            var user = idToUserMap.get(id);
-            if (user != null) {
-                return Optional.of(user);
-            }
-            final var result = findUserUncached(id);
-            if (result.isPresent()) {
-                user = result.get();
-                cacheUser(id, user);
-            }
-            return result;
-        }
+    boolean isCacheMisses() {
+        return cacheMisses;
+    }
 
-        @Nonnull
-        public final Optional<User> findUserByUsername(@Nonnull String username) {
-            var user = usernameToUserMap.get(username);
-            if (user != null) {
-                return Optional.of(user);
-            }
-            final var id = findUserIdForUsernameUncached(username);
-            return id.flatMap(this::findUser);
-        }
+    /**
+     * <p>
+     * The receiver of measurements of how the contexts of this repository use the backing store.
+     * </p>
+     * <p>
+     * Initially {@link RepositoryMetrics#NO_OP}.
+     * </p>
+     */
+    @Nonnull
+    public final RepositoryMetrics getMetrics() {
+        return metrics;
+    }
 
-        @Nonnull
-        public final Iterable<User> findAllUsers() {
-            if (!haveAllUsers) {
-                findAllUsersUncached().forEach(entry -> {
-                    final var id = entry.getKey();
-                    final var user = entry.getValue();
-                    cacheUser(id, user);
-                });
-                haveAllUsers = true;
-            }
-            return List.copyOf(idToUserMap.values());
-        }
+    /**
+     * <p>
+     * Change the {@linkplain #getMetrics() metrics} of this repository.
+     * </p>
+     * <p>
+     * Contexts that are already open continue to use the previous metrics.
+     * </p>
+     */
+    public final void setMetrics(@Nonnull final RepositoryMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+    }
 
-        private void cacheUser(UUID id, User user) {
-            userToIdMap.put(user, id);
-            idToUserMap.put(id, user);
-            usernameToUserMap.put(user.getUsername(), user);
-        }
+    /**
+     * <p>
+     * The scenarios that games of this repository may use.
+     * </p>
+     * <p>
+     * Each context uses the {@linkplain ScenarioCatalogue#getSnapshot() snapshot} of the catalogue
+     * that was current when the context was opened.
+     * </p>
+     */
+    @Nonnull
+    public final ScenarioCatalogue getScenarioCatalogue() {
+        return scenarioCatalogue;
+    }
 
-        @Nonnull
-        public MCRepository getRepository() {
-            return MCRepository.this;
-        }
+    /**
+     * <p>
+     * The cache that all the contexts of this repository share, if there is one.
+     * </p>
+     */
+    @Nonnull
+    public final Optional<SharedCache> getSharedCache() {
+        return Optional.ofNullable(sharedCache);
+    }
 
+    /**
+     * <p>
+     * How a {@linkplain Context context} performs save (write) operations.
+     * </p>
+     */
+    public enum ContextMode {
         /**
-         * {@inheritDoc}
          * <p>
-         * Save operations performed through this context are not guaranteed to have been performed
-         * until normal return from this method. That is, the implementation may cache save (write) operations.
-         *
-         * @throws RuntimeException If not all save operations could be performed.
-         *                          This class is however not required to provide transaction semantics:
-         *                          if it throws an exception, some saves might have been performed and some might not.
+         * Each save operation immediately performs the corresponding uncached write.
+         * </p>
          */
-        @Override
-        @OverridingMethodsMustInvokeSuper
-        public void close() throws RuntimeException {
-            gameToIdMap.clear();
-            idToGameMap.clear();
-            haveAllGames = false;
-            userGameAssociationToIdMap.clear();
-            idToUserGameAssociationMap.clear();
-            userToIdMap.clear();
-            idToUserMap.clear();
-            usernameToUserMap.clear();
-            userToIdMap.clear();
-            idToUserMap.clear();
-            usernameToUserMap.clear();
-            haveAllUsers = false;
-        }
-
-        protected abstract void addGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game);
-
-        protected abstract void updateGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game);
-
-        @Nonnull
-        protected abstract Optional<FindGameResult> findGameUncached(@Nonnull UUID id);
-
-        @Nonnull
-        protected abstract Iterable<Map.Entry<UUID, FindGameResult>> findAllGamesUncached();
-
-        protected abstract void addCurrentUserGameUncached(@Nonnull UUID id, @Nonnull UserGameAssociation entry);
-
-        protected abstract void updateCurrentUserGameUncached(@Nonnull UUID id, @Nonnull UserGameAssociation entry);
+        WRITE_THROUGH,
+        /**
+         * <p>
+         * Save operations are recorded, and performed together, as one {@link WriteBatch},
+         * when the context is {@linkplain Context#flush() flushed} or {@linkplain Context#close() closed}.
+         * Repeated saves of one entity are coalesced into one write.
+         * </p>
+         */
+        WRITE_BEHIND,
+        /**
+         * <p>
+         * The context may be used only to find (read) entities; save operations throw
+         * {@link IllegalStateException}.
+         * </p>
+         * <p>
+         * The context does not record which ID each retrieved entity object has,
+         * which only save operations need, so it does less work than other contexts.
+         * A backing store may also perform the reads of a read-only context
+         * using a read replica or a read-only transaction.
+         * </p>
+         */
+        READ_ONLY
+    }
 
-        @Nonnull
-        protected abstract Optional<UserGameAssociation> findCurrentUserGameUncached(@Nonnull UUID userId);
+    @NotThreadSafe
+    public abstract class Context extends RepositoryContext {
 
-        @Nonnull
-        protected abstract Optional<UUID> findUserIdForUsernameUncached(@Nonnull String username);
+        protected Context() {
+            this(ContextMode.WRITE_THROUGH);
+        }
 
-        @Nonnull
-        protected abstract Optional<User> findUserUncached(@Nonnull UUID id);
+        protected Context(@Nonnull ContextMode mode) {
+            super(MCRepository.this, mode);
+        }
+    }
 
-        protected abstract void addUserUncached(@Nonnull UUID id, @Nonnull User user);
+    private static final class DefaultAsyncExecutor {
+        private static final int THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        private static final int QUEUE_CAPACITY = 64 * THREADS;
 
-        protected abstract void updateUserUncached(@Nonnull UUID id, @Nonnull User user);
+        static final ExecutorService INSTANCE = createExecutor();
 
         @Nonnull
-        protected abstract Iterable<Map.Entry<UUID, User>> findAllUsersUncached();
+        private static ExecutorService createExecutor() {
+            final ThreadFactory threadFactory = runnable -> {
+                final var thread = new Thread(runnable, "MCRepository-async");
+                thread.setDaemon(true);
+                return thread;
+            };
+            final var executor = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(QUEUE_CAPACITY), threadFactory,
+                    new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
     }
 
 }
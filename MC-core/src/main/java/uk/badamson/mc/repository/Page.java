@@ -0,0 +1,88 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>
+ * One page of a sequence of entities that is retrieved a page at a time.
+ * </p>
+ *
+ * @param entries The entities of this page, in {@linkplain PageOrder order}.
+ * @param next    The position from which to retrieve the next page,
+ *                or null if this is the last page.
+ */
+@SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "DTO")
+public record Page<ENTRY>(@Nonnull List<ENTRY> entries, @Nullable PageToken next) {
+
+    /**
+     * <p>
+     * A stream of all the entries of a sequence of pages,
+     * which retrieves each page only when the stream needs its entries.
+     * </p>
+     *
+     * @param pages The means of retrieving a page, given the position of the end of the previous page,
+     *              or null for the first page.
+     */
+    @Nonnull
+    public static <ENTRY> Stream<ENTRY> stream(@Nonnull Function<PageToken, Page<ENTRY>> pages) {
+        return StreamSupport.stream(new PagesSpliterator<>(pages), false);
+    }
+
+    private static final class PagesSpliterator<ENTRY> extends Spliterators.AbstractSpliterator<ENTRY> {
+
+        private final Function<PageToken, Page<ENTRY>> pages;
+        @Nullable
+        private Iterator<ENTRY> entries;
+        @Nullable
+        private PageToken next;
+
+        PagesSpliterator(@Nonnull Function<PageToken, Page<ENTRY>> pages) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.pages = pages;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ENTRY> action) {
+            while (entries == null || !entries.hasNext()) {
+                if (entries != null && next == null) {
+                    return false;
+                }
+                final var page = pages.apply(next);
+                entries = page.entries().iterator();
+                next = page.next();
+            }
+            action.accept(entries.next());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * <p>
+ * The order of the entities in a sequence of {@linkplain Page pages}.
+ * </p>
+ */
+public enum PageOrder {
+    /**
+     * <p>
+     * In ascending order of {@linkplain java.util.UUID#compareTo(java.util.UUID) unique ID}.
+     * </p>
+     */
+    ID,
+    /**
+     * <p>
+     * In ascending order of creation time, with entities created at the same time
+     * in ascending order of unique ID.
+     * </p>
+     * <p>
+     * This is possible only for entities that have a creation time, such as {@linkplain uk.badamson.mc.Game games}.
+     * </p>
+     */
+    CREATED
+}
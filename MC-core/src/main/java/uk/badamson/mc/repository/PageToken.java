@@ -0,0 +1,77 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * <p>
+ * The position, within a {@linkplain PageOrder sequence of entities}, from which to resume retrieving
+ * {@linkplain Page pages}.
+ * </p>
+ * <p>
+ * A token records the sort key of the last entity of a page, so retrieving the next page
+ * is a range query on that key (<i>keyset pagination</i>), rather than an offset query.
+ * Hence a sequence of pages never repeats or skips an entity that exists throughout the retrieval,
+ * even if other entities are added.
+ * </p>
+ *
+ * @param id      The unique ID of the last entity of the page.
+ * @param created The creation time of the last entity of the page,
+ *                or null if the pages are not in {@linkplain PageOrder#CREATED creation order}.
+ */
+public record PageToken(@Nonnull UUID id, @Nullable Instant created) {
+
+    private static final Comparator<PageToken> CREATED_ORDER = Comparator
+            .comparing(PageToken::created)
+            .thenComparing(PageToken::id);
+
+    public PageToken {
+        Objects.requireNonNull(id, "id");
+    }
+
+    /**
+     * <p>
+     * Whether an entity with a given sort key comes after the position indicated by this token.
+     * </p>
+     *
+     * @throws NullPointerException     If {@code order} is {@link PageOrder#CREATED} and
+     *                                  {@code created} is null.
+     * @throws IllegalArgumentException If {@code order} is {@link PageOrder#CREATED}
+     *                                  and this token does not have a creation time.
+     */
+    public boolean isBefore(@Nonnull PageOrder order, @Nonnull UUID id, @Nullable Instant created) {
+        return switch (order) {
+            case ID -> this.id.compareTo(id) < 0;
+            case CREATED -> {
+                if (this.created == null) {
+                    throw new IllegalArgumentException("token does not have a creation time");
+                }
+                Objects.requireNonNull(created, "created");
+                yield CREATED_ORDER.compare(this, new PageToken(id, created)) < 0;
+            }
+        };
+    }
+}
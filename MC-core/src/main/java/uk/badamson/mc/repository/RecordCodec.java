@@ -0,0 +1,244 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import uk.badamson.mc.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * <p>
+ * The encoding of the records of the log and snapshot files of a {@link LogStructuredMCRepository}.
+ * </p>
+ * <p>
+ * Each record is framed by its length and a CRC-32C checksum of its content,
+ * so a reader can detect a record that was only partly written before a crash.
+ * The content of most records is the current state of one entity,
+ * using the {@link BinaryCodec} encoding of the entity.
+ * A game delta record instead holds only the {@linkplain GameDelta changes} to a game,
+ * which are applied to the game recorded by an earlier record.
+ * </p>
+ */
+@Immutable
+final class RecordCodec {
+
+    /**
+     * <p>
+     * The number of bytes of the framing of each record.
+     * </p>
+     */
+    static final int FRAME_SIZE = Integer.BYTES * 2;
+
+    private static final byte GAME = 1;
+    private static final byte USER = 2;
+    private static final byte CURRENT_USER_GAME = 3;
+    private static final byte GAME_DELTA = 4;
+
+    private static final byte HAS_RUN_STATE = 1;
+    private static final byte HAS_RECRUITING = 2;
+    private static final byte RECRUITING = 4;
+    private static final Game.RunState[] RUN_STATES = Game.RunState.values();
+
+    private RecordCodec() {
+        // Not instantiable
+    }
+
+    @Nonnull
+    private static ByteBuffer frame(final int contentSize) {
+        final var buffer = ByteBuffer.allocate(FRAME_SIZE + contentSize);
+        buffer.position(FRAME_SIZE);
+        return buffer;
+    }
+
+    @Nonnull
+    private static ByteBuffer seal(@Nonnull final ByteBuffer buffer) {
+        final int contentSize = buffer.position() - FRAME_SIZE;
+        final var crc = new CRC32C();
+        crc.update(buffer.array(), FRAME_SIZE, contentSize);
+        buffer.putInt(0, contentSize);
+        buffer.putInt(Integer.BYTES, (int) crc.getValue());
+        return buffer.flip();
+    }
+
+    @Nonnull
+    static ByteBuffer encodeGame(@Nonnull final UUID id, @Nonnull final UUID scenarioId, @Nonnull final Game game,
+                                 final long version) {
+        final var buffer = frame(1 + BinaryCodec.UUID_SIZE * 2 + BinaryCodec.varintSize(version)
+                + BinaryCodec.encodedSize(game));
+        buffer.put(GAME);
+        BinaryCodec.putUUID(buffer, id);
+        BinaryCodec.putUUID(buffer, scenarioId);
+        BinaryCodec.putVarint(buffer, version);
+        BinaryCodec.encode(game, buffer);
+        return seal(buffer);
+    }
+
+    @Nonnull
+    static ByteBuffer encodeUser(@Nonnull final UUID id, @Nonnull final User user) {
+        final var buffer = frame(1 + BinaryCodec.UUID_SIZE + BinaryCodec.encodedSize(user));
+        buffer.put(USER);
+        BinaryCodec.putUUID(buffer, id);
+        BinaryCodec.encode(user, buffer);
+        return seal(buffer);
+    }
+
+    @Nonnull
+    static ByteBuffer encodeCurrentUserGame(@Nonnull final UUID userId,
+                                            @Nonnull final UserGameAssociation association) {
+        final var buffer = frame(1 + BinaryCodec.UUID_SIZE + BinaryCodec.encodedSize(association));
+        buffer.put(CURRENT_USER_GAME);
+        BinaryCodec.putUUID(buffer, userId);
+        BinaryCodec.encode(association, buffer);
+        return seal(buffer);
+    }
+
+    @Nonnull
+    static ByteBuffer encodeGameDelta(@Nonnull final UUID id, @Nonnull final GameDelta delta, final long version) {
+        final var runState = delta.runState();
+        final var recruiting = delta.recruiting();
+        final var addedUsers = delta.addedUsers();
+        final var buffer = frame(1 + BinaryCodec.UUID_SIZE + BinaryCodec.varintSize(version) + 1
+                + (runState == null ? 0 : 1)
+                + BinaryCodec.varintSize(addedUsers.size()) + addedUsers.size() * BinaryCodec.UUID_SIZE * 2);
+        buffer.put(GAME_DELTA);
+        BinaryCodec.putUUID(buffer, id);
+        BinaryCodec.putVarint(buffer, version);
+        byte flags = 0;
+        if (runState != null) {
+            flags |= HAS_RUN_STATE;
+        }
+        if (recruiting != null) {
+            flags |= HAS_RECRUITING;
+            if (recruiting) {
+                flags |= RECRUITING;
+            }
+        }
+        buffer.put(flags);
+        if (runState != null) {
+            buffer.put((byte) runState.ordinal());
+        }
+        BinaryCodec.putVarint(buffer, addedUsers.size());
+        for (var entry : addedUsers.entrySet()) {
+            BinaryCodec.putUUID(buffer, entry.getKey());
+            BinaryCodec.putUUID(buffer, entry.getValue());
+        }
+        return seal(buffer);
+    }
+
+    /**
+     * <p>
+     * Decode the record at the position of a buffer, advancing the position past the record.
+     * </p>
+     *
+     * @return Whether a complete, intact record was decoded.
+     * If not, the position of the buffer is unchanged and the handler has not been called.
+     * @throws IllegalArgumentException If an intact record has content that is not a valid entity.
+     */
+    static boolean decode(@Nonnull final ByteBuffer buffer, @Nonnull final Handler handler) {
+        final int start = buffer.position();
+        if (buffer.remaining() < FRAME_SIZE) {
+            return false;
+        }
+        final int contentSize = buffer.getInt(start);
+        final int checksum = buffer.getInt(start + Integer.BYTES);
+        if (contentSize < 1 || buffer.remaining() - FRAME_SIZE < contentSize) {
+            return false;
+        }
+        final var content = buffer.slice(start + FRAME_SIZE, contentSize);
+        final var crc = new CRC32C();
+        crc.update(content.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return false;
+        }
+        try {
+            decodeContent(content, handler);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed record", e);
+        }
+        buffer.position(start + FRAME_SIZE + contentSize);
+        return true;
+    }
+
+    private static void decodeContent(@Nonnull final ByteBuffer content, @Nonnull final Handler handler) {
+        final byte type = content.get();
+        switch (type) {
+            case GAME -> {
+                final var id = BinaryCodec.getUUID(content);
+                final var scenarioId = BinaryCodec.getUUID(content);
+                final long version = BinaryCodec.getVarint(content);
+                handler.game(id, scenarioId, BinaryCodec.decodeGameSnapshot(content), version);
+            }
+            case USER -> {
+                final var id = BinaryCodec.getUUID(content);
+                handler.user(id, BinaryCodec.decodeUser(content));
+            }
+            case CURRENT_USER_GAME -> {
+                final var userId = BinaryCodec.getUUID(content);
+                handler.currentUserGame(userId, BinaryCodec.decodeUserGameAssociation(content));
+            }
+            case GAME_DELTA -> {
+                final var id = BinaryCodec.getUUID(content);
+                final long version = BinaryCodec.getVarint(content);
+                handler.gameDelta(id, decodeGameDelta(content), version);
+            }
+            default -> throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    @Nonnull
+    private static GameDelta decodeGameDelta(@Nonnull final ByteBuffer content) {
+        final byte flags = content.get();
+        final Game.RunState runState = (flags & HAS_RUN_STATE) == 0 ? null : RUN_STATES[content.get()];
+        final Boolean recruiting = (flags & HAS_RECRUITING) == 0 ? null : (flags & RECRUITING) != 0;
+        final long count = BinaryCodec.getVarint(content);
+        if (content.remaining() < count * BinaryCodec.UUID_SIZE * 2) {
+            throw new IllegalArgumentException("Malformed game delta");
+        }
+        final Map<UUID, UUID> addedUsers = new HashMap<>();
+        for (long i = 0; i < count; ++i) {
+            addedUsers.put(BinaryCodec.getUUID(content), BinaryCodec.getUUID(content));
+        }
+        return new GameDelta(runState, recruiting, Collections.unmodifiableMap(addedUsers));
+    }
+
+    /**
+     * <p>
+     * Receives the entities of decoded records.
+     * </p>
+     */
+    interface Handler {
+
+        void game(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull GameSnapshot game, long version);
+
+        void gameDelta(@Nonnull UUID id, @Nonnull GameDelta delta, long version);
+
+        void user(@Nonnull UUID id, @Nonnull User user);
+
+        void currentUserGame(@Nonnull UUID userId, @Nonnull UserGameAssociation association);
+    }
+}
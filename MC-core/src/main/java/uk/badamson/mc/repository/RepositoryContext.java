@@ -0,0 +1,1506 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import uk.badamson.mc.*;
+import uk.badamson.mc.repository.MCRepository.ContextMode;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.OverridingMethodsMustInvokeSuper;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static uk.badamson.mc.repository.RepositoryMetrics.EntityType.*;
+import static uk.badamson.mc.repository.RepositoryMetrics.Operation.*;
+
+/**
+ * <p>
+ * The state and operations of a {@linkplain MCRepository.Context context} of a {@link MCRepository}.
+ * </p>
+ * <p>
+ * Contexts extend {@link MCRepository.Context}, which binds them to their repository.
+ * </p>
+ */
+@NotThreadSafe
+abstract class RepositoryContext implements AutoCloseable {
+
+    @Nonnull
+    private final MCRepository repository;
+    @Nullable
+    private final SharedCache sharedCache;
+    private final boolean cacheMisses;
+    @Nonnull
+    final ContextMode mode;
+    @Nullable
+    private final PendingWrites pendingWrites;
+
+    private final IdentityIndex<Game> gameToIdMap;
+    private final Map<UUID, FindGameResult> idToGameMap = new HashMap<>();
+    private final Map<UUID, GameBaseline> gameBaselines = new HashMap<>();
+    private final IdentityIndex<UserGameAssociation> userGameAssociationToIdMap;
+    private final Map<UUID, UserGameAssociation> idToUserGameAssociationMap = new HashMap<>();
+    private final IdentityIndex<User> userToIdMap;
+    private final Map<UUID, User> idToUserMap = new HashMap<>();
+    private final Map<String, User> usernameToUserMap = new HashMap<>();
+    private final Set<UUID> absentGameIds = new HashSet<>();
+    private final Set<UUID> absentCurrentUserGameIds = new HashSet<>();
+    private final Set<UUID> absentUserIds = new HashSet<>();
+    private final Set<String> absentUsernames = new HashSet<>();
+    private boolean haveAllGames = false;
+    private boolean haveAllUsers = false;
+    private final Map<UUID, Prefetch<FindGameResult>> prefetchedGames = new HashMap<>();
+    private final Map<UUID, Prefetch<UserGameAssociation>> prefetchedCurrentUserGames = new HashMap<>();
+    private final Map<UUID, Prefetch<User>> prefetchedUsers = new HashMap<>();
+    boolean bound = false;
+    @Nullable
+    MCRepository.Context enclosing;
+    int joins = 0;
+    private final ScenarioCatalogue.Snapshot scenarios;
+    private final RepositoryMetrics metrics;
+    private int writes = 0;
+
+    RepositoryContext(@Nonnull MCRepository repository, @Nonnull ContextMode mode) {
+        this.repository = Objects.requireNonNull(repository, "repository");
+        this.mode = Objects.requireNonNull(mode, "mode");
+        sharedCache = repository.getSharedCache().orElse(null);
+        cacheMisses = repository.isCacheMisses();
+        scenarios = repository.getScenarioCatalogue().getSnapshot();
+        metrics = repository.getMetrics();
+        pendingWrites = mode == ContextMode.WRITE_BEHIND ? new PendingWrites() : null;
+        // Only save operations need to find the ID of an entity object.
+        final boolean writable = mode != ContextMode.READ_ONLY;
+        gameToIdMap = new IdentityIndex<>(writable);
+        userGameAssociationToIdMap = new IdentityIndex<>(writable);
+        userToIdMap = new IdentityIndex<>(writable);
+    }
+
+    private static void requirePositive(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+    }
+
+    @Nonnull
+    public final ContextMode getMode() {
+        return mode;
+    }
+
+    private void requireWritable() {
+        if (mode == ContextMode.READ_ONLY) {
+            throw new IllegalStateException("read-only context");
+        }
+    }
+
+
+    @Nonnull
+    public final Optional<Scenario> findScenario(@Nonnull UUID id) {
+        return scenarios.findScenario(id);
+    }
+
+    @Nonnull
+    public final Iterable<Map.Entry<UUID, Scenario>> findAllScenarios() {
+        return scenarios.getScenarios().entrySet();
+    }
+
+
+
+    public final void addGame(@Nonnull UUID id, @Nonnull Game game) {
+        requireWritable();
+        if (gameToIdMap.containsKey(game) || idToGameMap.containsKey(id)) {
+            throw new IllegalStateException("already present");
+        }
+        final var scenario = game.getScenario();
+        Objects.requireNonNull(scenario);
+        final var scenarioId = scenarios.findId(scenario);
+        Objects.requireNonNull(scenarioId);
+        final var result = new FindGameResult(game, scenarioId);
+        gameToIdMap.put(game, id);
+        idToGameMap.put(id, result);
+        absentGameIds.remove(id);
+        ++writes;
+        if (pendingWrites != null) {
+            pendingWrites.addedGames.put(id, result);
+        } else {
+            timedRun(ADD_GAME, () -> addGameUncached(id, scenarioId, game));
+            if (sharedCache != null) {
+                sharedCache.invalidateGame(id);
+            }
+        }
+        gameBaselines.put(id, new GameBaseline(scenarioId, game));
+        changed(ChangeEvent.gameCreated(id, game.getRunState()));
+        if (!game.getUsers().isEmpty()) {
+            gameChanged(id, new GameDelta(null, null, game.getUsers()));
+        }
+    }
+
+    /**
+     * <p>
+     * Save a game that was retrieved or added through this context,
+     * provided that the saved game has not been updated since this context retrieved it.
+     * On such a conflict, this context discards the game, so finding it again retrieves the saved game;
+     * a {@linkplain ContextMode#WRITE_BEHIND write-behind} context detects the conflict when
+     * {@linkplain #flush() flushed}.
+     * A {@linkplain ContextMode#WRITE_THROUGH write-through} context saves only the changes since it
+     * retrieved or last saved the game, as a {@link GameDelta}, where it can.
+     * </p>
+     *
+     * @throws IllegalStateException    <ul>
+     *                                  <li>If the game was not retrieved or added through this context.</li>
+     *                                  <li>If this is a {@linkplain ContextMode#READ_ONLY read-only} context.</li>
+     *                                  </ul>
+     * @throws VersionConflictException If the saved game has been updated since this context retrieved it.
+     */
+    public final void updateGame(@Nonnull Game game) throws VersionConflictException {
+        requireWritable();
+        final var scenario = game.getScenario();
+        final var id = gameToIdMap.get(game);
+        if (id == null) {
+            throw new IllegalStateException("not present");
+        }
+        Objects.requireNonNull(scenario);
+        final var scenarioId = scenarios.findId(scenario);
+        final long version = idToGameMap.get(id).version();
+        final var baseline = gameBaselines.get(id);
+        final var changes = baseline == null ? null : baseline.changesTo(game);
+        ++writes;
+        if (pendingWrites != null) {
+            pendingWrites.saveGame(id, new FindGameResult(game, scenarioId, version));
+        } else {
+            final var delta = baseline == null || !baseline.canChangeTo(scenarioId, game) ? null : changes;
+            try {
+                if (delta == null) {
+                    timedRun(UPDATE_GAME, () -> updateGameUncached(id, scenarioId, game, version));
+                } else {
+                    timedRun(UPDATE_GAME, () -> updateGameUncached(id, scenarioId, game, delta, version));
+                }
+            } catch (VersionConflictException e) {
+                forgetGame(id);
+                throw e;
+            } finally {
+                if (sharedCache != null) {
+                    sharedCache.invalidateGame(id);
+                }
+            }
+            idToGameMap.put(id, new FindGameResult(game, scenarioId, version + 1));
+        }
+        gameBaselines.put(id, new GameBaseline(scenarioId, game));
+        if (changes != null) {
+            gameChanged(id, changes);
+        }
+    }
+
+    private void gameChanged(@Nonnull UUID id, @Nonnull GameDelta changes) {
+        if (changes.runState() != null) {
+            changed(ChangeEvent.gameRunStateChanged(id, changes.runState()));
+        }
+        if (Boolean.FALSE.equals(changes.recruiting())) {
+            changed(ChangeEvent.gameRecruitmentEnded(id));
+        }
+        changes.addedUsers().forEach((character, user) ->
+                changed(ChangeEvent.userJoinedGame(id, character, user)));
+    }
+
+    private void changed(@Nonnull ChangeEvent event) {
+        if (!repository.changeEvents.hasSubscribers()) {
+            return;
+        }
+        if (pendingWrites != null) {
+            pendingWrites.events.add(event);
+        } else {
+            repository.changeEvents.publish(List.of(event));
+        }
+    }
+
+    @Nonnull
+    public final Optional<FindGameResult> findGame(@Nonnull UUID id) {
+        var result = idToGameMap.get(id);
+        if (result != null || absentGameIds.contains(id)) {
+            metrics.hit(GAME);
+            return Optional.ofNullable(result);
+        }
+        final var prefetched = prefetchedGames.remove(id);
+        final long stamp;
+        final Optional<FindGameResult> resultOptional;
+        if (prefetched != null) {
+            metrics.miss(GAME);
+            stamp = prefetched.stamp();
+            resultOptional = prefetched.join();
+        } else {
+            if (sharedCache != null) {
+                result = sharedCache.getGame(id);
+                if (result != null) {
+                    metrics.hit(GAME);
+                    cacheGame(id, result);
+                    return Optional.of(result);
+                } else if (sharedCache.isGameAbsent(id)) {
+                    metrics.hit(GAME);
+                    cacheMiss(absentGameIds, id);
+                    return Optional.empty();
+                }
+            }
+            metrics.miss(GAME);
+            stamp = sharedCache == null ? 0L : sharedCache.gameStamp(id);
+            resultOptional = timed(FIND_GAME, () -> findGameUncached(id));
+        }
+        if (resultOptional.isPresent()) {
+            result = resultOptional.get();
+            if (sharedCache != null) {
+                sharedCache.putGame(id, result, stamp);
+            }
+            cacheGame(id, result);
+        } else {
+            if (sharedCache != null) {
+                sharedCache.putGameAbsent(id, stamp);
+            }
+            cacheMiss(absentGameIds, id);
+        }
+        return resultOptional;
+    }
+
+    /**
+     * <p>
+     * Begin to retrieve, using {@link #findGameUncachedAsync(UUID)}, a game that this context will later be
+     * asked to {@linkplain #findGame(UUID) find}, so several entities can be retrieved concurrently.
+     * The later find waits for the retrieval, and throws any exception it threw.
+     * This does nothing if the game is already held or cached, or if the asynchronous executor rejects the
+     * retrieval. Unused retrievals are cancelled when this context is closed.
+     * </p>
+     */
+    public final void prefetchGame(@Nonnull UUID id) {
+        Objects.requireNonNull(id, "id");
+        if (idToGameMap.containsKey(id) || absentGameIds.contains(id) || prefetchedGames.containsKey(id)) {
+            return;
+        }
+        if (sharedCache != null && (sharedCache.getGame(id) != null || sharedCache.isGameAbsent(id))) {
+            return;
+        }
+        final long stamp = sharedCache == null ? 0L : sharedCache.gameStamp(id);
+        prefetch(prefetchedGames, id, FIND_GAME, () -> findGameUncachedAsync(id), stamp);
+    }
+
+    /**
+     * <p>
+     * As for {@link #findGame(UUID)} for each ID, but retrieving the games not already held or cached
+     * through one call of {@link #findGamesUncached(Set)}.
+     * </p>
+     *
+     * @param ids The IDs of the games to find.
+     * @return A map of the games found, indexed by their IDs, iterating in the order of {@code ids}.
+     * The map has no entries for the IDs of games that do not exist.
+     */
+    @Nonnull
+    public final Map<UUID, FindGameResult> findGames(@Nonnull Collection<UUID> ids) {
+        Objects.requireNonNull(ids, "ids");
+        final Map<UUID, FindGameResult> result = new LinkedHashMap<>();
+        final Map<UUID, Long> missing = new LinkedHashMap<>();
+        for (final var id : ids) {
+            Objects.requireNonNull(id, "id");
+            var game = idToGameMap.get(id);
+            if (game == null && !absentGameIds.contains(id) && sharedCache != null) {
+                game = sharedCache.getGame(id);
+                if (game != null) {
+                    cacheGame(id, game);
+                } else if (sharedCache.isGameAbsent(id)) {
+                    cacheMiss(absentGameIds, id);
+                } else {
+                    missing.put(id, sharedCache.gameStamp(id));
+                }
+            } else if (game == null && !absentGameIds.contains(id)) {
+                missing.put(id, 0L);
+            }
+            if (missing.containsKey(id)) {
+                metrics.miss(GAME);
+            } else {
+                metrics.hit(GAME);
+            }
+            result.put(id, game);
+        }
+        if (!missing.isEmpty()) {
+            final var found = timed(FIND_GAMES,
+                    () -> findGamesUncached(Collections.unmodifiableSet(missing.keySet())));
+            missing.forEach((id, stamp) -> {
+                final var game = found.get(id);
+                if (game != null) {
+                    if (sharedCache != null) {
+                        sharedCache.putGame(id, game, stamp);
+                    }
+                    cacheGame(id, game);
+                    result.put(id, game);
+                } else {
+                    if (sharedCache != null) {
+                        sharedCache.putGameAbsent(id, stamp);
+                    }
+                    cacheMiss(absentGameIds, id);
+                }
+            });
+        }
+        result.values().removeIf(Objects::isNull);
+        return result;
+    }
+
+    private <KEY> void cacheMiss(@Nonnull Set<KEY> absent, @Nonnull KEY key) {
+        if (cacheMisses) {
+            absent.add(key);
+        }
+    }
+
+    @Nonnull
+    public final Iterable<Map.Entry<UUID, FindGameResult>> findAllGames() {
+        if (!haveAllGames) {
+            metrics.fullScan(GAME);
+            timed(FIND_ALL_GAMES, this::findAllGamesUncached).forEach(entry -> {
+                // Do not replace games that might have been modified through this context
+                if (!idToGameMap.containsKey(entry.getKey())) {
+                    cacheGame(entry.getKey(), entry.getValue());
+                }
+            });
+            haveAllGames = true;
+        }
+        return Set.copyOf(idToGameMap.entrySet());
+    }
+
+    /**
+     * <p>
+     * Retrieve one page of the sequence of all saved games,
+     * without retaining them in this context (unlike {@link #findAllGames()}).
+     * The page contains the held object of any game this context already holds,
+     * but not games added through this context that are not yet saved.
+     * </p>
+     *
+     * @param order The order of the games in the sequence.
+     * @param after The position in the sequence at which the page starts,
+     *              as given by the {@linkplain Page#next() next token} of the previous page,
+     *              or null for the first page.
+     * @param size  The maximum number of games in the page.
+     * @throws IllegalArgumentException If {@code size} is not positive.
+     */
+    @Nonnull
+    public final Page<Map.Entry<UUID, FindGameResult>> findGames(
+            @Nonnull PageOrder order, @Nullable PageToken after, int size) {
+        Objects.requireNonNull(order, "order");
+        requirePositive(size);
+        final var entries = timed(FIND_GAMES_PAGE, () -> findGamesPageUncached(order, after, size)).stream()
+                .map(entry -> {
+                    final var held = idToGameMap.get(entry.getKey());
+                    return held == null ? entry : Map.entry(entry.getKey(), held);
+                })
+                .toList();
+        PageToken next = null;
+        if (entries.size() == size) {
+            final var last = entries.get(size - 1);
+            next = new PageToken(last.getKey(),
+                    order == PageOrder.CREATED ? last.getValue().game().getCreated() : null);
+        }
+        return new Page<>(entries, next);
+    }
+
+    /**
+     * <p>
+     * A stream of all the saved games, which retrieves the games a {@linkplain #findGames(PageOrder, PageToken, int)
+     * page} at a time, and may be used only while this context is open.
+     * </p>
+     *
+     * @throws IllegalArgumentException If {@code pageSize} is not positive.
+     */
+    @Nonnull
+    public final Stream<Map.Entry<UUID, FindGameResult>> streamAllGames(@Nonnull PageOrder order, int pageSize) {
+        Objects.requireNonNull(order, "order");
+        requirePositive(pageSize);
+        return Page.stream(after -> findGames(order, after, pageSize));
+    }
+
+    /**
+     * <p>
+     * The IDs of all the games, including games added through this context but not yet saved,
+     * using {@link #findAllGameIdsUncached()}.
+     * </p>
+     *
+     * @return a modifiable set.
+     */
+    @Nonnull
+    public final Set<UUID> findAllGameIds() {
+        final Set<UUID> result = new HashSet<>(idToGameMap.keySet());
+        if (!haveAllGames) {
+            timed(FIND_ALL_GAME_IDS, this::findAllGameIdsUncached).forEach(result::add);
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * The IDs, scenarios and creation times of all the games,
+     * including games added through this context but not yet saved,
+     * using {@link #findAllGameScenariosUncached()}.
+     * </p>
+     */
+    @Nonnull
+    public final Collection<GameScenarioProjection> findAllGameScenarios() {
+        final Map<UUID, GameScenarioProjection> result = new HashMap<>();
+        if (!haveAllGames) {
+            timed(FIND_ALL_GAME_SCENARIOS, this::findAllGameScenariosUncached)
+                    .forEach(projection -> result.put(projection.id(), projection));
+        }
+        idToGameMap.forEach((id, findGameResult) -> result.put(id, new GameScenarioProjection(
+                id, findGameResult.scenarioId(), findGameResult.game().getCreated())));
+        return result.values();
+    }
+
+    /**
+     * <p>
+     * The IDs, run states and recruiting flags of all the games, using {@link #findAllGameStatesUncached()},
+     * including the current states of games added or modified through this context.
+     * </p>
+     */
+    @Nonnull
+    public final Collection<GameStateProjection> findAllGameStates() {
+        final Map<UUID, GameStateProjection> result = new HashMap<>();
+        if (!haveAllGames) {
+            timed(FIND_ALL_GAME_STATES, this::findAllGameStatesUncached)
+                    .forEach(projection -> result.put(projection.id(), projection));
+        }
+        idToGameMap.forEach((id, findGameResult) -> {
+            final var game = findGameResult.game();
+            result.put(id, new GameStateProjection(id, game.getRunState(), game.isRecruiting()));
+        });
+        return result.values();
+    }
+
+    /**
+     * <p>
+     * The IDs and {@linkplain Game#getCreated() creation times} of the games of a given scenario,
+     * including games added through this context but not yet saved,
+     * using {@link #findGameIdsOfScenarioUncached(UUID)}.
+     * </p>
+     *
+     * @return a modifiable map of game IDs to creation times.
+     */
+    @Nonnull
+    public final Map<UUID, Instant> findGameIdsOfScenario(@Nonnull UUID scenarioId) {
+        Objects.requireNonNull(scenarioId, "scenarioId");
+        final Map<UUID, Instant> result = new HashMap<>();
+        if (!haveAllGames) {
+            for (var entry : timed(FIND_GAME_IDS_OF_SCENARIO, () -> findGameIdsOfScenarioUncached(scenarioId))) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (var entry : idToGameMap.entrySet()) {
+            final var findGameResult = entry.getValue();
+            if (scenarioId.equals(findGameResult.scenarioId())) {
+                result.put(entry.getKey(), findGameResult.game().getCreated());
+            }
+        }
+        return result;
+    }
+
+    private void cacheGame(@Nonnull UUID id, @Nonnull FindGameResult findGameResult) {
+        gameToIdMap.put(findGameResult.game(), id);
+        idToGameMap.put(id, findGameResult);
+        if (mode != ContextMode.READ_ONLY) {// only updates use the baselines
+            gameBaselines.put(id, new GameBaseline(findGameResult.scenarioId(), findGameResult.game()));
+        }
+    }
+
+    private void forgetGame(@Nonnull UUID id) {
+        gameBaselines.remove(id);
+        final var result = idToGameMap.remove(id);
+        if (result != null) {
+            gameToIdMap.remove(result.game());
+        }
+        haveAllGames = false;
+    }
+
+    @Nonnull
+    public final Optional<UserGameAssociation> findCurrentUserGame(@Nonnull UUID id) {
+        var game = idToUserGameAssociationMap.get(id);
+        if (game != null || absentCurrentUserGameIds.contains(id)) {
+            metrics.hit(CURRENT_USER_GAME);
+            return Optional.ofNullable(game);
+        }
+        final var prefetched = prefetchedCurrentUserGames.remove(id);
+        final long stamp;
+        final Optional<UserGameAssociation> result;
+        if (prefetched != null) {
+            metrics.miss(CURRENT_USER_GAME);
+            stamp = prefetched.stamp();
+            result = prefetched.join();
+        } else {
+            if (sharedCache != null) {
+                game = sharedCache.getCurrentUserGame(id);
+                if (game != null) {
+                    metrics.hit(CURRENT_USER_GAME);
+                    cacheCurrentUserGame(id, game);
+                    return Optional.of(game);
+                } else if (sharedCache.isCurrentUserGameAbsent(id)) {
+                    metrics.hit(CURRENT_USER_GAME);
+                    cacheMiss(absentCurrentUserGameIds, id);
+                    return Optional.empty();
+                }
+            }
+            metrics.miss(CURRENT_USER_GAME);
+            stamp = sharedCache == null ? 0L : sharedCache.currentUserGameStamp(id);
+            result = timed(FIND_CURRENT_USER_GAME, () -> findCurrentUserGameUncached(id));
+        }
+        if (result.isPresent()) {
+            game = result.get();
+            if (sharedCache != null) {
+                sharedCache.putCurrentUserGame(id, game, stamp);
+            }
+            cacheCurrentUserGame(id, game);
+        } else {
+            if (sharedCache != null) {
+                sharedCache.putCurrentUserGameAbsent(id, stamp);
+            }
+            cacheMiss(absentCurrentUserGameIds, id);
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Begin to retrieve the current game of a user, as for {@link #prefetchGame(UUID)}.
+     * </p>
+     */
+    public final void prefetchCurrentUserGame(@Nonnull UUID id) {
+        Objects.requireNonNull(id, "id");
+        if (idToUserGameAssociationMap.containsKey(id) || absentCurrentUserGameIds.contains(id)
+                || prefetchedCurrentUserGames.containsKey(id)) {
+            return;
+        }
+        if (sharedCache != null
+                && (sharedCache.getCurrentUserGame(id) != null || sharedCache.isCurrentUserGameAbsent(id))) {
+            return;
+        }
+        final long stamp = sharedCache == null ? 0L : sharedCache.currentUserGameStamp(id);
+        prefetch(prefetchedCurrentUserGames, id, FIND_CURRENT_USER_GAME,
+                () -> findCurrentUserGameUncachedAsync(id), stamp);
+    }
+
+    private void cacheCurrentUserGame(@Nonnull UUID id, @Nonnull UserGameAssociation game) {
+        userGameAssociationToIdMap.put(game, id);
+        idToUserGameAssociationMap.put(id, game);
+    }
+
+    public final void addCurrentUserGame(@Nonnull UUID id, @Nonnull UserGameAssociation entry) {
+        requireWritable();
+        if (userGameAssociationToIdMap.containsKey(entry) || idToUserGameAssociationMap.containsKey(id)) {
+            throw new IllegalStateException("already present");
+        }
+        cacheCurrentUserGame(id, entry);
+        absentCurrentUserGameIds.remove(id);
+        ++writes;
+        if (pendingWrites != null) {
+            pendingWrites.addedCurrentUserGames.put(id, entry);
+        } else {
+            timedRun(ADD_CURRENT_USER_GAME, () -> addCurrentUserGameUncached(id, entry));
+            if (sharedCache != null) {
+                sharedCache.invalidateCurrentUserGame(id);
+            }
+        }
+    }
+
+    public final void updateCurrentUserGame(@Nonnull UserGameAssociation entry) {
+        requireWritable();
+        final var id = userGameAssociationToIdMap.get(entry);
+        if (id == null) {
+            throw new IllegalStateException("not present");
+        }
+        ++writes;
+        if (pendingWrites != null) {
+            pendingWrites.saveCurrentUserGame(id, entry);
+        } else {
+            timedRun(UPDATE_CURRENT_USER_GAME, () -> updateCurrentUserGameUncached(id, entry));
+            if (sharedCache != null) {
+                sharedCache.invalidateCurrentUserGame(id);
+            }
+        }
+    }
+
+    public final void addUser(@Nonnull UUID id, @Nonnull User user) {
+        requireWritable();
+        if (userToIdMap.containsKey(user) || idToUserMap.containsKey(id)) {
+            throw new IllegalStateException("already present");
+        }
+        cacheUser(id, user);
+        absentUserIds.remove(id);
+        absentUsernames.remove(user.getUsername());
+        ++writes;
+        if (pendingWrites != null) {
+            pendingWrites.addedUsers.put(id, user);
+        } else {
+            timedRun(ADD_USER, () -> addUserUncached(id, user));
+            if (sharedCache != null) {
+                sharedCache.invalidateUser(id, user.getUsername());
+            }
+        }
+        changed(ChangeEvent.userAdded(id));
+    }
+
+    public final void updateUser(@Nonnull User user) {
+        requireWritable();
+        final var id = userToIdMap.get(user);
+        if (id == null) {
+            throw new IllegalStateException("not present");
+        }
+        ++writes;
+        if (pendingWrites != null) {
+            pendingWrites.saveUser(id, user);
+        } else {
+            timedRun(UPDATE_USER, () -> updateUserUncached(id, user));
+            if (sharedCache != null) {
+                sharedCache.invalidateUser(id, user.getUsername());
+            }
+        }
+    }
+
+    @Nonnull
+    public final Optional<User> findUser(@Nonnull UUID id) {
+        var user = idToUserMap.get(id);
+        if (user != null || absentUserIds.contains(id)) {
+            metrics.hit(USER);
+            return Optional.ofNullable(user);
+        }
+        final var prefetched = prefetchedUsers.remove(id);
+        final long stamp;
+        final Optional<User> result;
+        if (prefetched != null) {
+            metrics.miss(USER);
+            stamp = prefetched.stamp();
+            result = prefetched.join();
+        } else {
+            if (sharedCache != null) {
+                user = sharedCache.getUser(id);
+                if (user != null) {
+                    metrics.hit(USER);
+                    cacheUser(id, user);
+                    return Optional.of(user);
+                } else if (sharedCache.isUserAbsent(id)) {
+                    metrics.hit(USER);
+                    cacheMiss(absentUserIds, id);
+                    return Optional.empty();
+                }
+            }
+            metrics.miss(USER);
+            stamp = sharedCache == null ? 0L : sharedCache.userStamp(id);
+            result = timed(FIND_USER, () -> findUserUncached(id));
+        }
+        if (result.isPresent()) {
+            user = result.get();
+            if (sharedCache != null) {
+                sharedCache.putUser(id, user, stamp);
+            }
+            cacheUser(id, user);
+        } else {
+            if (sharedCache != null) {
+                sharedCache.putUserAbsent(id, stamp);
+            }
+            cacheMiss(absentUserIds, id);
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Begin to retrieve a user, as for {@link #prefetchGame(UUID)}.
+     * </p>
+     */
+    public final void prefetchUser(@Nonnull UUID id) {
+        Objects.requireNonNull(id, "id");
+        if (idToUserMap.containsKey(id) || absentUserIds.contains(id) || prefetchedUsers.containsKey(id)) {
+            return;
+        }
+        if (sharedCache != null && (sharedCache.getUser(id) != null || sharedCache.isUserAbsent(id))) {
+            return;
+        }
+        final long stamp = sharedCache == null ? 0L : sharedCache.userStamp(id);
+        prefetch(prefetchedUsers, id, FIND_USER, () -> findUserUncachedAsync(id), stamp);
+    }
+
+    @Nonnull
+    public final Optional<User> findUserByUsername(@Nonnull String username) {
+        var user = usernameToUserMap.get(username);
+        if (user != null || absentUsernames.contains(username)) {
+            metrics.hit(USER);
+            return Optional.ofNullable(user);
+        }
+        final Optional<User> result;
+        if (sharedCache == null) {
+            metrics.miss(USER);
+            result = timed(FIND_USER_BY_USERNAME, () -> findUserForUsernameUncached(username));
+        } else {
+            final var cachedId = sharedCache.getUserId(username);
+            if (cachedId != null) {
+                final var cached = findUser(cachedId);
+                if (cached.isPresent() && cached.get().getUsername().equals(username)) {
+                    usernameToUserMap.put(username, cached.get());
+                    return cached;
+                }
+                /* The user has been renamed or removed since the mapping was cached,
+                 * and the cache did not know the old username, so look up the username afresh. */
+                sharedCache.invalidateUsername(username);
+            } else if (sharedCache.isUsernameAbsent(username)) {
+                metrics.hit(USER);
+                cacheMiss(absentUsernames, username);
+                return Optional.empty();
+            }
+            metrics.miss(USER);
+            final long stamp = sharedCache.usernameStamp(username);
+            result = timed(FIND_USER_BY_USERNAME, () -> findUserForUsernameUncached(username));
+            /* The ID of the user was not known before the lookup, so there is no stamp with which to
+             * safely put the user in the shared cache; only the username mapping is cached. */
+            if (result.isPresent()) {
+                sharedCache.putUserId(username, result.get().getId(), stamp);
+            } else {
+                sharedCache.putUsernameAbsent(username, stamp);
+            }
+        }
+        if (result.isPresent()) {
+            final var found = result.get();
+            final var held = idToUserMap.get(found.getId());
+            if (held != null) {// do not replace a user that might have been modified through this context
+                usernameToUserMap.put(username, held);
+                return Optional.of(held);
+            }
+            cacheUser(found.getId(), found);
+            absentUserIds.remove(found.getId());
+        } else {
+            cacheMiss(absentUsernames, username);
+        }
+        return result;
+    }
+
+    @Nonnull
+    public final Iterable<User> findAllUsers() {
+        if (!haveAllUsers) {
+            metrics.fullScan(USER);
+            timed(FIND_ALL_USERS, this::findAllUsersUncached).forEach(entry -> {
+                final var id = entry.getKey();
+                final var user = entry.getValue();
+                if (!idToUserMap.containsKey(id)) {
+                    cacheUser(id, user);
+                }
+            });
+            haveAllUsers = true;
+        }
+        return List.copyOf(idToUserMap.values());
+    }
+
+    /**
+     * <p>
+     * Retrieve one page of the sequence of all saved users, in {@linkplain PageOrder#ID ID order},
+     * as for {@link #findGames(PageOrder, PageToken, int)}.
+     * </p>
+     *
+     * @param after The ID of the last user of the previous page, as given by the
+     *              {@linkplain Page#next() next token} of the previous page,
+     *              or null for the first page.
+     * @param size  The maximum number of users in the page.
+     * @throws IllegalArgumentException If {@code size} is not positive.
+     */
+    @Nonnull
+    public final Page<User> findUsers(@Nullable PageToken after, int size) {
+        requirePositive(size);
+        final var entries = timed(FIND_USERS_PAGE,
+                        () -> findUsersPageUncached(after == null ? null : after.id(), size)).stream()
+                .map(entry -> {
+                    final var held = idToUserMap.get(entry.getKey());
+                    return held == null ? entry.getValue() : held;
+                })
+                .toList();
+        final var next = entries.size() == size ? new PageToken(entries.get(size - 1).getId(), null) : null;
+        return new Page<>(entries, next);
+    }
+
+    /**
+     * <p>
+     * A stream of all the saved users, which retrieves the users a {@linkplain #findUsers(PageToken, int) page}
+     * at a time, and may be used only while this context is open.
+     * </p>
+     *
+     * @throws IllegalArgumentException If {@code pageSize} is not positive.
+     */
+    @Nonnull
+    public final Stream<User> streamAllUsers(int pageSize) {
+        requirePositive(pageSize);
+        return Page.stream(after -> findUsers(after, pageSize));
+    }
+
+    /**
+     * <p>
+     * As for {@link #findUser(UUID)} for each ID, but retrieving the users not already held or cached
+     * through one call of {@link #findUsersUncached(Set)}.
+     * </p>
+     *
+     * @param ids The IDs of the users to find.
+     * @return A map of the users found, indexed by their IDs, iterating in the order of {@code ids}.
+     * The map has no entries for the IDs of users that do not exist.
+     */
+    @Nonnull
+    public final Map<UUID, User> findUsers(@Nonnull Collection<UUID> ids) {
+        Objects.requireNonNull(ids, "ids");
+        final Map<UUID, User> result = new LinkedHashMap<>();
+        final Map<UUID, Long> missing = new LinkedHashMap<>();
+        for (final var id : ids) {
+            Objects.requireNonNull(id, "id");
+            var user = idToUserMap.get(id);
+            if (user == null && !absentUserIds.contains(id) && sharedCache != null) {
+                user = sharedCache.getUser(id);
+                if (user != null) {
+                    cacheUser(id, user);
+                } else if (sharedCache.isUserAbsent(id)) {
+                    cacheMiss(absentUserIds, id);
+                } else {
+                    missing.put(id, sharedCache.userStamp(id));
+                }
+            } else if (user == null && !absentUserIds.contains(id)) {
+                missing.put(id, 0L);
+            }
+            if (missing.containsKey(id)) {
+                metrics.miss(USER);
+            } else {
+                metrics.hit(USER);
+            }
+            result.put(id, user);
+        }
+        if (!missing.isEmpty()) {
+            final var found = timed(FIND_USERS,
+                    () -> findUsersUncached(Collections.unmodifiableSet(missing.keySet())));
+            missing.forEach((id, stamp) -> {
+                final var user = found.get(id);
+                if (user != null) {
+                    if (sharedCache != null) {
+                        sharedCache.putUser(id, user, stamp);
+                    }
+                    cacheUser(id, user);
+                    result.put(id, user);
+                } else {
+                    if (sharedCache != null) {
+                        sharedCache.putUserAbsent(id, stamp);
+                    }
+                    cacheMiss(absentUserIds, id);
+                }
+            });
+        }
+        result.values().removeIf(Objects::isNull);
+        return result;
+    }
+
+    private void cacheUser(UUID id, User user) {
+        userToIdMap.put(user, id);
+        idToUserMap.put(id, user);
+        usernameToUserMap.put(user.getUsername(), user);
+    }
+
+    @Nonnull
+    public MCRepository getRepository() {
+        return repository;
+    }
+
+    /**
+     * <p>
+     * Perform all the save operations that this {@linkplain ContextMode#WRITE_BEHIND write-behind} context
+     * has deferred, through one call of {@link #saveUncached(WriteBatch)}.
+     * Other contexts do not defer save operations.
+     * </p>
+     *
+     * @throws RuntimeException If not all save operations could be performed.
+     *                          The deferred save operations are nevertheless discarded.
+     */
+    public final void flush() throws RuntimeException {
+        if (pendingWrites == null || pendingWrites.isEmpty()) {
+            return;
+        }
+        final var batch = pendingWrites.toBatch();
+        final var events = List.copyOf(pendingWrites.events);
+        pendingWrites.clear();
+        try {
+            timedRun(SAVE, () -> saveUncached(batch));
+        } catch (VersionConflictException e) {
+            forgetGame(e.getGameId());
+            throw e;
+        } finally {
+            if (sharedCache != null) {
+                invalidate(sharedCache, batch);
+            }
+        }
+        batch.updatedGames().forEach((id, saved) -> idToGameMap.computeIfPresent(id, (k, held) ->
+                held.version() == saved.version()
+                        ? new FindGameResult(held.game(), held.scenarioId(), held.version() + 1)
+                        : held));
+        repository.changeEvents.publish(events);
+    }
+
+    private void invalidate(@Nonnull SharedCache cache, @Nonnull WriteBatch batch) {
+        batch.addedUsers().forEach((id, user) -> cache.invalidateUser(id, user.getUsername()));
+        batch.updatedUsers().forEach((id, user) -> cache.invalidateUser(id, user.getUsername()));
+        batch.addedGames().keySet().forEach(cache::invalidateGame);
+        batch.updatedGames().keySet().forEach(cache::invalidateGame);
+        batch.addedCurrentUserGames().keySet().forEach(cache::invalidateCurrentUserGame);
+        batch.updatedCurrentUserGames().keySet().forEach(cache::invalidateCurrentUserGame);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Save operations performed through this context are not guaranteed to have been performed
+     * until normal return from this method. That is, the implementation may cache save (write) operations.
+     * Closing a context that was {@linkplain MCRepository#joinContext() joined} while it was
+     * {@linkplain MCRepository#getCurrentContext() current} merely ends that use of it.
+     * </p>
+     *
+     * @throws RuntimeException If not all save operations could be performed.
+     *                          This class is however not required to provide transaction semantics:
+     *                          if it throws an exception, some saves might have been performed and some might not.
+     */
+    @Override
+    @OverridingMethodsMustInvokeSuper
+    public void close() throws RuntimeException {
+        if (0 < joins) {
+            --joins;
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            clear();
+            unbind();
+            metrics.contextClosed(writes);
+            writes = 0;
+        }
+    }
+
+    /**
+     * <p>
+     * As for {@link #close()} (which this does not call), but beginning the deferred save operations
+     * through {@link #saveUncachedAsync(WriteBatch)} rather than waiting for them.
+     * </p>
+     *
+     * @return A future that completes when all the deferred save operations have been performed,
+     * or exceptionally if not all could be performed.
+     */
+    @Nonnull
+    public final CompletableFuture<Void> closeAsync() {
+        if (0 < joins) {
+            --joins;
+            return CompletableFuture.completedFuture(null);
+        }
+        final WriteBatch batch;
+        final List<ChangeEvent> events;
+        if (pendingWrites == null || pendingWrites.isEmpty()) {
+            batch = null;
+            events = List.of();
+        } else {
+            batch = pendingWrites.toBatch();
+            events = List.copyOf(pendingWrites.events);
+            pendingWrites.clear();
+        }
+        clear();
+        unbind();
+        metrics.contextClosed(writes);
+        writes = 0;
+        if (batch == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final var cache = sharedCache;
+        final var saved = timedAsync(SAVE, () -> saveUncachedAsync(batch));
+        final var invalidated = cache == null ? saved
+                : saved.whenComplete((ignored, e) -> invalidate(cache, batch));
+        return invalidated.thenRun(() -> repository.changeEvents.publish(events));
+    }
+
+    private <RESULT> RESULT timed(@Nonnull RepositoryMetrics.Operation operation,
+                                  @Nonnull Supplier<RESULT> call) {
+        if (metrics == RepositoryMetrics.NO_OP) {
+            return call.get();
+        }
+        final long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            metrics.call(operation, System.nanoTime() - start);
+        }
+    }
+
+    private void timedRun(@Nonnull RepositoryMetrics.Operation operation, @Nonnull Runnable call) {
+        timed(operation, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    private <VALUE> void prefetch(@Nonnull Map<UUID, Prefetch<VALUE>> prefetches, @Nonnull UUID id,
+                                  @Nonnull RepositoryMetrics.Operation operation,
+                                  @Nonnull Supplier<CompletableFuture<Optional<VALUE>>> call, long stamp) {
+        final CompletableFuture<Optional<VALUE>> future;
+        try {
+            future = timedAsync(operation, call);
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        prefetches.put(id, new Prefetch<>(future, stamp));
+    }
+
+    @Nonnull
+    private <RESULT> CompletableFuture<RESULT> timedAsync(@Nonnull RepositoryMetrics.Operation operation,
+                                                          @Nonnull Supplier<CompletableFuture<RESULT>> call) {
+        if (metrics == RepositoryMetrics.NO_OP) {
+            return call.get();
+        }
+        final long start = System.nanoTime();
+        final var future = call.get();
+        final var receiver = metrics;
+        future.whenComplete((ignored, e) -> receiver.call(operation, System.nanoTime() - start));
+        return future;
+    }
+
+    private void unbind() {
+        if (bound) {
+            if (repository.currentContext.get() == this) {
+                if (enclosing == null) {
+                    repository.currentContext.remove();
+                } else {
+                    repository.currentContext.set(enclosing);
+                }
+            }
+            bound = false;
+            enclosing = null;
+        }
+    }
+
+    private void clear() {
+        gameToIdMap.clear();
+        idToGameMap.clear();
+        gameBaselines.clear();
+        haveAllGames = false;
+        userGameAssociationToIdMap.clear();
+        idToUserGameAssociationMap.clear();
+        userToIdMap.clear();
+        idToUserMap.clear();
+        usernameToUserMap.clear();
+        absentGameIds.clear();
+        absentCurrentUserGameIds.clear();
+        absentUserIds.clear();
+        absentUsernames.clear();
+        haveAllUsers = false;
+        Prefetch.cancelAll(prefetchedGames);
+        Prefetch.cancelAll(prefetchedCurrentUserGames);
+        Prefetch.cancelAll(prefetchedUsers);
+    }
+
+    protected abstract void addGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game);
+
+    protected abstract void updateGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game);
+
+    /**
+     * <p>
+     * Update a saved game, provided that its {@linkplain FindGameResult#version() version} is the
+     * {@code expectedVersion}, incrementing the version.
+     * The default implementation is unconditional; backing stores that can compare-and-set should override it.
+     * </p>
+     *
+     * @throws VersionConflictException If the version of the saved game is not the {@code expectedVersion}.
+     */
+    protected void updateGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game,
+                                      long expectedVersion) throws VersionConflictException {
+        updateGameUncached(id, scenarioId, game);
+    }
+
+    /**
+     * <p>
+     * As for {@link #updateGameUncached(UUID, UUID, Game, long)}, also given the {@code delta} from the
+     * {@code expectedVersion} to the {@code game}.
+     * The default implementation saves the whole game; backing stores that can save only the changes should
+     * override it.
+     * </p>
+     *
+     * @throws VersionConflictException If the version of the saved game is not the {@code expectedVersion}.
+     */
+    protected void updateGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game,
+                                      @Nonnull GameDelta delta, long expectedVersion)
+            throws VersionConflictException {
+        updateGameUncached(id, scenarioId, game, expectedVersion);
+    }
+
+    @Nonnull
+    protected abstract Optional<FindGameResult> findGameUncached(@Nonnull UUID id);
+
+    /**
+     * <p>
+     * Begin to find a saved game, without blocking.
+     * This, and the other asynchronous operations, may be called by any thread, concurrently with other uses
+     * of this context, so must not use the state of this context.
+     * The default implementation performs {@link #findGameUncached(UUID)} using the
+     * {@linkplain MCRepository#getAsyncExecutor() asynchronous executor}.
+     * </p>
+     */
+    @Nonnull
+    protected CompletableFuture<Optional<FindGameResult>> findGameUncachedAsync(@Nonnull UUID id) {
+        return CompletableFuture.supplyAsync(() -> findGameUncached(id), repository.getAsyncExecutor());
+    }
+
+    @Nonnull
+    protected abstract Iterable<Map.Entry<UUID, FindGameResult>> findAllGamesUncached();
+
+    /**
+     * <p>
+     * Find several saved games.
+     * The default implementation uses {@link #findGameUncached(UUID)} for each ID.
+     * </p>
+     *
+     * @return A map of the games found, indexed by their IDs; it has no entries for games that do not exist.
+     */
+    @Nonnull
+    protected Map<UUID, FindGameResult> findGamesUncached(@Nonnull Set<UUID> ids) {
+        final Map<UUID, FindGameResult> result = new HashMap<>();
+        for (final var id : ids) {
+            findGameUncached(id).ifPresent(game -> result.put(id, game));
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * The IDs of all the saved games.
+     * The default implementation retrieves all the complete games.
+     * </p>
+     */
+    @Nonnull
+    protected Iterable<UUID> findAllGameIdsUncached() {
+        final List<UUID> result = new ArrayList<>();
+        for (var entry : findAllGamesUncached()) {
+            result.add(entry.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * The IDs, scenarios and creation times of all the saved games.
+     * The default implementation retrieves all the complete games.
+     * </p>
+     */
+    @Nonnull
+    protected Iterable<GameScenarioProjection> findAllGameScenariosUncached() {
+        final List<GameScenarioProjection> result = new ArrayList<>();
+        for (var entry : findAllGamesUncached()) {
+            final var findGameResult = entry.getValue();
+            result.add(new GameScenarioProjection(
+                    entry.getKey(), findGameResult.scenarioId(), findGameResult.game().getCreated()));
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * The IDs, run states and recruiting flags of all the saved games.
+     * The default implementation retrieves all the complete games.
+     * </p>
+     */
+    @Nonnull
+    protected Iterable<GameStateProjection> findAllGameStatesUncached() {
+        final List<GameStateProjection> result = new ArrayList<>();
+        for (var entry : findAllGamesUncached()) {
+            final var game = entry.getValue().game();
+            result.add(new GameStateProjection(entry.getKey(), game.getRunState(), game.isRecruiting()));
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * The IDs and {@linkplain Game#getCreated() creation times} of the saved games of a given scenario.
+     * The default implementation scans {@link #findAllGameScenariosUncached()}.
+     * </p>
+     */
+    @Nonnull
+    protected Iterable<Map.Entry<UUID, Instant>> findGameIdsOfScenarioUncached(@Nonnull UUID scenarioId) {
+        final List<Map.Entry<UUID, Instant>> result = new ArrayList<>();
+        for (var projection : findAllGameScenariosUncached()) {
+            if (scenarioId.equals(projection.scenarioId())) {
+                result.add(Map.entry(projection.id(), projection.created()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Retrieve a page of saved games.
+     * The default implementation sorts all the games.
+     * </p>
+     *
+     * @param order The order of the games.
+     * @param after The sort key of the game before the first game of the page,
+     *              or null for the first page.
+     * @param limit The maximum number of games to retrieve.
+     * @return The games in the page, in order.
+     */
+    @Nonnull
+    protected List<Map.Entry<UUID, FindGameResult>> findGamesPageUncached(
+            @Nonnull PageOrder order, @Nullable PageToken after, int limit) {
+        final Comparator<Map.Entry<UUID, FindGameResult>> comparator = switch (order) {
+            case ID -> Map.Entry.comparingByKey();
+            case CREATED -> Comparator
+                    .comparing((Map.Entry<UUID, FindGameResult> entry) -> entry.getValue().game().getCreated())
+                    .thenComparing(Map.Entry::getKey);
+        };
+        final List<Map.Entry<UUID, FindGameResult>> result = new ArrayList<>();
+        for (var entry : findAllGamesUncached()) {
+            if (after == null || after.isBefore(order, entry.getKey(), entry.getValue().game().getCreated())) {
+                result.add(entry);
+            }
+        }
+        result.sort(comparator);
+        return result.size() <= limit ? result : result.subList(0, limit);
+    }
+
+    /**
+     * <p>
+     * Retrieve a page of saved users, in {@linkplain PageOrder#ID ID order}.
+     * The default implementation sorts all the users.
+     * </p>
+     *
+     * @param after The ID of the user before the first user of the page, or null for the first page.
+     * @param limit The maximum number of users to retrieve.
+     * @return The users in the page, in order.
+     */
+    @Nonnull
+    protected List<Map.Entry<UUID, User>> findUsersPageUncached(@Nullable UUID after, int limit) {
+        final List<Map.Entry<UUID, User>> result = new ArrayList<>();
+        for (var entry : findAllUsersUncached()) {
+            if (after == null || after.compareTo(entry.getKey()) < 0) {
+                result.add(entry);
+            }
+        }
+        result.sort(Map.Entry.comparingByKey());
+        return result.size() <= limit ? result : result.subList(0, limit);
+    }
+
+    protected abstract void addCurrentUserGameUncached(@Nonnull UUID id, @Nonnull UserGameAssociation entry);
+
+    protected abstract void updateCurrentUserGameUncached(@Nonnull UUID id, @Nonnull UserGameAssociation entry);
+
+    @Nonnull
+    protected abstract Optional<UserGameAssociation> findCurrentUserGameUncached(@Nonnull UUID userId);
+
+    /**
+     * <p>
+     * Begin to find the saved current game of a user, without blocking, as for {@link #findGameUncachedAsync(UUID)}.
+     * </p>
+     */
+    @Nonnull
+    protected CompletableFuture<Optional<UserGameAssociation>> findCurrentUserGameUncachedAsync(
+            @Nonnull UUID userId) {
+        return CompletableFuture.supplyAsync(() -> findCurrentUserGameUncached(userId),
+                repository.getAsyncExecutor());
+    }
+
+    @Nonnull
+    protected abstract Optional<UUID> findUserIdForUsernameUncached(@Nonnull String username);
+
+    @Nonnull
+    protected abstract Optional<User> findUserUncached(@Nonnull UUID id);
+
+    /**
+     * <p>
+     * Begin to find a saved user, without blocking, as for {@link #findGameUncachedAsync(UUID)}.
+     * </p>
+     */
+    @Nonnull
+    protected CompletableFuture<Optional<User>> findUserUncachedAsync(@Nonnull UUID id) {
+        return CompletableFuture.supplyAsync(() -> findUserUncached(id), repository.getAsyncExecutor());
+    }
+
+    /**
+     * <p>
+     * Find several saved users.
+     * The default implementation uses {@link #findUserUncached(UUID)} for each ID.
+     * </p>
+     *
+     * @return A map of the users found, indexed by their IDs; it has no entries for users that do not exist.
+     */
+    @Nonnull
+    protected Map<UUID, User> findUsersUncached(@Nonnull Set<UUID> ids) {
+        final Map<UUID, User> result = new HashMap<>();
+        for (final var id : ids) {
+            findUserUncached(id).ifPresent(user -> result.put(id, user));
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Find the saved user that has a given {@linkplain User#getUsername() username}.
+     * The default implementation finds the ID of the user, and then the user.
+     * </p>
+     */
+    @Nonnull
+    protected Optional<User> findUserForUsernameUncached(@Nonnull String username) {
+        return findUserIdForUsernameUncached(username).flatMap(this::findUserUncached);
+    }
+
+    protected abstract void addUserUncached(@Nonnull UUID id, @Nonnull User user);
+
+    protected abstract void updateUserUncached(@Nonnull UUID id, @Nonnull User user);
+
+    @Nonnull
+    protected abstract Iterable<Map.Entry<UUID, User>> findAllUsersUncached();
+
+    /**
+     * <p>
+     * Perform a batch of save operations.
+     * The default implementation saves the users, then the games, then the current-game associations.
+     * </p>
+     */
+    protected void saveUncached(@Nonnull WriteBatch batch) {
+        addUsersUncached(batch.addedUsers());
+        updateUsersUncached(batch.updatedUsers());
+        addGamesUncached(batch.addedGames());
+        updateGamesUncached(batch.updatedGames());
+        addCurrentUserGamesUncached(batch.addedCurrentUserGames());
+        updateCurrentUserGamesUncached(batch.updatedCurrentUserGames());
+    }
+
+    /**
+     * <p>
+     * Begin to perform a batch of save operations, without blocking, as for {@link #findGameUncachedAsync(UUID)}.
+     * </p>
+     */
+    @Nonnull
+    protected CompletableFuture<Void> saveUncachedAsync(@Nonnull WriteBatch batch) {
+        return CompletableFuture.runAsync(() -> saveUncached(batch), repository.getAsyncExecutor());
+    }
+
+    protected void addGamesUncached(@Nonnull Map<UUID, FindGameResult> games) {
+        games.forEach((id, result) -> addGameUncached(id, result.scenarioId(), result.game()));
+    }
+
+    protected void updateGamesUncached(@Nonnull Map<UUID, FindGameResult> games) {
+        games.forEach((id, result) ->
+                updateGameUncached(id, result.scenarioId(), result.game(), result.version()));
+    }
+
+    protected void addCurrentUserGamesUncached(@Nonnull Map<UUID, UserGameAssociation> associations) {
+        associations.forEach(this::addCurrentUserGameUncached);
+    }
+
+    protected void updateCurrentUserGamesUncached(@Nonnull Map<UUID, UserGameAssociation> associations) {
+        associations.forEach(this::updateCurrentUserGameUncached);
+    }
+
+    protected void addUsersUncached(@Nonnull Map<UUID, User> users) {
+        users.forEach(this::addUserUncached);
+    }
+
+    protected void updateUsersUncached(@Nonnull Map<UUID, User> users) {
+        users.forEach(this::updateUserUncached);
+    }
+
+    /**
+     * <p>
+     * A retrieval, begun by a context, of an entity that the context will later be asked to find.
+     * </p>
+     */
+    private record Prefetch<VALUE>(@Nonnull CompletableFuture<Optional<VALUE>> future, long stamp) {
+
+        static void cancelAll(@Nonnull Map<UUID, ? extends Prefetch<?>> prefetches) {
+            prefetches.values().forEach(prefetch -> prefetch.future().cancel(false));
+            prefetches.clear();
+        }
+
+        @Nonnull
+        Optional<VALUE> join() {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                final var cause = e.getCause();
+                if (cause instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                } else if (cause instanceof Error error) {
+                    throw error;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static final class PendingWrites {
+        final Map<UUID, User> addedUsers = new LinkedHashMap<>();
+        final Map<UUID, User> updatedUsers = new LinkedHashMap<>();
+        final Map<UUID, FindGameResult> addedGames = new LinkedHashMap<>();
+        final Map<UUID, FindGameResult> updatedGames = new LinkedHashMap<>();
+        final Map<UUID, UserGameAssociation> addedCurrentUserGames = new LinkedHashMap<>();
+        final Map<UUID, UserGameAssociation> updatedCurrentUserGames = new LinkedHashMap<>();
+        final List<ChangeEvent> events = new ArrayList<>();
+
+        private static <VALUE> void save(@Nonnull Map<UUID, VALUE> added, @Nonnull Map<UUID, VALUE> updated,
+                                         @Nonnull UUID id, @Nonnull VALUE value) {
+            if (added.containsKey(id)) {
+                added.put(id, value);
+            } else {
+                updated.put(id, value);
+            }
+        }
+
+        @Nonnull
+        private static <VALUE> Map<UUID, VALUE> copy(@Nonnull Map<UUID, VALUE> map) {
+            return map.isEmpty() ? Map.of() : Collections.unmodifiableMap(new LinkedHashMap<>(map));
+        }
+
+        void saveUser(@Nonnull UUID id, @Nonnull User user) {
+            save(addedUsers, updatedUsers, id, user);
+        }
+
+        void saveGame(@Nonnull UUID id, @Nonnull FindGameResult game) {
+            save(addedGames, updatedGames, id, game);
+        }
+
+        void saveCurrentUserGame(@Nonnull UUID id, @Nonnull UserGameAssociation association) {
+            save(addedCurrentUserGames, updatedCurrentUserGames, id, association);
+        }
+
+        boolean isEmpty() {
+            return addedUsers.isEmpty() && updatedUsers.isEmpty()
+                    && addedGames.isEmpty() && updatedGames.isEmpty()
+                    && addedCurrentUserGames.isEmpty() && updatedCurrentUserGames.isEmpty();
+        }
+
+        @Nonnull
+        WriteBatch toBatch() {
+            return new WriteBatch(
+                    copy(addedUsers), copy(updatedUsers),
+                    copy(addedGames), copy(updatedGames),
+                    copy(addedCurrentUserGames), copy(updatedCurrentUserGames));
+        }
+
+        void clear() {
+            addedUsers.clear();
+            updatedUsers.clear();
+            addedGames.clear();
+            updatedGames.clear();
+            addedCurrentUserGames.clear();
+            updatedCurrentUserGames.clear();
+            events.clear();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * <p>
+ * A receiver of measurements of how the {@linkplain MCRepository.Context contexts} of a {@link MCRepository}
+ * use their backing store.
+ * </p>
+ * <p>
+ * The methods are called by the threads that use the contexts, so should be fast.
+ * All the methods have default implementations that do nothing,
+ * so an implementation need implement only the methods for the measurements it wants.
+ * </p>
+ *
+ * @see MCRepository#setMetrics(RepositoryMetrics)
+ */
+@ThreadSafe
+public interface RepositoryMetrics {
+
+    /**
+     * <p>
+     * Metrics that ignore all measurements.
+     * </p>
+     */
+    RepositoryMetrics NO_OP = new RepositoryMetrics() {
+    };
+
+    /**
+     * <p>
+     * A context found an entity (or found that the entity does not exist)
+     * without using the backing store,
+     * because the context or the {@linkplain SharedCache shared cache} held it.
+     * </p>
+     */
+    default void hit(@Nonnull EntityType type) {
+    }
+
+    /**
+     * <p>
+     * A context had to use the backing store to find an entity.
+     * </p>
+     */
+    default void miss(@Nonnull EntityType type) {
+    }
+
+    /**
+     * <p>
+     * A context retrieved all the entities of a type from the backing store.
+     * </p>
+     */
+    default void fullScan(@Nonnull EntityType type) {
+    }
+
+    /**
+     * <p>
+     * A context completed an operation of the backing store.
+     * </p>
+     *
+     * @param operation The operation.
+     * @param nanos     The time the operation took, in nanoseconds.
+     *                  For an asynchronous operation, the time until the operation completed.
+     */
+    default void call(@Nonnull Operation operation, @Nonnegative long nanos) {
+    }
+
+    /**
+     * <p>
+     * A context was closed.
+     * </p>
+     *
+     * @param writes The number of save operations that were performed through the context.
+     */
+    default void contextClosed(@Nonnegative int writes) {
+    }
+
+    enum EntityType {
+        GAME, CURRENT_USER_GAME, USER
+    }
+
+    /**
+     * <p>
+     * The operations of the backing store, each corresponding to one or more methods of the
+     * service provider interface of {@link MCRepository.Context}.
+     * </p>
+     */
+    enum Operation {
+        ADD_GAME, UPDATE_GAME, FIND_GAME, FIND_GAMES, FIND_ALL_GAMES, FIND_GAMES_PAGE,
+        FIND_ALL_GAME_IDS, FIND_ALL_GAME_SCENARIOS, FIND_ALL_GAME_STATES, FIND_GAME_IDS_OF_SCENARIO,
+        ADD_CURRENT_USER_GAME, UPDATE_CURRENT_USER_GAME, FIND_CURRENT_USER_GAME,
+        ADD_USER, UPDATE_USER, FIND_USER, FIND_USERS, FIND_USER_BY_USERNAME, FIND_ALL_USERS, FIND_USERS_PAGE,
+        SAVE
+    }
+}
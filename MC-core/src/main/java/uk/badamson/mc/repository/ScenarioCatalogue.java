@@ -0,0 +1,255 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import uk.badamson.mc.NamedUUID;
+import uk.badamson.mc.Scenario;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * The collection of known {@linkplain Scenario scenarios}, each with a unique ID.
+ * </p>
+ * <p>
+ * The catalogue provides its scenarios as an immutable, indexed {@linkplain Snapshot snapshot},
+ * so finding a scenario, or the ID of a scenario, takes constant time.
+ * The catalogue may be {@linkplain #replace(Map) replaced} or {@linkplain #reload(Path) reloaded} while in use:
+ * that creates a new snapshot, and atomically switches to it,
+ * without blocking users of the old snapshot.
+ * </p>
+ * <p>
+ * Scenarios may be loaded from a directory of scenario files,
+ * which have the file name extension {@value #FILE_EXTENSION}.
+ * Each file describes one scenario, in the {@linkplain Properties#load(Reader) properties} format,
+ * encoded as UTF-8, with these properties:
+ * </p>
+ * <ul>
+ *     <li>{@code id}: the ID of the scenario.</li>
+ *     <li>{@code title}: the {@linkplain Scenario#getTitle() title} of the scenario.</li>
+ *     <li>{@code description}: the {@linkplain Scenario#getDescription() description} of the scenario.</li>
+ *     <li>{@code character.}<var>n</var>{@code .id} and {@code character.}<var>n</var>{@code .title}:
+ *     the ID and title of the <var>n</var>th {@linkplain Scenario#getCharacters() character},
+ *     for <var>n</var> counting from 1, with no gaps.</li>
+ * </ul>
+ */
+@ThreadSafe
+public final class ScenarioCatalogue {
+
+    public static final String FILE_EXTENSION = ".scenario";
+
+    private final AtomicReference<Snapshot> snapshot;
+
+    /**
+     * <p>
+     * Create a catalogue that initially has a given collection of scenarios.
+     * </p>
+     *
+     * @param scenarios The scenarios, indexed by their IDs.
+     */
+    public ScenarioCatalogue(@Nonnull final Map<UUID, Scenario> scenarios) {
+        snapshot = new AtomicReference<>(new Snapshot(scenarios));
+    }
+
+    /**
+     * <p>
+     * Create a catalogue that initially has the scenarios described by the scenario files in a given directory.
+     * </p>
+     *
+     * @throws IOException If the directory or a scenario file could not be read,
+     *                     or if a scenario file is not valid.
+     */
+    @Nonnull
+    public static ScenarioCatalogue load(@Nonnull final Path directory) throws IOException {
+        return new ScenarioCatalogue(readScenarios(directory));
+    }
+
+    @Nonnull
+    private static Map<UUID, Scenario> readScenarios(@Nonnull final Path directory) throws IOException {
+        Objects.requireNonNull(directory, "directory");
+        final Map<UUID, Scenario> scenarios = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION)) {
+            for (final var file : files) {
+                final var properties = new Properties();
+                try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                }
+                final UUID id;
+                final Scenario scenario;
+                try {
+                    id = UUID.fromString(getProperty(properties, "id"));
+                    scenario = readScenario(properties);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("invalid scenario file " + file, e);
+                }
+                if (scenarios.put(id, scenario) != null) {
+                    throw new IOException("duplicate scenario ID in " + file);
+                }
+            }
+        }
+        return scenarios;
+    }
+
+    @Nonnull
+    private static Scenario readScenario(@Nonnull final Properties properties) {
+        final List<NamedUUID> characters = new ArrayList<>();
+        for (int n = 1; properties.containsKey("character." + n + ".id"); ++n) {
+            characters.add(new NamedUUID(
+                    UUID.fromString(getProperty(properties, "character." + n + ".id")),
+                    getProperty(properties, "character." + n + ".title")));
+        }
+        return new Scenario(getProperty(properties, "title"), getProperty(properties, "description"), characters);
+    }
+
+    @Nonnull
+    private static String getProperty(@Nonnull final Properties properties, @Nonnull final String key) {
+        final var value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        return value;
+    }
+
+    /**
+     * <p>
+     * The current collection of scenarios.
+     * </p>
+     */
+    @Nonnull
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * <p>
+     * Replace the collection of scenarios.
+     * </p>
+     * <p>
+     * Users of the previous {@linkplain #getSnapshot() snapshot} may continue to use it.
+     * </p>
+     *
+     * @param scenarios The new scenarios, indexed by their IDs.
+     */
+    public void replace(@Nonnull final Map<UUID, Scenario> scenarios) {
+        snapshot.set(new Snapshot(scenarios));
+    }
+
+    /**
+     * <p>
+     * Replace the collection of scenarios with the scenarios described by the scenario files in a given directory.
+     * </p>
+     *
+     * @throws IOException If the directory or a scenario file could not be read,
+     *                     or if a scenario file is not valid.
+     *                     In that case, the collection of scenarios is unchanged.
+     */
+    public void reload(@Nonnull final Path directory) throws IOException {
+        replace(readScenarios(directory));
+    }
+
+    /**
+     * <p>
+     * An immutable collection of scenarios, indexed for fast retrieval.
+     * </p>
+     */
+    @Immutable
+    public static final class Snapshot {
+
+        private final Map<UUID, Scenario> idToScenario;
+        private final IdentityHashMap<Scenario, UUID> scenarioToId;
+        private final Map<String, Map<UUID, Scenario>> titleToScenarios;
+
+        private Snapshot(@Nonnull final Map<UUID, Scenario> scenarios) {
+            idToScenario = Map.copyOf(scenarios);
+            scenarioToId = new IdentityHashMap<>(idToScenario.size());
+            final Map<String, Map<UUID, Scenario>> byTitle = new HashMap<>();
+            idToScenario.forEach((id, scenario) -> {
+                scenarioToId.put(scenario, id);
+                byTitle.computeIfAbsent(scenario.getTitle(), t -> new HashMap<>()).put(id, scenario);
+            });
+            byTitle.replaceAll((title, map) -> Map.copyOf(map));
+            titleToScenarios = Map.copyOf(byTitle);
+        }
+
+        /**
+         * <p>
+         * All the scenarios, indexed by their IDs.
+         * </p>
+         *
+         * @return an unmodifiable map.
+         */
+        @Nonnull
+        public Map<UUID, Scenario> getScenarios() {
+            return idToScenario;
+        }
+
+        @Nonnull
+        public Optional<Scenario> findScenario(@Nonnull final UUID id) {
+            Objects.requireNonNull(id, "id");
+            return Optional.ofNullable(idToScenario.get(id));
+        }
+
+        public boolean contains(@Nonnull final UUID id) {
+            Objects.requireNonNull(id, "id");
+            return idToScenario.containsKey(id);
+        }
+
+        /**
+         * <p>
+         * The scenarios that have a given {@linkplain Scenario#getTitle() title}.
+         * </p>
+         *
+         * @return an unmodifiable map of the scenarios, indexed by their IDs.
+         */
+        @Nonnull
+        public Map<UUID, Scenario> findScenariosByTitle(@Nonnull final String title) {
+            Objects.requireNonNull(title, "title");
+            return titleToScenarios.getOrDefault(title, Map.of());
+        }
+
+        /**
+         * <p>
+         * The ID of a given scenario object of this snapshot.
+         * </p>
+         * <p>
+         * This uses reference equality, so an equal scenario object that is not an object of this snapshot
+         * has no ID.
+         * </p>
+         *
+         * @return the ID, or null if the scenario is not an object of this snapshot.
+         */
+        @Nullable
+        public UUID findId(@Nonnull final Scenario scenario) {
+            Objects.requireNonNull(scenario, "scenario");
+            return scenarioToId.get(scenario);
+        }
+    }
+}
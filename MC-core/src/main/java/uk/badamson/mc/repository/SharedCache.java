@@ -0,0 +1,294 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import uk.badamson.mc.FindGameResult;
+import uk.badamson.mc.Game;
+import uk.badamson.mc.GameSnapshot;
+import uk.badamson.mc.User;
+import uk.badamson.mc.UserGameAssociation;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * <p>
+ * A bounded cache of games, users and user-game associations,
+ * shared by all the {@linkplain MCRepository.Context contexts} of an {@link MCRepository}.
+ * </p>
+ * <p>
+ * Contexts consult the shared cache before using their uncached (backing store) lookups,
+ * and invalidate entries when they save entities.
+ * Because {@link Game} and {@link User} objects are mutable,
+ * the cache holds its own copies, and gives each context its own copy.
+ * The cache holds {@linkplain GameSnapshot snapshots} of games,
+ * so giving a context its own copy of a game does not copy the users of the game.
+ * </p>
+ * <p>
+ * The cache can also record that an entity was not found (negative caching),
+ * so repeated lookups of an absent entity,
+ * such as the current game of a user who is not playing a game, do not each access the backing store.
+ * Saving the entity invalidates the record of its absence.
+ * </p>
+ * <p>
+ * The cache is correct only if all changes to the backing store are made through the repository
+ * that uses the cache. If other processes can change the backing store,
+ * they must arrange to {@linkplain #invalidateAll() invalidate} the cache.
+ * </p>
+ */
+@ThreadSafe
+public final class SharedCache {
+
+    private final boolean cacheMisses;
+    private final BoundedCache<UUID, Optional<CachedGame>> games;
+    private final BoundedCache<UUID, Optional<User>> users;
+    private final BoundedCache<String, Optional<UUID>> usernames;
+    /*
+     * The usernames under which users are cached, so renaming a user can invalidate the old username.
+     * Evicting a username from here also evicts it from usernames,
+     * so usernames never holds a mapping that renaming could not invalidate.
+     */
+    private final BoundedCache<UUID, String> usernamesOfUsers;
+    private final BoundedCache<UUID, Optional<UserGameAssociation>> currentUserGames;
+
+    /**
+     * <p>
+     * Construct an empty cache with given limits, which does not record absent entities.
+     * </p>
+     *
+     * @see #SharedCache(long, long, boolean)
+     */
+    public SharedCache(@Nonnegative final long maximumGameWeight, @Nonnegative final long maximumUserWeight) {
+        this(maximumGameWeight, maximumUserWeight, false);
+    }
+
+    /**
+     * <p>
+     * Construct an empty cache with given limits.
+     * </p>
+     * <p>
+     * The weight of a game is one more than the number of its {@linkplain Game#getUsers() users},
+     * so large games count for more than small games.
+     * The weight of a user is one.
+     * The weight of a record that an entity is absent is one.
+     * </p>
+     *
+     * @param maximumGameWeight The maximum total weight of cached games. Zero disables caching of games.
+     * @param maximumUserWeight The maximum number of cached users,
+     *                          and also the maximum number of cached current-game associations.
+     *                          Zero disables caching of users.
+     * @param cacheMisses       Whether to record that entities were not found.
+     * @throws IllegalArgumentException If {@code maximumGameWeight} or {@code maximumUserWeight} is negative.
+     */
+    public SharedCache(@Nonnegative final long maximumGameWeight, @Nonnegative final long maximumUserWeight,
+                       final boolean cacheMisses) {
+        this.cacheMisses = cacheMisses;
+        games = new BoundedCache<>(maximumGameWeight, r -> 1 + r.map(g -> g.snapshot().getUsers().size()).orElse(0));
+        users = new BoundedCache<>(maximumUserWeight, u -> 1);
+        usernames = new BoundedCache<>(maximumUserWeight, id -> 1);
+        usernamesOfUsers = new BoundedCache<>(maximumUserWeight, username -> 1,
+                (id, username) -> usernames.invalidate(username));
+        currentUserGames = new BoundedCache<>(maximumUserWeight, a -> 1);
+    }
+
+    @Nonnull
+    private static User copy(@Nonnull final User user) {
+        return new User(user.getId(), user);
+    }
+
+    private static <VALUE> boolean isAbsent(@Nullable final Optional<VALUE> cached) {
+        return cached != null && cached.isEmpty();
+    }
+
+    /**
+     * <p>
+     * Whether this cache records that entities were not found.
+     * </p>
+     */
+    public boolean isCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * <p>
+     * Discard all cached values.
+     * </p>
+     */
+    public void invalidateAll() {
+        games.invalidateAll();
+        users.invalidateAll();
+        usernames.invalidateAll();
+        usernamesOfUsers.invalidateAll();
+        currentUserGames.invalidateAll();
+    }
+
+    long gameStamp(@Nonnull final UUID id) {
+        return games.stamp(id);
+    }
+
+    @Nullable
+    FindGameResult getGame(@Nonnull final UUID id) {
+        final var result = games.get(id);
+        return result == null || result.isEmpty() ? null : result.get().toFindGameResult();
+    }
+
+    boolean isGameAbsent(@Nonnull final UUID id) {
+        return isAbsent(games.get(id));
+    }
+
+    void putGame(@Nonnull final UUID id, @Nonnull final FindGameResult result, final long stamp) {
+        games.put(id, Optional.of(new CachedGame(result)), stamp);
+    }
+
+    void putGameAbsent(@Nonnull final UUID id, final long stamp) {
+        if (cacheMisses) {
+            games.put(id, Optional.empty(), stamp);
+        }
+    }
+
+    void invalidateGame(@Nonnull final UUID id) {
+        games.invalidate(id);
+    }
+
+    long userStamp(@Nonnull final UUID id) {
+        return users.stamp(id);
+    }
+
+    long usernameStamp(@Nonnull final String username) {
+        return usernames.stamp(username);
+    }
+
+    @Nullable
+    User getUser(@Nonnull final UUID id) {
+        final var user = users.get(id);
+        return user == null || user.isEmpty() ? null : copy(user.get());
+    }
+
+    boolean isUserAbsent(@Nonnull final UUID id) {
+        return isAbsent(users.get(id));
+    }
+
+    @Nullable
+    UUID getUserId(@Nonnull final String username) {
+        final var id = usernames.get(username);
+        return id == null ? null : id.orElse(null);
+    }
+
+    boolean isUsernameAbsent(@Nonnull final String username) {
+        return isAbsent(usernames.get(username));
+    }
+
+    void putUser(@Nonnull final UUID id, @Nonnull final User user, final long stamp) {
+        users.put(id, Optional.of(copy(user)), stamp);
+    }
+
+    void putUserAbsent(@Nonnull final UUID id, final long stamp) {
+        if (cacheMisses) {
+            users.put(id, Optional.empty(), stamp);
+        }
+    }
+
+    void putUserId(@Nonnull final String username, @Nonnull final UUID id, final long stamp) {
+        final var previousUsername = usernamesOfUsers.get(id);
+        if (previousUsername != null && !previousUsername.equals(username)) {
+            usernames.invalidate(previousUsername);
+        }
+        if (usernamesOfUsers.put(id, username, usernamesOfUsers.stamp(id))) {
+            usernames.put(username, Optional.of(id), stamp);
+        }
+    }
+
+    void putUsernameAbsent(@Nonnull final String username, final long stamp) {
+        if (cacheMisses) {
+            usernames.put(username, Optional.empty(), stamp);
+        }
+    }
+
+    /**
+     * <p>
+     * Discard the cached values for a user that has been saved, with a given (perhaps new) username.
+     * </p>
+     * <p>
+     * If the user has been renamed, this also discards the mapping of the old username to the user:
+     * the cache holds that mapping only while it also records the old username of the user.
+     * </p>
+     */
+    void invalidateUser(@Nonnull final UUID id, @Nonnull final String username) {
+        final var user = users.get(id);
+        final var previousUsername = usernamesOfUsers.get(id);
+        users.invalidate(id);
+        usernamesOfUsers.invalidate(id);
+        usernames.invalidate(username);
+        if (user != null && user.isPresent()) {
+            usernames.invalidate(user.get().getUsername());
+        }
+        if (previousUsername != null) {
+            usernames.invalidate(previousUsername);
+        }
+    }
+
+    void invalidateUsername(@Nonnull final String username) {
+        usernames.invalidate(username);
+    }
+
+    long currentUserGameStamp(@Nonnull final UUID userId) {
+        return currentUserGames.stamp(userId);
+    }
+
+    @Nullable
+    UserGameAssociation getCurrentUserGame(@Nonnull final UUID userId) {
+        final var association = currentUserGames.get(userId);
+        return association == null ? null : association.orElse(null);
+    }
+
+    boolean isCurrentUserGameAbsent(@Nonnull final UUID userId) {
+        return isAbsent(currentUserGames.get(userId));
+    }
+
+    void putCurrentUserGame(@Nonnull final UUID userId, @Nonnull final UserGameAssociation association,
+                            final long stamp) {
+        currentUserGames.put(userId, Optional.of(association), stamp);
+    }
+
+    void putCurrentUserGameAbsent(@Nonnull final UUID userId, final long stamp) {
+        if (cacheMisses) {
+            currentUserGames.put(userId, Optional.empty(), stamp);
+        }
+    }
+
+    void invalidateCurrentUserGame(@Nonnull final UUID userId) {
+        currentUserGames.invalidate(userId);
+    }
+
+    private record CachedGame(@Nonnull GameSnapshot snapshot, @Nonnull UUID scenarioId, long version) {
+
+        CachedGame(@Nonnull final FindGameResult result) {
+            this(result.game().toSnapshot(), result.scenarioId(), result.version());
+        }
+
+        @Nonnull
+        FindGameResult toFindGameResult() {
+            return new FindGameResult(new Game(snapshot), scenarioId, version);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.ConcurrentModificationException;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * <p>
+ * An exception class for indicating that a game could not be updated
+ * because it had been updated by someone else since it was retrieved.
+ * </p>
+ * <p>
+ * The update can be retried, after retrieving the game again.
+ * </p>
+ */
+public final class VersionConflictException extends ConcurrentModificationException {
+
+    private final UUID gameId;
+    private final long expectedVersion;
+
+    public VersionConflictException(@Nonnull final UUID gameId, @Nonnegative final long expectedVersion) {
+        super("Game " + gameId + " is no longer at version " + expectedVersion);
+        this.gameId = Objects.requireNonNull(gameId, "gameId");
+        this.expectedVersion = expectedVersion;
+    }
+
+    @Nonnull
+    public UUID getGameId() {
+        return gameId;
+    }
+
+    /**
+     * <p>
+     * The version that the game had when it was retrieved.
+     * </p>
+     */
+    @Nonnegative
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+}
@@ -0,0 +1,60 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import uk.badamson.mc.FindGameResult;
+import uk.badamson.mc.User;
+import uk.badamson.mc.UserGameAssociation;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * The deferred save operations of a {@linkplain MCRepository.ContextMode#WRITE_BEHIND write-behind}
+ * {@linkplain MCRepository.Context context}, to be performed together.
+ * </p>
+ * <ul>
+ *     <li>Each map is keyed by the ID of the saved entity, so each entity is saved at most once per batch:
+ *     repeated updates of an entity are coalesced into one.</li>
+ *     <li>An entity added and then updated through a context appears only as an addition.</li>
+ *     <li>The maps are not modifiable, and iterate in the order in which the entities were first saved.</li>
+ *     <li>The {@linkplain FindGameResult#version() version} of each updated game is the version it had
+ *     when the context retrieved it, so the update can be made conditional on the saved game still having
+ *     that version.</li>
+ * </ul>
+ */
+@SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "DTO")
+public record WriteBatch(
+        @Nonnull Map<UUID, User> addedUsers,
+        @Nonnull Map<UUID, User> updatedUsers,
+        @Nonnull Map<UUID, FindGameResult> addedGames,
+        @Nonnull Map<UUID, FindGameResult> updatedGames,
+        @Nonnull Map<UUID, UserGameAssociation> addedCurrentUserGames,
+        @Nonnull Map<UUID, UserGameAssociation> updatedCurrentUserGames
+) {
+
+    public boolean isEmpty() {
+        return addedUsers.isEmpty() && updatedUsers.isEmpty()
+                && addedGames.isEmpty() && updatedGames.isEmpty()
+                && addedCurrentUserGames.isEmpty() && updatedCurrentUserGames.isEmpty();
+    }
+}
@@ -20,6 +20,9 @@ package uk.badamson.mc.service;
 
 import uk.badamson.mc.*;
 import uk.badamson.mc.repository.MCRepository;
+import uk.badamson.mc.repository.Page;
+import uk.badamson.mc.repository.PageOrder;
+import uk.badamson.mc.repository.VersionConflictException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
@@ -27,13 +30,30 @@ import java.time.Clock;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-
-import static java.util.stream.Collectors.toUnmodifiableMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public final class GameService {
 
     private static final Map<UUID, UUID> NO_USERS = Map.of();
 
+    /**
+     * <p>
+     * The maximum number of times to attempt an operation that updates a game,
+     * if the game is concurrently updated by someone else.
+     * </p>
+     */
+    static final int MAX_UPDATE_ATTEMPTS = 8;
+
+    /**
+     * <p>
+     * The number of locks that serialise the updates of games.
+     * Many more than the number of processors, so updates of different games rarely contend.
+     * </p>
+     */
+    private static final int GAME_LOCK_STRIPES = Integer.highestOneBit(
+            Math.max(16, Math.min(1024, Runtime.getRuntime().availableProcessors() * 16)));
+
     private final Clock clock;
 
     private final ScenarioService scenarioService;
@@ -42,38 +62,98 @@ public final class GameService {
 
     private final MCRepository repository;
 
+    private final boolean concurrentReads;
+
+    private final Object[] gameLocks = new Object[GAME_LOCK_STRIPES];
+
     public GameService(@Nonnull final Clock clock,
                        @Nonnull final ScenarioService scenarioService,
                        @Nonnull final UserService userService,
                        @Nonnull MCRepository repository) {
+        this(clock, scenarioService, userService, repository, false);
+    }
+
+    /**
+     * @param concurrentReads Whether operations that need several independent entities
+     *                        should retrieve them from the repository concurrently,
+     *                        using {@linkplain MCRepository.Context#prefetchGame(UUID) prefetching}.
+     *                        That reduces the latency of those operations for a remote backing store,
+     *                        but is merely overhead for a backing store in memory.
+     */
+    public GameService(@Nonnull final Clock clock,
+                       @Nonnull final ScenarioService scenarioService,
+                       @Nonnull final UserService userService,
+                       @Nonnull MCRepository repository,
+                       final boolean concurrentReads) {
         this.repository = Objects.requireNonNull(repository, "repository");
         this.clock = Objects.requireNonNull(clock, "clock");
         this.scenarioService = Objects.requireNonNull(scenarioService, "scenarioService");
         this.userService = Objects.requireNonNull(userService, "userService");
+        this.concurrentReads = concurrentReads;
+        for (int s = 0; s < gameLocks.length; ++s) {
+            gameLocks[s] = new Object();
+        }
     }
 
-    private static FindGameResult filterForUser(
-            @Nonnull final FindGameResult fullInformation,
-            @Nonnull final UUID user) {
-        final var game = fullInformation.game();
-        final var allUsers = game.getUsers();
-        final Map<UUID, UUID> filteredUsers = allUsers.entrySet().stream()
-                .filter(entry -> Objects.equals(user, entry.getValue()))
-                .collect(toUnmodifiableMap(Map.Entry::getKey,
-                        Map.Entry::getValue));
-        if (allUsers.size() == filteredUsers.size()) {
-            return fullInformation;
-        } else {
-            final var filteredGame = new Game(
-                    game.getCreated(),
-                    game.getRunState(),
-                    game.isRecruiting(),
-                    filteredUsers);
-            filteredGame.setScenario(game.getScenario());
-            return new FindGameResult(filteredGame, fullInformation.scenarioId());
+    /**
+     * <p>
+     * Perform an operation that reads and then updates a game,
+     * repeating it if the update fails because of a concurrent update of the game.
+     * </p>
+     * <p>
+     * Each attempt must {@linkplain MCRepository#openContext() open} its own repository context,
+     * rather than joining the current context of the caller,
+     * so it retrieves the current saved game, and saves its changes before it completes.
+     * A joined context could defer the save, and thus the detection of a conflict,
+     * until after this had returned.
+     * </p>
+     */
+    private static <T> T retryingConflicts(@Nonnull final Supplier<T> operation) throws VersionConflictException {
+        for (int attempt = 1; ; ++attempt) {
+            try {
+                return operation.get();
+            } catch (VersionConflictException e) {
+                if (MAX_UPDATE_ATTEMPTS <= attempt) {
+                    throw e;
+                }
+            }
         }
     }
 
+    @Nonnull
+    private Object gameLock(@Nonnull final UUID gameId) {
+        final int h = gameId.hashCode();
+        return gameLocks[(h ^ (h >>> 16)) & (gameLocks.length - 1)];
+    }
+
+    /**
+     * <p>
+     * Perform an operation that reads and then updates a game,
+     * {@linkplain #retryingConflicts(Supplier) repeating it if necessary},
+     * while holding the lock for the game during each attempt.
+     * </p>
+     * <p>
+     * The lock ensures that the attempts of this service to update a game never interleave,
+     * so they do not cause each other to fail and be repeated.
+     * Each lock guards a stripe of games rather than all games,
+     * so operations on different games can usually be performed concurrently.
+     * The lock is not held between attempts, so an operation that must repeat its attempt
+     * does not hold up operations on the other games of the stripe for all its attempts.
+     * The lock does not exclude updates of the game by other services or processes,
+     * which the retrying handles.
+     * </p>
+     */
+    private <T> T updatingGame(@Nonnull final UUID gameId, @Nonnull final Supplier<T> operation)
+            throws VersionConflictException {
+        Objects.requireNonNull(gameId, "gameId");
+        final var lock = gameLock(gameId);
+        return retryingConflicts(() -> {
+            synchronized (lock) {
+                return operation.get();
+            }
+        });
+    }
+
     /**
      * <p>
      * Create a new game for a given scenario.
@@ -85,7 +165,7 @@ public final class GameService {
     @Nonnull
     public IdentifiedValue<UUID, Game> create(@Nonnull final UUID scenarioId) throws NoSuchElementException {
         Objects.requireNonNull(scenarioId);
-        try (var context = repository.openContext()) {
+        try (var context = repository.joinContext()) {
             final var scenarioOptional = scenarioService.getScenario(scenarioId);
             if (scenarioOptional.isEmpty()) {
                 throw new NoSuchElementException("scenario");
@@ -117,34 +197,46 @@ public final class GameService {
             throws NoSuchElementException {
         Objects.requireNonNull(scenario);
         final Set<NamedUUID> result = new HashSet<>();
-        try (var context = repository.openContext()) {
+        try (var context = repository.joinReadOnlyContext()) {
             requireKnownScenario(context, scenario);
-            for (var entry : context.findAllGames()) {
-                final FindGameResult findGameResult = entry.getValue();
-                if (scenario.equals(findGameResult.scenarioId())) {
-                    final var gameId = entry.getKey();
-                    final var gameName = findGameResult.game().getCreated().toString();
-                    result.add(new NamedUUID(gameId, gameName));
-                }
-            }
+            context.findGameIdsOfScenario(scenario).forEach((gameId, created) ->
+                    result.add(new NamedUUID(gameId, created.toString())));
         }
         return result;
     }
 
     @Nonnull
     public Iterable<UUID> getGameIdentifiers() {
-        try (var context = repository.openContext()) {
+        try (var context = repository.joinReadOnlyContext()) {
             return getGameIdentifiers(context);
         }
     }
 
+    /**
+     * <p>
+     * The same game IDs as {@link #getGameIdentifiers()}, in ascending order,
+     * but retrieving them from the repository a page at a time, as the stream needs them,
+     * so the games need not all be held in memory at once.
+     * </p>
+     *
+     * @param pageSize The number of games to retrieve at a time.
+     * @throws IllegalArgumentException If {@code pageSize} is not positive.
+     */
     @Nonnull
-    Set<UUID> getGameIdentifiers(@Nonnull MCRepository.Context context) {
-        final Set<UUID> result = new HashSet<>();
-        for (var entry : context.findAllGames()) {
-            result.add(entry.getKey());
+    public Stream<UUID> getGameIdentifiers(final int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize");
         }
-        return result;
+        return Page.stream(after -> {
+            try (var context = repository.joinReadOnlyContext()) {
+                return context.findGames(PageOrder.ID, after, pageSize);
+            }
+        }).map(Map.Entry::getKey);
+    }
+
+    @Nonnull
+    Set<UUID> getGameIdentifiers(@Nonnull MCRepository.Context context) {
+        return context.findAllGameIds();
     }
 
     @Nonnull
@@ -155,18 +247,26 @@ public final class GameService {
     private void requireKnownScenario(@Nonnull MCRepository.Context context, final UUID scenario)
             throws NoSuchElementException {
         Objects.requireNonNull(scenario, "scenario");
-        if (scenarioService.getScenarioIdentifiers(context)
-                .noneMatch(scenario::equals)) {
+        if (scenarioService.getScenario(context, scenario).isEmpty()) {
             throw new NoSuchElementException("unknown scenario");
         }
     }
 
+    /**
+     * @throws VersionConflictException If the game was repeatedly updated by someone else
+     *                                  while this was trying to update it.
+     */
     @Nonnull
     public Game startGame(@Nonnull final UUID id)
-            throws NoSuchElementException, IllegalGameStateException {
+            throws NoSuchElementException, IllegalGameStateException, VersionConflictException {
         Objects.requireNonNull(id);
+        return updatingGame(id, () -> startGameOnce(id));
+    }
+
+    @Nonnull
+    private Game startGameOnce(@Nonnull final UUID id) {
         try (var context = repository.openContext()) {
-            Optional<FindGameResult> gameOptional = getGame(id, context);
+            Optional<FindGameResult> gameOptional = getGameForUpdate(id, context);
             if (gameOptional.isEmpty()) {
                 throw new NoSuchElementException("game");
             }
@@ -175,7 +275,7 @@ public final class GameService {
                 case WAITING_TO_START:
                     game.setRunState(Game.RunState.RUNNING);
                     context.updateGame(game);// write
-                    return game;
+                    return new Game(game);
                 case RUNNING:
                     // do nothing
                     return new Game(game);
@@ -187,10 +287,21 @@ public final class GameService {
         }
     }
 
+    /**
+     * @throws VersionConflictException If the game was repeatedly updated by someone else
+     *                                  while this was trying to update it.
+     */
     public void stopGame(@Nonnull final UUID id)
-            throws NoSuchElementException {
+            throws NoSuchElementException, VersionConflictException {
+        updatingGame(id, () -> {
+            stopGameOnce(id);
+            return null;
+        });
+    }
+
+    private void stopGameOnce(@Nonnull final UUID id) {
         try (var context = repository.openContext()) {
-            Optional<FindGameResult> gameOptional = getGame(id, context);
+            Optional<FindGameResult> gameOptional = getGameForUpdate(id, context);
             if (gameOptional.isEmpty()) {
                 throw new NoSuchElementException("game");
             }
@@ -201,8 +312,9 @@ public final class GameService {
                     context.updateGame(game);
                     // write
                 }
-                case STOPPED -> // do nothing
-                        new Game(game);
+                case STOPPED -> {
+                    // do nothing
+                }
                 default ->// never happens
                         throw new AssertionError("Valid game state");
             }
@@ -220,21 +332,28 @@ public final class GameService {
      * </p>
      *
      * @return The mutated game players' information.
-     * @throws NoSuchElementException If a game with the given ID does not exist.
+     * @throws NoSuchElementException   If a game with the given ID does not exist.
+     * @throws VersionConflictException If the game was repeatedly updated by someone else
+     *                                  while this was trying to update it.
      */
     @Nonnull
     public FindGameResult endRecruitment(@Nonnull final UUID id)
-            throws NoSuchElementException {
+            throws NoSuchElementException, VersionConflictException {
+        return updatingGame(id, () -> endRecruitmentOnce(id));
+    }
+
+    @Nonnull
+    private FindGameResult endRecruitmentOnce(@Nonnull final UUID id) {
         try (var context = repository.openContext()) {
-            final var resultOptional = getGame(id, context);
+            final var resultOptional = getGameForUpdate(id, context);
             if (resultOptional.isEmpty()) {
                 throw new NoSuchElementException();
             }
-            final var result = resultOptional.get();
-            final var game = result.game();
+            final var game = resultOptional.get().game();
             game.endRecruitment();
             context.updateGame(game);
-            return result;
+            final var result = context.findGame(id).orElseThrow();
+            return new FindGameResult(new Game(game), result.scenarioId(), result.version());
         }
     }
 
@@ -253,7 +372,7 @@ public final class GameService {
     public Optional<UUID> getCurrentGameOfUser(
             @Nonnull final UUID userId) {
         Objects.requireNonNull(userId);
-        try (var context = repository.openContext()) {
+        try (var context = repository.joinReadOnlyContext()) {
             final var user = getUser(context, userId);
             if (user.isPresent()) {
                 return getCurrent(context, userId);
@@ -272,12 +391,36 @@ public final class GameService {
     @Nonnull
     public Optional<FindGameResult> getGameAsGameManager(
             @Nonnull final UUID id) {
-        try (var context = repository.openContext()) {
+        try (var context = repository.joinReadOnlyContext()) {
             return getGame(id, context);
         }
     }
 
+    /**
+     * <p>
+     * Retrieve a game, with its scenario set, for reading.
+     * </p>
+     * <p>
+     * The game is a copy, so setting its scenario does not change the game that the context holds.
+     * </p>
+     */
     private Optional<FindGameResult> getGame(@Nonnull UUID id, @Nonnull MCRepository.Context context) {
+        return context.findGame(id).flatMap(result -> scenarioService.getScenario(result.scenarioId()).map(scenario -> {
+            final var game = new Game(result.game());
+            game.setScenario(scenario);
+            return new FindGameResult(game, result.scenarioId(), result.version());
+        }));
+    }
+
+    /**
+     * <p>
+     * Retrieve a game, with its scenario set, for updating through the context.
+     * </p>
+     * <p>
+     * The game is the game that the context holds, so the context can save changes to it.
+     * </p>
+     */
+    private Optional<FindGameResult> getGameForUpdate(@Nonnull UUID id, @Nonnull MCRepository.Context context) {
         Optional<FindGameResult> resultOptional = context.findGame(id);
         if (resultOptional.isPresent()) {
             final var result = resultOptional.get();
@@ -297,21 +440,22 @@ public final class GameService {
      * unique ID, suitable for a non game manager.
      * </p>
      * <ul>
-     * <li>The collection of {@linkplain Game#getUsers() players} is
+     * <li>The collection of {@linkplain UserGameView#getUsers() players} is
      * either empty or contains only the requesting user: non game managers may
      * not see the complete list of players of a game, but may see that they are
      * a player of a game.</li>
+     * <li>The view records the state of the game when it was retrieved.</li>
      * </ul>
      */
     @Nonnull
-    public Optional<FindGameResult> getGameAsNonGameManager(
+    public Optional<UserGameView> getGameAsNonGameManager(
             @Nonnull final UUID gameId, @Nonnull final UUID user) {
         Objects.requireNonNull(user, "user");
         final Optional<FindGameResult> result;
-        try (var context = repository.openContext()) {
+        try (var context = repository.joinReadOnlyContext()) {
             result = getGame(gameId, context);
         }
-        return result.map(r -> filterForUser(r, user));
+        return result.map(r -> new UserGameView(r, user));
     }
 
     private Optional<User> getUser(MCRepository.Context context, final UUID userId) {
@@ -320,21 +464,30 @@ public final class GameService {
 
     private UserJoinsGameState getUserJoinsGameState(@Nonnull MCRepository.Context context,
                                                      final UUID userId,
-                                                     final UUID gameId)
+                                                     final UUID gameId,
+                                                     final boolean forUpdate)
             throws NoSuchElementException, UserAlreadyPlayingException,
             IllegalGameStateException, SecurityException {
+        if (concurrentReads) {
+            // Any retrieval not used because of an exception is cancelled when the context is closed.
+            if (!User.ADMINISTRATOR_ID.equals(userId)) {
+                context.prefetchUser(userId);
+            }
+            context.prefetchGame(gameId);
+            context.prefetchCurrentUserGame(userId);
+        }
         final var userOptional = getUser(context, userId);
         if (userOptional.isEmpty()) {
             throw new NoSuchElementException("user");
         }
         final var user = userOptional.get();
-        final var findGameResultOptional = getGame(gameId, context);
+        final var findGameResultOptional = forUpdate
+                ? getGameForUpdate(gameId, context) : getGame(gameId, context);
         if (findGameResultOptional.isEmpty()) {
             throw new NoSuchElementException("game");
         }
         final var findGameResult = findGameResultOptional.get();
         final var game = findGameResult.game();
-        final var scenarioId = findGameResult.scenarioId();
         final var current = getCurrent(context, userId);
 
         if (!user.getAuthorities().contains(Authority.ROLE_PLAYER)) {
@@ -348,33 +501,22 @@ public final class GameService {
             throw new UserAlreadyPlayingException();
         } else if (current.isPresent()) {// && gameId.equals(current.get())
             alreadyJoined = true;
-            final var characterEntryOptional = game.getUsers().entrySet().stream()
-                    .filter(entry -> userId.equals(entry.getValue())).findAny();
-            if (characterEntryOptional.isEmpty()) {
+            character = game.getCharacterOfUser(userId);
+            if (character == null) {
                 throw new NoSuchElementException("character");
             }
-            character = characterEntryOptional.get().getKey();
             endRecruitment = false;
         } else {
             if (!game.isRecruiting()) {
                 throw new IllegalGameStateException("Game is not recruiting");
             }
             alreadyJoined = false;
-            final var scenarioOptional = scenarioService.getScenario(context, scenarioId);
-            if (scenarioOptional.isEmpty()) {
-                throw new NoSuchElementException("scenario");
-            }
-            final var scenario = scenarioOptional.get();
-            final var characters = scenario.getCharacters();
-            final var playedCharacters = game.getUsers().keySet();
-            final var characterOptional = characters.stream().sequential()
-                    .map(NamedUUID::getId)
-                    .filter(c -> !playedCharacters.contains(c)).findFirst();
-            if (characterOptional.isEmpty()) {
+            // getGame has set the scenario of the game
+            character = game.getFirstFreeCharacter();
+            if (character == null) {
                 throw new NoSuchElementException("character");
             }
-            character = characterOptional.get();
-            endRecruitment = characters.size() - 1 <= playedCharacters.size();
+            endRecruitment = game.getNumberOfFreeCharacters() <= 1;
         }
 
         return new UserJoinsGameState(game, character, alreadyJoined,
@@ -401,8 +543,8 @@ public final class GameService {
      * </ul>
      */
     public boolean mayUserJoinGame(@Nonnull final UUID user, @Nonnull final UUID game) {
-        try (var context = repository.openContext()) {
-            getUserJoinsGameState(context, user, game);
+        try (var context = repository.joinReadOnlyContext()) {
+            getUserJoinsGameState(context, user, game, false);
         } catch (UserAlreadyPlayingException | IllegalGameStateException
                  | SecurityException | NoSuchElementException e) {
             return false;
@@ -429,14 +571,24 @@ public final class GameService {
      *                                     recruiting} players.</li>
      *                                     <li>If the game has no characters free.</li>
      *                                     </ul>
+     * @throws VersionConflictException    If the game was repeatedly updated by someone else
+     *                                     (for example, by other users joining it)
+     *                                     while this was trying to update it.
      */
     public void userJoinsGame(@Nonnull final UUID userId,
                               @Nonnull final UUID gameId)
             throws NoSuchElementException, UserAlreadyPlayingException,
-            IllegalGameStateException, SecurityException {
+            IllegalGameStateException, SecurityException, VersionConflictException {
+        updatingGame(gameId, () -> {
+            userJoinsGameOnce(userId, gameId);
+            return null;
+        });
+    }
+
+    private void userJoinsGameOnce(@Nonnull final UUID userId, @Nonnull final UUID gameId) {
         try (var context = repository.openContext()) {
             // read and check:
-            final var state = getUserJoinsGameState(context, userId, gameId);
+            final var state = getUserJoinsGameState(context, userId, gameId, true);
             if (state.alreadyJoined) {
                 // optimisation
                 return;
@@ -449,9 +601,9 @@ public final class GameService {
                 state.game.endRecruitment();
             }
 
-            // write:
-            context.addCurrentUserGame(userId, association);
+            // write; the game first, because its update fails if someone else has changed it:
             context.updateGame(state.game);
+            context.addCurrentUserGame(userId, association);
         }
     }
 
@@ -38,7 +38,7 @@ public final class ScenarioService {
     @Nonnull
     public Set<NamedUUID> getNamedScenarioIdentifiers() {
         final Set<NamedUUID> result = new HashSet<>();
-        try(var context = repository.openContext()) {
+        try(var context = repository.joinReadOnlyContext()) {
             for (var entry: context.findAllScenarios()) {
                 result.add(new NamedUUID(entry.getKey(), entry.getValue().getTitle()));
             }
@@ -49,7 +49,7 @@ public final class ScenarioService {
     @Nonnull
     public Optional<Scenario> getScenario(@Nonnull final UUID id) {
         Objects.requireNonNull(id, "id");
-        try(var context = repository.openContext()) {
+        try(var context = repository.joinReadOnlyContext()) {
             return getScenario(context, id);
         }
     }
@@ -61,7 +61,7 @@ public final class ScenarioService {
 
     @Nonnull
     public Stream<UUID> getScenarioIdentifiers() {
-        try(var context = repository.openContext()) {
+        try(var context = repository.joinReadOnlyContext()) {
             return getScenarioIdentifiers(context);
         }
     }
@@ -22,8 +22,12 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import uk.badamson.mc.BasicUserDetails;
 import uk.badamson.mc.User;
 import uk.badamson.mc.repository.MCRepository;
+import uk.badamson.mc.repository.Page;
 
 import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
@@ -68,7 +72,7 @@ public class UserService {
     @Nonnull
     public User add(@Nonnull final BasicUserDetails userDetails) {
         Objects.requireNonNull(userDetails, "userDetails");
-        try(var context = repository.openContext()) {
+        try(var context = repository.joinContext()) {
             if (BasicUserDetails.ADMINISTRATOR_USERNAME
                     .equals(userDetails.getUsername())) {
                 throw new IllegalArgumentException("User is administrator");
@@ -92,7 +96,7 @@ public class UserService {
 
     @Nonnull
     public Optional<User> getUser(@Nonnull final UUID id) {
-        try(var context = repository.openContext()) {
+        try(var context = repository.joinReadOnlyContext()) {
             return getUser(context, id);
         }
     }
@@ -107,9 +111,49 @@ public class UserService {
         }
     }
 
+    /**
+     * <p>
+     * Retrieve several users at once, such as all the {@linkplain uk.badamson.mc.Game#getUsers() players}
+     * of a game.
+     * </p>
+     * <p>
+     * This retrieves all the users with one access of the repository,
+     * rather than one access for each user.
+     * </p>
+     *
+     * @param ids The IDs of the users to retrieve.
+     * @return A map of the users found, indexed by their IDs, iterating in the order of {@code ids}.
+     * The map has no entries for unknown IDs.
+     */
+    @Nonnull
+    public Map<UUID, User> getUsers(@Nonnull final Collection<UUID> ids) {
+        try (var context = repository.joinReadOnlyContext()) {
+            return getUsers(context, ids);
+        }
+    }
+
+    @Nonnull
+    final Map<UUID, User> getUsers(@Nonnull MCRepository.Context context, @Nonnull final Collection<UUID> ids) {
+        Objects.requireNonNull(ids, "ids");
+        final var found = context.findUsers(ids.stream()
+                .filter(id -> !User.ADMINISTRATOR_ID.equals(id))
+                .toList());
+        if (!ids.contains(User.ADMINISTRATOR_ID)) {
+            return found;
+        }
+        final Map<UUID, User> result = new LinkedHashMap<>();
+        for (final var id : ids) {
+            final var user = User.ADMINISTRATOR_ID.equals(id) ? administrator : found.get(id);
+            if (user != null) {
+                result.put(id, user);
+            }
+        }
+        return result;
+    }
+
     @Nonnull
     public Stream<User> getUsers() {
-        try(var context = repository.openContext()) {
+        try(var context = repository.joinReadOnlyContext()) {
             final var userStream = context.findAllUsers();
             final var adminUses = Stream.of(administrator);
             final var normalUsers = StreamSupport
@@ -120,6 +164,29 @@ public class UserService {
         }
     }
 
+    /**
+     * <p>
+     * The same users as {@link #getUsers()},
+     * but retrieving them from the repository a page at a time, as the stream needs them,
+     * so the users need not all be held in memory at once.
+     * </p>
+     *
+     * @param pageSize The number of users to retrieve at a time.
+     * @throws IllegalArgumentException If {@code pageSize} is not positive.
+     */
+    @Nonnull
+    public Stream<User> getUsers(final int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize");
+        }
+        final var normalUsers = Page.stream(after -> {
+            try (var context = repository.joinReadOnlyContext()) {
+                return context.findUsers(after, pageSize);
+            }
+        }).filter(u -> !u.getUsername().equals(BasicUserDetails.ADMINISTRATOR_USERNAME));
+        return Stream.concat(Stream.of(administrator), normalUsers);
+    }
+
     @SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "reference semantics")
     @Nonnull
     public Optional<User> getUserByUsername(@Nonnull final String username) {
@@ -127,7 +194,7 @@ public class UserService {
         if (BasicUserDetails.ADMINISTRATOR_USERNAME.equals(username)) {
             return Optional.of(administrator);
         } else {
-            try(var context = repository.openContext()) {
+            try(var context = repository.joinReadOnlyContext()) {
                 return context.findUserByUsername(username);
             }
         }
@@ -71,7 +71,8 @@ class CurrentGameCoreSpec extends CoreSpecification {
 
         then: "the game indicates which character the user is playing"
         result.isPresent()
-        def game = result.map(r -> r.game()).get()
+        def game = result.get()
+        game.character != null
         def users = game.users
         expect(users, aMapWithSize(1))
         expect(users.values(), contains(userId))
@@ -42,9 +42,9 @@ class GameCoreSpec extends CoreSpecification {
         def userId = world.userService.add(userDetails).getId()
 
         when: "examine the game"
-        def findGameResultOptional = world.gameService.getGameAsNonGameManager(gameId, userId)
-        findGameResultOptional.isPresent()
-        def game = findGameResultOptional.map(r -> r.game()).get()
+        def viewOptional = world.gameService.getGameAsNonGameManager(gameId, userId)
+        viewOptional.isPresent()
+        def game = viewOptional.get()
 
         then: "the game indicates its scenario"
         game.scenario != null
@@ -68,7 +68,8 @@ class GameCoreSpec extends CoreSpecification {
         expect(game.runState, Matchers.notNullValue())
 
         and: "the game indicates which character (if any) the user is playing"
-        expect(game.users, Matchers.any(Map.class))
+        game.user == userId
+        game.character == null
 
         and: "the game does not indicate which characters are played by which (other) users"
         def users = game.users.values()
@@ -172,7 +173,7 @@ class GameCoreSpec extends CoreSpecification {
         when: "examine the game"
         def result = world.gameService.getGameAsNonGameManager(gameIdentifier, user.id)
         result.isPresent()
-        def game = result.map(r -> r.game()).get()
+        def game = result.get()
 
         then: "the game indicates that the user may join the game"
         world.gameService.mayUserJoinGame(user.id, gameIdentifier)
@@ -194,14 +195,15 @@ class GameCoreSpec extends CoreSpecification {
         world.gameService.userJoinsGame(user.id, gameIdentifier)
 
         then: "the game indicates that the user is playing the game"
-        def findGameResultOptional =
+        def viewOptional =
                 world.gameService.getGameAsNonGameManager(gameIdentifier, user.id)
-        findGameResultOptional.isPresent()
-        def users = findGameResultOptional.map(r -> r.game()).get().users
-        expect(users.values(), Matchers.hasItem(user.id))
+        viewOptional.isPresent()
+        def game = viewOptional.get()
+        expect(game.users.values(), Matchers.hasItem(user.id))
 
         and: "the game indicates which character the user is playing"
-        expect(users, Matchers.any(Map.class))
+        game.character != null
+        expect(game.users, Matchers.hasEntry(game.character, user.id))
     }
 
     def "Only a player may join a game"() {
@@ -0,0 +1,116 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.badamson.dbc.assertions.ObjectVerifier;
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class UserGameViewTest {
+    private static final UUID SCENARIO_ID = UUID.randomUUID();
+    private static final UUID USER_ID_A = UUID.randomUUID();
+    private static final UUID USER_ID_B = UUID.randomUUID();
+    private static final UUID CHARACTER_ID_A = UUID.randomUUID();
+    private static final UUID CHARACTER_ID_B = UUID.randomUUID();
+    private static final Scenario SCENARIO = new Scenario("Beach Assault", "", List.of(
+            new NamedUUID(CHARACTER_ID_A, "Lt. Winters"), new NamedUUID(CHARACTER_ID_B, "Sgt. Summer")));
+
+    public static void assertInvariants(@Nonnull final UserGameView view) {
+        ObjectVerifier.assertInvariants(view);
+        assertAll(
+                () -> assertThat("scenario", view.getScenario(), notNullValue()),
+                () -> assertThat("users", view.getUsers(), view.getCharacter() == null
+                        ? anEmptyMap() : is(Map.of(view.getCharacter(), view.getUser()))));
+    }
+
+    @Nonnull
+    private static Game createGame(@Nonnull final Map<UUID, UUID> users) {
+        final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, users);
+        game.setScenario(SCENARIO);
+        return game;
+    }
+
+    @Nested
+    public class Constructor {
+
+        @Test
+        public void player() {
+            final var game = createGame(Map.of(CHARACTER_ID_A, USER_ID_A, CHARACTER_ID_B, USER_ID_B));
+
+            final var view = new UserGameView(new FindGameResult(game, SCENARIO_ID, 3L), USER_ID_A);
+
+            assertInvariants(view);
+            assertAll(
+                    () -> assertThat("created", view.getCreated(), is(game.getCreated())),
+                    () -> assertThat("scenario", view.getScenario(), sameInstance(SCENARIO)),
+                    () -> assertThat("scenarioId", view.getScenarioId(), is(SCENARIO_ID)),
+                    () -> assertThat("version", view.getVersion(), is(3L)),
+                    () -> assertThat("character", view.getCharacter(), is(CHARACTER_ID_A)),
+                    () -> assertThat("users", view.getUsers(), is(Map.of(CHARACTER_ID_A, USER_ID_A))));
+        }
+
+        @Test
+        public void notPlayer() {
+            final var game = createGame(Map.of(CHARACTER_ID_B, USER_ID_B));
+
+            final var view = new UserGameView(new FindGameResult(game, SCENARIO_ID), USER_ID_A);
+
+            assertInvariants(view);
+            assertAll(
+                    () -> assertThat("character", view.getCharacter(), nullValue()),
+                    () -> assertThat("users", view.getUsers(), anEmptyMap()));
+        }
+
+        @Test
+        public void noScenario() {
+            final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, Map.of());
+            final var result = new FindGameResult(game, SCENARIO_ID);
+
+            assertThrows(NullPointerException.class, () -> new UserGameView(result, USER_ID_A));
+        }
+
+        @Test
+        public void laterChangesOfGame() {
+            final var game = createGame(Map.of());
+            final var view = new UserGameView(new FindGameResult(game, SCENARIO_ID), USER_ID_A);
+
+            game.addUser(CHARACTER_ID_A, USER_ID_A);
+            game.setRunState(Game.RunState.RUNNING);
+            game.endRecruitment();
+
+            assertInvariants(view);
+            assertAll(
+                    () -> assertThat("runState", view.getRunState(), is(Game.RunState.WAITING_TO_START)),
+                    () -> assertThat("recruiting", view.isRecruiting(), is(true)),
+                    () -> assertThat("character", view.getCharacter(), nullValue()),
+                    () -> assertThat("users", view.getUsers(), anEmptyMap()));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.badamson.mc.Game;
+import uk.badamson.mc.User;
+import uk.badamson.mc.UserGameAssociation;
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AsyncContextTest {
+
+    private static final UUID GAME_ID = UUID.randomUUID();
+    private static final UUID USER_ID = UUID.randomUUID();
+
+    @Nonnull
+    private static Game createGame(@Nonnull MCRepository repository) {
+        final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, Map.of());
+        try (var context = repository.openContext()) {
+            game.setScenario(context.findAllScenarios().iterator().next().getValue());
+        }
+        return game;
+    }
+
+    private static void populate(@Nonnull MCRepository repository) {
+        final var game = createGame(repository);
+        try (var context = repository.openContext()) {
+            context.addUser(USER_ID, new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true));
+            context.addGame(GAME_ID, game);
+            context.addCurrentUserGame(USER_ID, new UserGameAssociation(USER_ID, GAME_ID));
+        }
+    }
+
+    @Nonnull
+    private static <VALUE> VALUE get(@Nonnull Future<VALUE> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void findAll() throws Exception {
+        final var repository = new MCRepositoryTest.Fake();
+        populate(repository);
+
+        try (var context = repository.openAsyncContext()) {
+            final var user = context.findUser(USER_ID);
+            final var game = context.findGame(GAME_ID);
+            final var current = context.findCurrentUserGame(USER_ID);
+
+            assertThat(get(user).orElseThrow().getUsername(), is("Jeff"));
+            assertThat(get(game).isPresent(), is(true));
+            assertThat(get(current).orElseThrow().getGame(), is(GAME_ID));
+        }
+    }
+
+    @Test
+    public void absent() throws Exception {
+        final var repository = new MCRepositoryTest.Fake();
+
+        try (var context = repository.openAsyncContext()) {
+            assertThat(get(context.findGame(GAME_ID)), is(Optional.empty()));
+            assertThat(get(context.findUser(USER_ID)), is(Optional.empty()));
+        }
+    }
+
+    @Test
+    public void retains() throws Exception {
+        final var repository = new MCRepositoryTest.Fake();
+        populate(repository);
+        final int readsBefore = repository.getUncachedReadCount();
+
+        try (var context = repository.openAsyncContext()) {
+            final var first = get(context.findGame(GAME_ID)).orElseThrow();
+            final var second = get(context.findGame(GAME_ID)).orElseThrow();
+
+            assertThat(second, sameInstance(first));
+        }
+        assertThat(repository.getUncachedReadCount() - readsBefore, is(1));
+    }
+
+    @Nested
+    public class Shared {
+
+        @Test
+        public void populates() throws Exception {
+            final var repository = new MCRepositoryTest.Fake(new SharedCache(100, 100));
+            populate(repository);
+            try (var context = repository.openAsyncContext()) {
+                get(context.findUser(USER_ID));
+            }
+            final int readsBefore = repository.getUncachedReadCount();
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findUser(USER_ID).isPresent(), is(true));
+            }
+            assertThat(repository.getUncachedReadCount() - readsBefore, is(0));
+        }
+    }
+
+    @Nested
+    public class Executing {
+
+        private Executor executor = Runnable::run;
+
+        private final MCRepositoryTest.Fake repository = new MCRepositoryTest.Fake() {
+            @Nonnull
+            @Override
+            protected Executor getAsyncExecutor() {
+                return executor;
+            }
+        };
+
+        @Test
+        public void rejected() throws Exception {
+            populate(repository);
+            executor = task -> {
+                throw new RejectedExecutionException("full");
+            };
+
+            try (var context = repository.openAsyncContext()) {
+                final var exception = assertThrows(ExecutionException.class, () -> get(context.findGame(GAME_ID)));
+                assertThat(exception.getCause(), instanceOf(RejectedExecutionException.class));
+
+                executor = Runnable::run;
+                assertThat(get(context.findGame(GAME_ID)).isPresent(), is(true));
+            }
+        }
+
+        @Test
+        public void prefetchRejected() {
+            populate(repository);
+            executor = task -> {
+                throw new RejectedExecutionException("full");
+            };
+
+            try (var context = repository.openContext()) {
+                context.prefetchGame(GAME_ID);
+
+                assertThat(context.findGame(GAME_ID).isPresent(), is(true));
+            }
+        }
+
+        @Test
+        public void reentrant() throws Exception {
+            populate(repository);
+            try (var context = repository.openAsyncContext()) {
+                final var nested = new CompletableFuture<Future<?>>();
+                executor = task -> {
+                    nested.complete(context.findGame(GAME_ID));
+                    task.run();
+                };
+
+                final var game = context.findGame(GAME_ID);
+
+                assertThat(get(game).isPresent(), is(true));
+                assertThat(get(nested), sameInstance(game));
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HistogramRepositoryMetricsTest {
+
+    @Test
+    public void hitRatioWithoutAttempts() {
+        final var metrics = new HistogramRepositoryMetrics();
+
+        assertThat(Double.isNaN(metrics.getHitRatio(RepositoryMetrics.EntityType.USER)), is(true));
+    }
+
+    @Nested
+    public class Histogram {
+
+        @Test
+        public void buckets() {
+            assertThat(HistogramRepositoryMetrics.Histogram.bucket(0), is(0));
+            assertThat(HistogramRepositoryMetrics.Histogram.bucket(1), is(1));
+            assertThat(HistogramRepositoryMetrics.Histogram.bucket(2), is(2));
+            assertThat(HistogramRepositoryMetrics.Histogram.bucket(3), is(2));
+            assertThat(HistogramRepositoryMetrics.Histogram.bucket(4), is(3));
+            assertThat(HistogramRepositoryMetrics.Histogram.bucket(Long.MAX_VALUE), is(63));
+        }
+
+        @Test
+        public void quantiles() {
+            final var histogram = new HistogramRepositoryMetrics().getWritesPerContext();
+            for (int i = 0; i < 99; ++i) {
+                histogram.record(1);
+            }
+            histogram.record(1000);
+
+            assertThat(histogram.getCount(), is(100L));
+            assertThat(histogram.getSum(), is(1099L));
+            assertThat(histogram.getQuantileUpperBound(0.5), is(1L));
+            assertThat(histogram.getQuantileUpperBound(1.0), is(1023L));
+        }
+
+        @Test
+        public void empty() {
+            final var histogram = new HistogramRepositoryMetrics().getWritesPerContext();
+
+            assertThat(histogram.getQuantileUpperBound(0.99), is(0L));
+        }
+
+        @Test
+        public void invalidQuantile() {
+            final var histogram = new HistogramRepositoryMetrics().getWritesPerContext();
+
+            assertThrows(IllegalArgumentException.class, () -> histogram.getQuantileUpperBound(1.5));
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.badamson.mc.FindGameResult;
+import uk.badamson.mc.Game;
+import uk.badamson.mc.User;
+import uk.badamson.mc.UserGameAssociation;
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class InMemoryMCRepositoryTest {
+
+    private static final UUID GAME_ID = UUID.randomUUID();
+    private static final UUID USER_ID = UUID.randomUUID();
+
+    @Nonnull
+    private static Game createGame(@Nonnull MCRepository repository) {
+        final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, Map.of());
+        try (var context = repository.openContext()) {
+            game.setScenario(context.findAllScenarios().iterator().next().getValue());
+        }
+        return game;
+    }
+
+    @Nonnull
+    private static User createUser(@Nonnull UUID id, @Nonnull String username) {
+        return new User(id, username, "password", Set.of(), true, true, true, true);
+    }
+
+    @Nested
+    public class Games {
+
+        @Test
+        public void addAndFind() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            final UUID scenarioId;
+            try (var context = repository.openContext()) {
+                scenarioId = context.findAllScenarios().iterator().next().getKey();
+                context.addGame(GAME_ID, game);
+            }
+
+            try (var context = repository.openContext()) {
+                final var result = context.findGame(GAME_ID).orElseThrow();
+                assertThat(result.scenarioId(), is(scenarioId));
+                assertThat(result.game().getCreated(), is(game.getCreated()));
+                assertThat(result.game(), not(sameInstance(game)));
+                assertThat(context.findGameIdsOfScenario(scenarioId), is(Map.of(GAME_ID, game.getCreated())));
+                assertThat(context.findAllGameIds(), is(Set.of(GAME_ID)));
+            }
+        }
+
+        @Test
+        public void addDuplicate() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+            final var duplicate = new Game(Instant.now(), Game.RunState.RUNNING, false, Map.of());
+            duplicate.setScenario(game.getScenario());
+
+            try (var context = repository.openContext()) {
+                assertThrows(IllegalStateException.class, () -> context.addGame(GAME_ID, duplicate));
+            }
+
+            try (var context = repository.openContext()) {
+                final var result = context.findGame(GAME_ID).orElseThrow();
+                assertThat(result.game().getCreated(), is(game.getCreated()));
+                assertThat(result.version(), is(0L));
+            }
+        }
+
+        @Test
+        public void changeAfterSaveNotStored() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+            game.addUser(UUID.randomUUID(), USER_ID);
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findGame(GAME_ID).orElseThrow().game().getUsers(), is(Map.of()));
+            }
+        }
+
+        @Test
+        public void findDoesNotCopyUsers() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            game.addUser(UUID.randomUUID(), USER_ID);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+
+            final Game gameA;
+            final Game gameB;
+            try (var context = repository.openContext()) {
+                gameA = context.findGame(GAME_ID).orElseThrow().game();
+            }
+            try (var context = repository.openContext()) {
+                gameB = context.findGame(GAME_ID).orElseThrow().game();
+            }
+
+            assertThat(gameA, not(sameInstance(gameB)));
+            assertThat(gameA.toSnapshot().getUsers(), sameInstance(gameB.toSnapshot().getUsers()));
+        }
+
+        @Test
+        public void update() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+            try (var context = repository.openContext()) {
+                final var loaded = context.findGame(GAME_ID).orElseThrow().game();
+                loaded.setScenario(game.getScenario());
+                loaded.setRunState(Game.RunState.RUNNING);
+                context.updateGame(loaded);
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findGame(GAME_ID).orElseThrow().game().getRunState(),
+                        is(Game.RunState.RUNNING));
+            }
+        }
+
+        @Test
+        public void pagesByCreated() {
+            final var repository = new InMemoryMCRepository();
+            final var gameIdB = UUID.randomUUID();
+            final var gameA = new Game(Instant.ofEpochSecond(100), Game.RunState.WAITING_TO_START, true, Map.of());
+            final var gameB = new Game(Instant.ofEpochSecond(50), Game.RunState.WAITING_TO_START, true, Map.of());
+            gameA.setScenario(createGame(repository).getScenario());
+            gameB.setScenario(gameA.getScenario());
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, gameA);
+                context.addGame(gameIdB, gameB);
+            }
+
+            try (var context = repository.openContext()) {
+                final var first = context.findGames(PageOrder.CREATED, null, 1);
+                assertThat(first.entries().get(0).getKey(), is(gameIdB));
+                final var second = context.findGames(PageOrder.CREATED, first.next(), 1);
+                assertThat(second.entries().get(0).getKey(), is(GAME_ID));
+                final var third = context.findGames(PageOrder.CREATED, second.next(), 1);
+                assertThat(third.entries().isEmpty(), is(true));
+            }
+        }
+    }
+
+    @Nested
+    public class Versions {
+
+        @Test
+        public void incrementedByUpdate() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+                assertThat(context.findGame(GAME_ID).orElseThrow().version(), is(0L));
+                game.setRunState(Game.RunState.RUNNING);
+                context.updateGame(game);
+                assertThat(context.findGame(GAME_ID).orElseThrow().version(), is(1L));
+                game.endRecruitment();
+                context.updateGame(game);
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findGame(GAME_ID).orElseThrow().version(), is(2L));
+            }
+        }
+
+        @Test
+        public void conflict() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+            try (var contextA = repository.openContext(); var contextB = repository.openContext()) {
+                final var gameA = contextA.findGame(GAME_ID).orElseThrow().game();
+                final var gameB = contextB.findGame(GAME_ID).orElseThrow().game();
+                gameA.setScenario(game.getScenario());
+                gameB.setScenario(game.getScenario());
+                gameA.setRunState(Game.RunState.RUNNING);
+                gameB.setRunState(Game.RunState.STOPPED);
+                contextA.updateGame(gameA);
+
+                final var exception = assertThrows(VersionConflictException.class, () -> contextB.updateGame(gameB));
+
+                assertThat(exception.getGameId(), is(GAME_ID));
+                final var reread = contextB.findGame(GAME_ID).orElseThrow();
+                assertThat("context discarded stale game", reread.game(), not(sameInstance(gameB)));
+                assertThat(reread.game().getRunState(), is(Game.RunState.RUNNING));
+            }
+        }
+
+        @Test
+        public void deltaKeepsUnchangedFields() {
+            final var repository = new InMemoryMCRepository();
+            final var characterA = UUID.randomUUID();
+            final var characterB = UUID.randomUUID();
+            final var userB = UUID.randomUUID();
+            final var game = createGame(repository);
+            game.addUser(characterA, USER_ID);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+            try (var context = repository.openContext()) {
+                final var loaded = context.findGame(GAME_ID).orElseThrow().game();
+                loaded.setScenario(game.getScenario());
+                loaded.addUser(characterB, userB);
+                context.updateGame(loaded);
+                loaded.endRecruitment();
+                context.updateGame(loaded);
+            }
+
+            try (var context = repository.openContext()) {
+                final var result = context.findGame(GAME_ID).orElseThrow();
+                assertThat(result.version(), is(2L));
+                assertThat(result.game().getCreated(), is(game.getCreated()));
+                assertThat(result.game().getRunState(), is(Game.RunState.WAITING_TO_START));
+                assertThat(result.game().isRecruiting(), is(false));
+                assertThat(result.game().getUsers(), is(Map.of(characterA, USER_ID, characterB, userB)));
+            }
+        }
+
+        @Test
+        public void staleBatch() {
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            final UUID scenarioId;
+            try (var context = repository.openContext()) {
+                scenarioId = context.findAllScenarios().iterator().next().getKey();
+                context.addGame(GAME_ID, game);
+                game.setRunState(Game.RunState.RUNNING);
+                context.updateGame(game);
+            }
+            final var stale = new WriteBatch(Map.of(), Map.of(), Map.of(),
+                    Map.of(GAME_ID, new FindGameResult(game, scenarioId, 0L)), Map.of(), Map.of());
+
+            try (var context = repository.openContext()) {
+                assertThrows(VersionConflictException.class, () -> context.saveUncached(stale));
+            }
+        }
+    }
+
+    @Nested
+    public class Users {
+
+        @Test
+        public void addAndFindByUsername() {
+            final var repository = new InMemoryMCRepository();
+            final var user = createUser(USER_ID, "Jeff");
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, user);
+            }
+
+            try (var context = repository.openContext()) {
+                final var found = context.findUserByUsername("Jeff");
+                assertThat(found.orElseThrow(), is(user));
+                assertThat(found.get(), not(sameInstance(user)));
+                assertThat(context.findUserByUsername("Fred").isEmpty(), is(true));
+            }
+        }
+
+        @Test
+        public void currentUserGame() {
+            final var repository = new InMemoryMCRepository();
+            final var association = new UserGameAssociation(USER_ID, GAME_ID);
+            try (var context = repository.openContext()) {
+                context.addCurrentUserGame(USER_ID, association);
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findCurrentUserGame(USER_ID), is(Optional.of(association)));
+            }
+        }
+    }
+
+    @Nested
+    public class Concurrency {
+
+        @Test
+        public void addManyUsersInParallel() throws Exception {
+            final int nThreads = 8;
+            final int nUsersPerThread = 200;
+            final var repository = new InMemoryMCRepository();
+            final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < nThreads; ++t) {
+                    final int thread = t;
+                    futures.add(executor.submit(() -> {
+                        for (int u = 0; u < nUsersPerThread; ++u) {
+                            final var id = UUID.randomUUID();
+                            try (var context = repository.openContext()) {
+                                context.addUser(id, createUser(id, "user-" + thread + "-" + u));
+                            }
+                        }
+                    }));
+                }
+                for (var future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findUsers(null, nThreads * nUsersPerThread + 1).entries().size(),
+                        is(nThreads * nUsersPerThread));
+                assertThat(context.findUserByUsername("user-3-17").isPresent(), is(true));
+            }
+        }
+
+        @Test
+        public void unconditionalUpdatesInParallel() throws Exception {
+            final int nThreads = 8;
+            final int nUpdatesPerThread = 500;
+            final var repository = new InMemoryMCRepository();
+            final var game = createGame(repository);
+            final UUID scenarioId;
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+                scenarioId = context.findGame(GAME_ID).orElseThrow().scenarioId();
+            }
+            final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < nThreads; ++t) {
+                    futures.add(executor.submit(() -> {
+                        try (var context = repository.openContext()) {
+                            for (int u = 0; u < nUpdatesPerThread; ++u) {
+                                context.updateGameUncached(GAME_ID, scenarioId, game);
+                            }
+                        }
+                    }));
+                }
+                for (var future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findGame(GAME_ID).orElseThrow().version(), is((long) nThreads * nUpdatesPerThread));
+            }
+        }
+    }
+}
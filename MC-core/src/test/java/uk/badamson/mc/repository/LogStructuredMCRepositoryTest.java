@@ -0,0 +1,372 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.badamson.mc.Game;
+import uk.badamson.mc.User;
+import uk.badamson.mc.UserGameAssociation;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LogStructuredMCRepositoryTest {
+
+    private static final UUID GAME_ID = UUID.randomUUID();
+    private static final UUID USER_ID = UUID.randomUUID();
+    private static final UUID CHARACTER_ID = UUID.randomUUID();
+
+    private Path directory;
+
+    @Nonnull
+    private static Game createGame(@Nonnull MCRepository repository) {
+        final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, Map.of());
+        try (var context = repository.openContext()) {
+            game.setScenario(context.findAllScenarios().iterator().next().getValue());
+        }
+        game.addUser(CHARACTER_ID, USER_ID);
+        return game;
+    }
+
+    @Nonnull
+    private static User createUser() {
+        return new User(USER_ID, "Jeff", null, Set.of(), true, false, true, true);
+    }
+
+    private static void populate(@Nonnull MCRepository repository) {
+        final var game = createGame(repository);
+        try (var context = repository.openContext()) {
+            context.addUser(USER_ID, createUser());
+            context.addGame(GAME_ID, game);
+            context.addCurrentUserGame(USER_ID, new UserGameAssociation(USER_ID, GAME_ID));
+        }
+    }
+
+    private static void assertPopulated(@Nonnull MCRepository repository) {
+        try (var context = repository.openContext()) {
+            final var user = context.findUser(USER_ID).orElseThrow();
+            assertThat(user, is(createUser()));
+            assertThat(user.getPassword(), nullValue());
+            assertThat(user.isAccountNonLocked(), is(false));
+            assertThat(context.findUserByUsername("Jeff").isPresent(), is(true));
+            final var game = context.findGame(GAME_ID).orElseThrow().game();
+            assertThat(game.getUsers(), is(Map.of(CHARACTER_ID, USER_ID)));
+            assertThat(context.findCurrentUserGame(USER_ID),
+                    is(Optional.of(new UserGameAssociation(USER_ID, GAME_ID))));
+        }
+    }
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("mc");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void empty() throws IOException {
+        try (var repository = new LogStructuredMCRepository(directory)) {
+            try (var context = repository.openContext()) {
+                assertThat(context.findAllGameIds(), is(Set.of()));
+            }
+        }
+    }
+
+    @Test
+    public void closed() throws IOException {
+        final var repository = new LogStructuredMCRepository(directory);
+        repository.close();
+        try (var context = repository.openContext()) {
+            assertThrows(IllegalStateException.class, () -> context.addUser(USER_ID, createUser()));
+        }
+    }
+
+    @Test
+    public void closeCompletesChangeEvents() throws Exception {
+        final var completed = new CompletableFuture<Void>();
+        final var repository = new LogStructuredMCRepository(directory);
+        repository.close();
+
+        repository.getChangeEvents().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+            }
+
+            @Override
+            public void onNext(ChangeEvent event) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+
+        completed.get(10, TimeUnit.SECONDS);
+    }
+
+    @Nested
+    public class Recovery {
+
+        @Test
+        public void fromLog() throws IOException {
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                populate(repository);
+            }
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+            }
+        }
+
+        @Test
+        public void fromSnapshot() throws IOException {
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                populate(repository);
+                repository.checkpoint();
+            }
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+            }
+        }
+
+        @Test
+        public void fromSnapshotAndLog() throws IOException {
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                populate(repository);
+                repository.checkpoint();
+                try (var context = repository.openContext()) {
+                    final var game = context.findGame(GAME_ID).orElseThrow().game();
+                    game.setScenario(context.findAllScenarios().iterator().next().getValue());
+                    game.setRunState(Game.RunState.RUNNING);
+                    context.updateGame(game);
+                }
+            }
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+                try (var context = repository.openContext()) {
+                    final var result = context.findGame(GAME_ID).orElseThrow();
+                    assertThat(result.game().getRunState(), is(Game.RunState.RUNNING));
+                    assertThat(result.version(), is(1L));
+                }
+            }
+        }
+
+        @Test
+        public void deltasFromLog() throws IOException {
+            final var characterB = UUID.randomUUID();
+            final var userB = UUID.randomUUID();
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                populate(repository);
+                try (var context = repository.openContext()) {
+                    final var game = context.findGame(GAME_ID).orElseThrow().game();
+                    game.setScenario(context.findAllScenarios().iterator().next().getValue());
+                    game.addUser(characterB, userB);
+                    context.updateGame(game);
+                    game.endRecruitment();
+                    game.setRunState(Game.RunState.RUNNING);
+                    context.updateGame(game);
+                }
+            }
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                try (var context = repository.openContext()) {
+                    final var result = context.findGame(GAME_ID).orElseThrow();
+                    assertThat(result.version(), is(2L));
+                    assertThat(result.game().getRunState(), is(Game.RunState.RUNNING));
+                    assertThat(result.game().isRecruiting(), is(false));
+                    assertThat(result.game().getUsers(), is(Map.of(CHARACTER_ID, USER_ID, characterB, userB)));
+                }
+            }
+        }
+
+        @Test
+        public void automaticCheckpoint() throws Exception {
+            try (var repository = new LogStructuredMCRepository(directory, null, 1, false)) {
+                populate(repository);
+                repository.awaitCheckpoints();
+
+                assertThat(repository.getCheckpointFailure(), nullValue());
+            }
+
+            assertThat(Files.exists(directory.resolve(LogStructuredMCRepository.SNAPSHOT_FILE)), is(true));
+            assertThat(Files.exists(directory.resolve(LogStructuredMCRepository.OLD_LOG_FILE)), is(false));
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+            }
+        }
+
+        @Test
+        public void savesDuringAutomaticCheckpoints() throws Exception {
+            final int nThreads = 4;
+            final int nUsersPerThread = 100;
+            try (var repository = new LogStructuredMCRepository(directory, null, 256, false)) {
+                final List<CompletableFuture<Void>> saving = new ArrayList<>();
+                for (int t = 0; t < nThreads; ++t) {
+                    final int thread = t;
+                    saving.add(CompletableFuture.runAsync(() -> {
+                        for (int u = 0; u < nUsersPerThread; ++u) {
+                            final var id = UUID.randomUUID();
+                            try (var context = repository.openContext()) {
+                                context.addUser(id, new User(id, "user-" + thread + "-" + u, null, Set.of(),
+                                        true, true, true, true));
+                            }
+                        }
+                    }));
+                }
+                for (var future : saving) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+            }
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                try (var context = repository.openContext()) {
+                    assertThat(context.findUsers(null, nThreads * nUsersPerThread + 1).entries().size(),
+                            is(nThreads * nUsersPerThread));
+                }
+            }
+        }
+
+        @Test
+        public void automaticCheckpointFails() throws Exception {
+            final var newSnapshot = directory.resolve(LogStructuredMCRepository.NEW_SNAPSHOT_FILE);
+            try (var repository = new LogStructuredMCRepository(directory, null, 1, false)) {
+                // A directory in the way of the new snapshot file prevents writing a snapshot
+                Files.createDirectory(newSnapshot);
+
+                populate(repository);
+                repository.awaitCheckpoints();
+
+                assertThat(repository.getCheckpointFailure(), notNullValue());
+                assertPopulated(repository);
+                try (var context = repository.openContext()) {
+                    final var game = context.findGame(GAME_ID).orElseThrow().game();
+                    game.setScenario(context.findAllScenarios().iterator().next().getValue());
+                    game.setRunState(Game.RunState.RUNNING);
+                    context.updateGame(game);// versioned, so would conflict were the save to fail after storing
+                }
+
+                Files.delete(newSnapshot);
+                repository.checkpoint();
+                assertThat(repository.getCheckpointFailure(), nullValue());
+            }
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+            }
+        }
+
+        @Test
+        public void fromRetiredLog() throws IOException {
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                populate(repository);
+            }
+            // As if the process crashed before a snapshot included the retired log
+            final var oldLog = directory.resolve(LogStructuredMCRepository.OLD_LOG_FILE);
+            Files.move(directory.resolve(LogStructuredMCRepository.LOG_FILE), oldLog);
+            Files.write(directory.resolve(LogStructuredMCRepository.NEXT_LOG_FILE), new byte[]{1, 2, 3});
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+                repository.checkpoint();
+            }
+
+            assertThat(Files.exists(oldLog), is(false));
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+            }
+        }
+
+        @Test
+        public void partlyWrittenRecord() throws IOException {
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                populate(repository);
+            }
+            final var log = directory.resolve(LogStructuredMCRepository.LOG_FILE);
+            Files.write(log, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+            final var otherUserId = UUID.randomUUID();
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+                try (var context = repository.openContext()) {
+                    context.addUser(otherUserId,
+                            new User(otherUserId, "Fred", "password", Set.of(), true, true, true, true));
+                }
+            }
+
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                assertPopulated(repository);
+                try (var context = repository.openContext()) {
+                    assertThat(context.findUserByUsername("Fred").isPresent(), is(true));
+                }
+            }
+        }
+
+        @Test
+        public void corruptSnapshot() throws IOException {
+            try (var repository = new LogStructuredMCRepository(directory)) {
+                populate(repository);
+                repository.checkpoint();
+            }
+            final var snapshot = directory.resolve(LogStructuredMCRepository.SNAPSHOT_FILE);
+            final var bytes = Files.readAllBytes(snapshot);
+            bytes[bytes.length - 1] ^= 0xFF;
+            Files.write(snapshot, bytes);
+
+            assertThrows(IOException.class, () -> new LogStructuredMCRepository(directory));
+        }
+    }
+}
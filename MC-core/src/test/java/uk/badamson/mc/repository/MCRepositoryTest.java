@@ -1,23 +1,945 @@
 package uk.badamson.mc.repository;
 
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
 import uk.badamson.mc.*;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class MCRepositoryTest {
 
+    private static final UUID GAME_ID = UUID.randomUUID();
+    private static final UUID USER_ID = UUID.randomUUID();
+
+    @Nonnull
+    private static Game createGame(@Nonnull MCRepository repository) {
+        final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, Map.of());
+        try (var context = repository.openContext()) {
+            game.setScenario(context.findAllScenarios().iterator().next().getValue());
+        }
+        return game;
+    }
+
+    @Nested
+    public class FindGameIdsOfScenario {
+
+        @Test
+        public void saved() {
+            final var repository = new Fake();
+            final var game = createGame(repository);
+            final UUID scenarioId;
+            try (var context = repository.openContext()) {
+                scenarioId = context.findAllScenarios().iterator().next().getKey();
+                context.addGame(GAME_ID, game);
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findGameIdsOfScenario(scenarioId), is(Map.of(GAME_ID, game.getCreated())));
+                assertThat(context.findGameIdsOfScenario(UUID.randomUUID()), is(Map.of()));
+            }
+        }
+
+        @Test
+        public void unsaved() {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            final var game = createGame(repository);
+
+            try (var context = repository.openContext()) {
+                final var scenarioId = context.findAllScenarios().iterator().next().getKey();
+                context.addGame(GAME_ID, game);
+                assertThat(context.findGameIdsOfScenario(scenarioId), is(Map.of(GAME_ID, game.getCreated())));
+            }
+        }
+    }
+
+    @Nested
+    public class Projections {
+
+        @Test
+        public void savedAndUnsaved() {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            final var gameIdB = UUID.randomUUID();
+            final var gameA = createGame(repository);
+            final var gameB = createGame(repository);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, gameA);
+            }
+
+            try (var context = repository.openContext()) {
+                context.addGame(gameIdB, gameB);
+                gameB.endRecruitment();
+                context.updateGame(gameB);
+
+                assertThat("ids", context.findAllGameIds(), is(Set.of(GAME_ID, gameIdB)));
+                assertThat("scenarios", context.findAllGameScenarios().size(), is(2));
+                assertThat("states", Set.copyOf(context.findAllGameStates()), is(Set.of(
+                        new GameStateProjection(GAME_ID, Game.RunState.WAITING_TO_START, true),
+                        new GameStateProjection(gameIdB, Game.RunState.WAITING_TO_START, false))));
+            }
+        }
+    }
+
+    @Nested
+    public class Pages {
+
+        @Test
+        public void createdOrder() {
+            final var repository = new Fake();
+            final var scenario = createGame(repository).getScenario();
+            final List<UUID> ids = new ArrayList<>();
+            try (var context = repository.openContext()) {
+                for (int i = 0; i < 5; ++i) {
+                    final var id = UUID.randomUUID();
+                    final var game = new Game(Instant.EPOCH.plusSeconds(5 - i), Game.RunState.WAITING_TO_START,
+                            true, Map.of());
+                    game.setScenario(scenario);
+                    context.addGame(id, game);
+                    ids.add(0, id);
+                }
+            }
+
+            try (var context = repository.openContext()) {
+                final var page1 = context.findGames(PageOrder.CREATED, null, 2);
+                final var page2 = context.findGames(PageOrder.CREATED, page1.next(), 2);
+                final var all = context.streamAllGames(PageOrder.CREATED, 2).map(Map.Entry::getKey).toList();
+
+                assertThat("page 1", page1.entries().stream().map(Map.Entry::getKey).toList(),
+                        is(ids.subList(0, 2)));
+                assertThat("page 2", page2.entries().stream().map(Map.Entry::getKey).toList(),
+                        is(ids.subList(2, 4)));
+                assertThat("all", all, is(ids));
+            }
+        }
+    }
+
+    @Nested
+    public class WriteBehind {
+
+        @Test
+        public void deferredUntilClose() {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            final var game = createGame(repository);
+
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+                assertThat("visible through the context", context.findGame(GAME_ID).isPresent());
+                assertThat("not yet written", repository.getUncachedWriteCount(), is(0));
+            }
+
+            assertThat("written", repository.getUncachedWriteCount(), is(1));
+            try (var context = repository.openContext()) {
+                assertThat("visible through other contexts", context.findGame(GAME_ID).isPresent());
+            }
+        }
+
+        @Test
+        public void closeAsync() throws Exception {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            final var game = createGame(repository);
+            final var context = repository.openContext();
+            context.addGame(GAME_ID, game);
+
+            context.closeAsync().get(10, TimeUnit.SECONDS);
+
+            assertThat("written", repository.getUncachedWriteCount(), is(1));
+            assertThat("batched", repository.getBatchCount(), is(1));
+        }
+
+        @Test
+        public void coalescesUpdates() {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, createGame(repository));
+            }
+
+            try (var context = repository.openContext()) {
+                final var game = context.findGame(GAME_ID).orElseThrow().game();
+                game.setScenario(createGame(repository).getScenario());
+                game.setRunState(Game.RunState.RUNNING);
+                context.updateGame(game);
+                game.endRecruitment();
+                context.updateGame(game);
+            }
+
+            assertThat("writes", repository.getUncachedWriteCount(), is(2));
+            try (var context = repository.openContext()) {
+                final var game = context.findGame(GAME_ID).orElseThrow().game();
+                assertThat("runState", game.getRunState(), is(Game.RunState.RUNNING));
+                assertThat("recruiting", game.isRecruiting(), is(false));
+            }
+        }
+
+        @Test
+        public void oneBatch() {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, createGame(repository));
+            }
+            final var batches0 = repository.getBatchCount();
+
+            try (var context = repository.openContext()) {
+                final var game = context.findGame(GAME_ID).orElseThrow().game();
+                game.setScenario(createGame(repository).getScenario());
+                game.addUser(UUID.randomUUID(), USER_ID);
+                context.addCurrentUserGame(USER_ID, new UserGameAssociation(USER_ID, GAME_ID));
+                context.updateGame(game);
+            }
+
+            assertThat("batches", repository.getBatchCount(), is(batches0 + 1));
+            try (var context = repository.openContext()) {
+                assertThat("association", context.findCurrentUserGame(USER_ID).isPresent());
+            }
+        }
+
+        @Test
+        public void addThenUpdate() {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+
+            try (var context = repository.openContext()) {
+                final var game = createGame(repository);
+                context.addGame(GAME_ID, game);
+                game.endRecruitment();
+                context.updateGame(game);
+            }
+
+            assertThat("writes", repository.getUncachedWriteCount(), is(1));
+            try (var context = repository.openContext()) {
+                assertThat("recruiting", context.findGame(GAME_ID).orElseThrow().game().isRecruiting(), is(false));
+            }
+        }
+    }
+
+    @Nested
+    public class Deltas {
+
+        @Test
+        public void runState() {
+            final var repository = new Fake();
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, createGame(repository));
+            }
+
+            try (var context = repository.openContext()) {
+                final var game = context.findGame(GAME_ID).orElseThrow().game();
+                game.setScenario(createGame(repository).getScenario());
+                game.setRunState(Game.RunState.RUNNING);
+                context.updateGame(game);
+            }
+
+            assertThat(repository.getGameDeltas(), contains(new GameDelta(Game.RunState.RUNNING, null, Map.of())));
+        }
+
+        @Test
+        public void addedUser() {
+            final var repository = new Fake();
+            final var characterA = UUID.randomUUID();
+            final var characterB = UUID.randomUUID();
+            final var game = createGame(repository);
+            game.addUser(characterA, UUID.randomUUID());
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+
+            try (var context = repository.openContext()) {
+                final var loaded = context.findGame(GAME_ID).orElseThrow().game();
+                loaded.setScenario(game.getScenario());
+                loaded.addUser(characterB, USER_ID);
+                context.updateGame(loaded);
+            }
+
+            assertThat(repository.getGameDeltas(), contains(new GameDelta(null, null, Map.of(characterB, USER_ID))));
+            try (var context = repository.openContext()) {
+                assertThat(context.findGame(GAME_ID).orElseThrow().game().getUsers().keySet(),
+                        is(Set.of(characterA, characterB)));
+            }
+        }
+
+        @Test
+        public void relativeToPreviousSave() {
+            final var repository = new Fake();
+            try (var context = repository.openContext()) {
+                final var game = createGame(repository);
+                context.addGame(GAME_ID, game);
+                game.setRunState(Game.RunState.RUNNING);
+                context.updateGame(game);
+                game.endRecruitment();
+                context.updateGame(game);
+            }
+
+            assertThat(repository.getGameDeltas(), contains(
+                    new GameDelta(Game.RunState.RUNNING, null, Map.of()),
+                    new GameDelta(null, false, Map.of())));
+        }
+
+        @Test
+        public void notForWriteBehind() {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, createGame(repository));
+            }
+
+            try (var context = repository.openContext()) {
+                final var game = context.findGame(GAME_ID).orElseThrow().game();
+                game.setScenario(createGame(repository).getScenario());
+                game.setRunState(Game.RunState.RUNNING);
+                context.updateGame(game);
+            }
+
+            assertThat(repository.getGameDeltas().isEmpty(), is(true));
+            assertThat(repository.getUncachedWriteCount(), is(2));
+        }
+    }
+
+    @Nested
+    public class ChangeEvents {
+
+        @Test
+        public void writeThrough() throws Exception {
+            final var repository = new Fake();
+            final var game = createGame(repository);
+            final var character = UUID.randomUUID();
+            final var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+            repository.getChangeEvents().subscribe(subscriber);
+
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+                game.setRunState(Game.RunState.RUNNING);
+                game.addUser(character, USER_ID);
+                context.updateGame(game);
+                game.endRecruitment();
+                context.updateGame(game);
+            }
+
+            final var created = subscriber.next();
+            assertThat(created.type(), is(ChangeEvent.Type.GAME_CREATED));
+            assertThat(created.id(), is(GAME_ID));
+            assertThat(created.runState(), is(Game.RunState.WAITING_TO_START));
+            final var started = subscriber.next();
+            assertThat(started.type(), is(ChangeEvent.Type.GAME_RUN_STATE_CHANGED));
+            assertThat(started.runState(), is(Game.RunState.RUNNING));
+            assertThat(started.sequence(), is(created.sequence() + 1));
+            final var joined = subscriber.next();
+            assertThat(joined.type(), is(ChangeEvent.Type.USER_JOINED_GAME));
+            assertThat(joined.character(), is(character));
+            assertThat(joined.user(), is(USER_ID));
+            assertThat(subscriber.next().type(), is(ChangeEvent.Type.GAME_RECRUITMENT_ENDED));
+        }
+
+        @Test
+        public void userAdded() throws Exception {
+            final var repository = new Fake();
+            final var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+            repository.getChangeEvents().subscribe(subscriber);
+
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true));
+            }
+
+            final var event = subscriber.next();
+            assertThat(event.type(), is(ChangeEvent.Type.USER_ADDED));
+            assertThat(event.id(), is(USER_ID));
+        }
+
+        @Test
+        public void writeBehindAfterSave() throws Exception {
+            final var repository = new Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            final var game = createGame(repository);
+            final var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+            repository.getChangeEvents().subscribe(subscriber);
+
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+                game.setRunState(Game.RunState.RUNNING);
+                context.updateGame(game);
+                assertThat("not yet published", subscriber.poll(), nullValue());
+            }
+
+            assertThat(subscriber.next().type(), is(ChangeEvent.Type.GAME_CREATED));
+            assertThat(subscriber.next().type(), is(ChangeEvent.Type.GAME_RUN_STATE_CHANGED));
+        }
+
+        @Test
+        public void closed() throws Exception {
+            final var repository = new Fake();
+            final var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+            repository.getChangeEvents().subscribe(subscriber);
+
+            repository.closeChangeEvents();
+
+            subscriber.awaitComplete();
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true));
+            }
+            assertThat("not published", subscriber.poll(), nullValue());
+        }
+
+        @Test
+        public void slowSubscriberMissesEvents() throws Exception {
+            final var repository = new Fake();
+            final var subscriber = new RecordingSubscriber(0L);
+            repository.getChangeEvents().subscribe(subscriber);
+            final int published = 4 * Flow.defaultBufferSize();
+
+            try (var context = repository.openContext()) {
+                for (int u = 0; u < published; ++u) {
+                    final var id = UUID.randomUUID();
+                    context.addUser(id, new User(id, "User " + u, "password", Set.of(), true, true, true, true));
+                }
+            }
+            subscriber.request(Long.MAX_VALUE);
+
+            long previous = subscriber.next().sequence();
+            int received = 1;
+            for (var event = subscriber.poll(); event != null; event = subscriber.poll()) {
+                assertThat("ordered", previous < event.sequence());
+                previous = event.sequence();
+                ++received;
+            }
+            assertThat("missed some", received < published);
+        }
+
+        @Test
+        public void blockingSubscribersDoNotStallSaving() throws Exception {
+            final var repository = new Fake();
+            final var release = new CountDownLatch(1);
+            // Enough to occupy every thread and queue slot of the asynchronous executor, were they to share it.
+            final int nSubscribers = 80 * Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+            for (int s = 0; s < nSubscribers; ++s) {
+                repository.getChangeEvents().subscribe(new RecordingSubscriber(Long.MAX_VALUE) {
+                    @Override
+                    public void onNext(ChangeEvent event) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            final var saver = Thread.currentThread();
+            final var savingThreadDelivered = new AtomicBoolean(false);
+            repository.getChangeEvents().subscribe(new RecordingSubscriber(Long.MAX_VALUE) {
+                @Override
+                public void onNext(ChangeEvent event) {
+                    if (Thread.currentThread() == saver) {
+                        savingThreadDelivered.set(true);
+                    }
+                }
+            });
+
+            try {
+                final var saving = CompletableFuture.runAsync(() -> {
+                    try (var context = repository.openContext()) {
+                        for (int u = 0; u < 4; ++u) {
+                            final var id = UUID.randomUUID();
+                            context.addUser(id, new User(id, "User " + u, "password", Set.of(),
+                                    true, true, true, true));
+                        }
+                    }
+                }, runnable -> new Thread(runnable).start());
+
+                saving.get(10, TimeUnit.SECONDS);
+                try (var context = repository.openContext()) {
+                    context.addUser(USER_ID, new User(USER_ID, "Jeff", "password", Set.of(),
+                            true, true, true, true));
+                }
+                assertThat("saving thread did not deliver", savingThreadDelivered.get(), is(false));
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<ChangeEvent> {
+
+        private final long initialDemand;
+        private final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+        private final BlockingQueue<ChangeEvent> received = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Void> completed = new CompletableFuture<>();
+
+        RecordingSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (0 < initialDemand) {
+                subscription.request(initialDemand);
+            }
+            this.subscription.complete(subscription);
+        }
+
+        @Override
+        public void onNext(ChangeEvent event) {
+            received.add(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+            completed.complete(null);
+        }
+
+        void awaitComplete() throws Exception {
+            completed.get(10, TimeUnit.SECONDS);
+        }
+
+        void request(long n) throws Exception {
+            subscription.get(10, TimeUnit.SECONDS).request(n);
+        }
+
+        @Nonnull
+        ChangeEvent next() throws InterruptedException {
+            return Objects.requireNonNull(received.poll(10, TimeUnit.SECONDS), "event");
+        }
+
+        @Nullable
+        ChangeEvent poll() throws InterruptedException {
+            return received.poll(100, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Nested
+    public class Prefetch {
+
+        @Test
+        public void found() {
+            final var repository = new Fake();
+            final var user = new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, createGame(repository));
+                context.addUser(USER_ID, user);
+            }
+
+            try (var context = repository.openContext()) {
+                context.prefetchGame(GAME_ID);
+                context.prefetchUser(USER_ID);
+                context.prefetchCurrentUserGame(USER_ID);
+
+                assertThat(context.findUser(USER_ID), is(Optional.of(user)));
+                assertThat(context.findGame(GAME_ID).isPresent(), is(true));
+                assertThat(context.findCurrentUserGame(USER_ID).isEmpty(), is(true));
+            }
+            assertThat(repository.getUncachedReadCount(), is(3));
+        }
+
+        @Test
+        public void held() {
+            final var repository = new Fake();
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, createGame(repository));
+
+                context.prefetchGame(GAME_ID);
+
+                assertThat(context.findGame(GAME_ID).isPresent(), is(true));
+            }
+            assertThat(repository.getUncachedReadCount(), is(0));
+        }
+
+        @Test
+        public void unused() {
+            final var repository = new Fake();
+            try (var context = repository.openContext()) {
+                context.prefetchGame(GAME_ID);
+            }
+            try (var context = repository.openContext()) {
+                assertThat(context.findGame(GAME_ID).isEmpty(), is(true));
+            }
+        }
+    }
+
+    @Nested
+    public class Metrics {
+
+        @Test
+        public void hitsAndMisses() {
+            final var repository = new Fake();
+            final var metrics = new HistogramRepositoryMetrics();
+            repository.setMetrics(metrics);
+            try (var context = repository.openContext()) {
+                context.findGame(GAME_ID);
+                context.findGame(GAME_ID);
+                context.findAllUsers();
+            }
+
+            assertThat(metrics.getMisses(RepositoryMetrics.EntityType.GAME), is(1L));
+            assertThat(metrics.getHits(RepositoryMetrics.EntityType.GAME), is(1L));
+            assertThat(metrics.getHitRatio(RepositoryMetrics.EntityType.GAME), is(0.5));
+            assertThat(metrics.getLatencies(RepositoryMetrics.Operation.FIND_GAME).getCount(), is(1L));
+            assertThat(metrics.getFullScans(RepositoryMetrics.EntityType.USER), is(1L));
+            assertThat(metrics.getFullScans(RepositoryMetrics.EntityType.GAME), is(0L));
+        }
+
+        @Test
+        public void writesPerContext() {
+            final var repository = new Fake();
+            final var game = createGame(repository);
+            final var metrics = new HistogramRepositoryMetrics();
+            repository.setMetrics(metrics);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+                context.addUser(USER_ID, new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true));
+            }
+
+            assertThat(metrics.getWritesPerContext().getCount(), is(1L));
+            assertThat(metrics.getWritesPerContext().getSum(), is(2L));
+            assertThat(metrics.getLatencies(RepositoryMetrics.Operation.ADD_GAME).getCount(), is(1L));
+        }
+
+        @Test
+        public void noOpByDefault() {
+            assertThat(new Fake().getMetrics(), sameInstance(RepositoryMetrics.NO_OP));
+        }
+    }
+
+    @Nested
+    public class Join {
+
+        @Test
+        public void none() {
+            final var repository = new Fake();
+            try (var context = repository.joinContext()) {
+                assertThat(repository.getCurrentContext(), is(Optional.of(context)));
+            }
+            assertThat(repository.getCurrentContext().isEmpty(), is(true));
+        }
+
+        @Test
+        public void nested() {
+            final var repository = new Fake();
+            try (var outer = repository.joinContext()) {
+                final var game = createGame(repository);
+                try (var inner = repository.joinReadOnlyContext()) {
+                    assertThat(inner, sameInstance(outer));
+                    inner.addGame(GAME_ID, game);
+                }
+                assertThat("still current", repository.getCurrentContext(), is(Optional.of(outer)));
+                assertThat("still holds entities", outer.findGame(GAME_ID).orElseThrow().game(), sameInstance(game));
+            }
+            assertThat(repository.getCurrentContext().isEmpty(), is(true));
+        }
+
+        @Test
+        public void writeInReadOnly() {
+            final var repository = new Fake();
+            try (var outer = repository.joinReadOnlyContext()) {
+                try (var inner = repository.joinContext()) {
+                    assertThat(inner, not(sameInstance(outer)));
+                    assertThat(inner.getMode(), is(MCRepository.ContextMode.WRITE_THROUGH));
+                }
+                assertThat("restored", repository.getCurrentContext(), is(Optional.of(outer)));
+            }
+            assertThat(repository.getCurrentContext().isEmpty(), is(true));
+        }
+
+        @Test
+        public void openedNotCurrent() {
+            final var repository = new Fake();
+            try (var ignored = repository.openContext()) {
+                assertThat(repository.getCurrentContext().isEmpty(), is(true));
+            }
+        }
+    }
+
+    @Nested
+    public class ReadOnly {
+
+        @Test
+        public void find() {
+            final var repository = new Fake();
+            final var game = createGame(repository);
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, game);
+            }
+
+            try (var context = repository.openReadOnlyContext()) {
+                assertThat(context.getMode(), is(MCRepository.ContextMode.READ_ONLY));
+                final var found = context.findGame(GAME_ID).orElseThrow();
+                assertThat(found.game().getCreated(), is(game.getCreated()));
+                assertThat("identity", context.findGame(GAME_ID).orElseThrow(), sameInstance(found));
+            }
+        }
+
+        @Test
+        public void save() {
+            final var repository = new Fake();
+            final var game = createGame(repository);
+            final var user = new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true);
+
+            try (var context = repository.openReadOnlyContext()) {
+                assertThrows(IllegalStateException.class, () -> context.addGame(GAME_ID, game));
+                assertThrows(IllegalStateException.class, () -> context.addUser(USER_ID, user));
+                assertThrows(IllegalStateException.class,
+                        () -> context.addCurrentUserGame(USER_ID, new UserGameAssociation(USER_ID, GAME_ID)));
+            }
+            assertThat(repository.getUncachedWriteCount(), is(0));
+        }
+    }
+
+    @Nested
+    public class MultiGet {
+
+        @Test
+        public void games() {
+            final var repository = new Fake();
+            final var idB = UUID.randomUUID();
+            final var absentId = UUID.randomUUID();
+            try (var context = repository.openContext()) {
+                context.addGame(GAME_ID, createGame(repository));
+                context.addGame(idB, createGame(repository));
+            }
+            try (var context = repository.openContext()) {
+                final var held = context.findGame(GAME_ID).orElseThrow();
+                final int readsBefore = repository.getUncachedReadCount();
+
+                final var found = context.findGames(List.of(GAME_ID, idB, absentId));
+
+                assertThat(repository.getUncachedReadCount() - readsBefore, is(1));
+                assertThat(found.keySet(), contains(GAME_ID, idB));
+                assertThat("held", found.get(GAME_ID), sameInstance(held));
+                assertThat("retained", context.findGame(idB).orElseThrow(), sameInstance(found.get(idB)));
+            }
+        }
+
+        @Test
+        public void users() {
+            final var repository = new Fake(new SharedCache(100, 100));
+            final var idB = UUID.randomUUID();
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true));
+                context.addUser(idB, new User(idB, "Alan", "password", Set.of(), true, true, true, true));
+            }
+            try (var context = repository.openContext()) {
+                context.findUsers(List.of(USER_ID));
+            }
+            final int readsBefore = repository.getUncachedReadCount();
+
+            try (var context = repository.openContext()) {
+                final var found = context.findUsers(List.of(USER_ID, idB));
+
+                assertThat(found.keySet(), contains(USER_ID, idB));
+                assertThat(found.get(idB).getUsername(), is("Alan"));
+            }
+            assertThat(repository.getUncachedReadCount() - readsBefore, is(1));
+        }
+
+        @Test
+        public void none() {
+            final var repository = new Fake();
+            try (var context = repository.openContext()) {
+                assertThat(context.findGames(List.of()).isEmpty(), is(true));
+            }
+            assertThat(repository.getUncachedReadCount(), is(0));
+        }
+    }
+
+    @Nested
+    public class FindUserByUsername {
+
+        @Test
+        public void oneLookup() {
+            final var repository = new Fake();
+            final var user = new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true);
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, user);
+            }
+
+            try (var context = repository.openContext()) {
+                final var found = context.findUserByUsername("Jeff");
+                assertThat(found, is(Optional.of(user)));
+                assertThat("by ID", context.findUser(USER_ID).orElseThrow(), sameInstance(found.get()));
+            }
+            assertThat(repository.getUncachedReadCount(), is(1));
+        }
+
+        @Test
+        public void sharedCache() {
+            final var repository = new Fake(new SharedCache(100, 100));
+            final var user = new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true);
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, user);
+            }
+            try (var context = repository.openContext()) {
+                context.findUserByUsername("Jeff");
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findUserByUsername("Jeff"), is(Optional.of(user)));
+            }
+        }
+
+        @Test
+        public void findByUsernameOfHeldUserRecorded() {
+            final var repository = new Fake();
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true));
+            }
+            try (var context = repository.openContext()) {
+                final var held = context.findUser(USER_ID).orElseThrow();
+                try (var renaming = repository.openContext()) {
+                    renaming.addUser(USER_ID,
+                            new User(USER_ID, "Fred", "password", Set.of(), true, true, true, true));
+                }
+
+                assertThat(context.findUserByUsername("Fred").orElseThrow(), sameInstance(held));
+                final int reads = repository.getUncachedReadCount();
+                assertThat(context.findUserByUsername("Fred").orElseThrow(), sameInstance(held));
+                assertThat("no further reads", repository.getUncachedReadCount(), is(reads));
+            }
+        }
+    }
+
+    @Nested
+    public class NegativeCaching {
+
+        @Test
+        public void context() {
+            final var repository = new Fake();
+            try (var context = repository.openContext()) {
+                assertThat(context.findCurrentUserGame(USER_ID).isEmpty(), is(true));
+                assertThat(context.findCurrentUserGame(USER_ID).isEmpty(), is(true));
+                assertThat(context.findUserByUsername("Jeff").isEmpty(), is(true));
+                assertThat(context.findUserByUsername("Jeff").isEmpty(), is(true));
+            }
+            assertThat(repository.getUncachedReadCount(), is(2));
+        }
+
+        @Test
+        public void contextAdd() {
+            final var repository = new Fake();
+            final var association = new UserGameAssociation(USER_ID, GAME_ID);
+            try (var context = repository.openContext()) {
+                context.findCurrentUserGame(USER_ID);
+                context.addCurrentUserGame(USER_ID, association);
+
+                assertThat(context.findCurrentUserGame(USER_ID), is(Optional.of(association)));
+            }
+        }
+
+        @Test
+        public void shared() {
+            final var repository = new Fake(new SharedCache(100, 100, true));
+            try (var context = repository.openContext()) {
+                context.findCurrentUserGame(USER_ID);
+            }
+            try (var context = repository.openContext()) {
+                assertThat(context.findCurrentUserGame(USER_ID).isEmpty(), is(true));
+            }
+            assertThat(repository.getUncachedReadCount(), is(1));
+        }
+
+        @Test
+        public void sharedAdd() {
+            final var repository = new Fake(new SharedCache(100, 100, true));
+            final var user = new User(USER_ID, "Jeff", "password", Set.of(), true, true, true, true);
+            try (var context = repository.openContext()) {
+                context.findUser(USER_ID);
+                context.findUserByUsername("Jeff");
+            }
+            try (var context = repository.openContext()) {
+                context.addUser(USER_ID, user);
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findUser(USER_ID), is(Optional.of(user)));
+                assertThat(context.findUserByUsername("Jeff"), is(Optional.of(user)));
+            }
+        }
+
+        @Test
+        public void sharedDisabled() {
+            final var repository = new Fake(new SharedCache(100, 100, false));
+            try (var context = repository.openContext()) {
+                context.findGame(GAME_ID);
+            }
+            try (var context = repository.openContext()) {
+                context.findGame(GAME_ID);
+            }
+            assertThat(repository.getUncachedReadCount(), is(2));
+        }
+    }
+
     public static class Fake extends MCRepository {
 
         private final Map<UUID, FindGameResult> gameStore = new ConcurrentHashMap<>();
         private final Map<UUID, UserGameAssociation> currentUserGameStore = new ConcurrentHashMap<>();
         private final Map<UUID, User> userStore = new ConcurrentHashMap<>();
+        private final Map<UUID, Set<UUID>> scenarioToGamesIndex = new ConcurrentHashMap<>();
+
+        private final ContextMode contextMode;
+        private final AtomicInteger uncachedWriteCount = new AtomicInteger();
+        private final AtomicInteger uncachedReadCount = new AtomicInteger();
+        private final AtomicInteger batchCount = new AtomicInteger();
+        private final List<GameDelta> gameDeltas = new CopyOnWriteArrayList<>();
+
+        public Fake() {
+            this(null);
+        }
+
+        public Fake(@Nullable SharedCache sharedCache) {
+            this(sharedCache, ContextMode.WRITE_THROUGH);
+        }
+
+        public Fake(@Nullable SharedCache sharedCache, @Nonnull ContextMode contextMode) {
+            super(sharedCache);
+            this.contextMode = Objects.requireNonNull(contextMode);
+        }
+
+        /**
+         * The number of single-entity lookups in the store.
+         */
+        public int getUncachedReadCount() {
+            return uncachedReadCount.get();
+        }
+
+        /**
+         * The number of single-entity writes to the store.
+         */
+        public int getUncachedWriteCount() {
+            return uncachedWriteCount.get();
+        }
+
+        /**
+         * The number of batches of writes to the store.
+         */
+        public int getBatchCount() {
+            return batchCount.get();
+        }
+
+        /**
+         * The changes of games passed to the store, in the order they were passed.
+         */
+        public List<GameDelta> getGameDeltas() {
+            return List.copyOf(gameDeltas);
+        }
 
         @Nullable
         private static Game copy(@Nullable Game game) {
-            return game == null ? null : new Game(game);
+            return game == null ? null : new Game(game.toSnapshot());
         }
 
         @Nullable
@@ -33,30 +955,71 @@ public class MCRepositoryTest {
         @Nonnull
         @Override
         public Context openContext() {
-            return new FakeContext();
+            return new FakeContext(contextMode);
+        }
+
+        @Nonnull
+        @Override
+        public Context openReadOnlyContext() {
+            return new FakeContext(ContextMode.READ_ONLY);
         }
 
         private class FakeContext extends Context {
 
+            FakeContext(@Nonnull ContextMode mode) {
+                super(mode);
+            }
+
+            @Override
+            protected void saveUncached(@Nonnull WriteBatch batch) {
+                batchCount.incrementAndGet();
+                super.saveUncached(batch);
+            }
+
             @Override
             public void addGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game) {
+                uncachedWriteCount.incrementAndGet();
                 Objects.requireNonNull(id);
                 gameStore.put(id, new FindGameResult(copy(game), scenarioId));
+                scenarioToGamesIndex.computeIfAbsent(scenarioId, k -> ConcurrentHashMap.newKeySet()).add(id);
             }
 
             @Override
             public void updateGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game) {
+                uncachedWriteCount.incrementAndGet();
                 Objects.requireNonNull(id);
                 gameStore.put(id, new FindGameResult(copy(game), scenarioId));
             }
 
+            @Override
+            protected void updateGameUncached(@Nonnull UUID id, @Nonnull UUID scenarioId, @Nonnull Game game,
+                                              @Nonnull GameDelta delta, long expectedVersion) {
+                gameDeltas.add(delta);
+                super.updateGameUncached(id, scenarioId, game, delta, expectedVersion);
+            }
+
             @Nonnull
             @Override
             public Optional<FindGameResult> findGameUncached(@Nonnull UUID id) {
+                uncachedReadCount.incrementAndGet();
                 return Optional.ofNullable(gameStore.get(id))
                         .map(r -> new FindGameResult(copy(r.game()), r.scenarioId()));
             }
 
+            @Nonnull
+            @Override
+            protected Map<UUID, FindGameResult> findGamesUncached(@Nonnull Set<UUID> ids) {
+                uncachedReadCount.incrementAndGet();
+                final Map<UUID, FindGameResult> result = new HashMap<>();
+                for (final var id : ids) {
+                    final var stored = gameStore.get(id);
+                    if (stored != null) {
+                        result.put(id, new FindGameResult(copy(stored.game()), stored.scenarioId()));
+                    }
+                }
+                return result;
+            }
+
             @Nonnull
             @Override
             public Iterable<Map.Entry<UUID, FindGameResult>> findAllGamesUncached() {
@@ -66,8 +1029,43 @@ public class MCRepositoryTest {
                         .toList();
             }
 
+            @Nonnull
+            @Override
+            protected Iterable<UUID> findAllGameIdsUncached() {
+                return List.copyOf(gameStore.keySet());
+            }
+
+            @Nonnull
+            @Override
+            protected Iterable<GameScenarioProjection> findAllGameScenariosUncached() {
+                return gameStore.entrySet().stream()
+                        .map(entry -> new GameScenarioProjection(
+                                entry.getKey(), entry.getValue().scenarioId(), entry.getValue().game().getCreated()))
+                        .toList();
+            }
+
+            @Nonnull
+            @Override
+            protected Iterable<GameStateProjection> findAllGameStatesUncached() {
+                return gameStore.entrySet().stream()
+                        .map(entry -> {
+                            final var game = entry.getValue().game();
+                            return new GameStateProjection(entry.getKey(), game.getRunState(), game.isRecruiting());
+                        })
+                        .toList();
+            }
+
+            @Nonnull
+            @Override
+            protected Iterable<Map.Entry<UUID, Instant>> findGameIdsOfScenarioUncached(@Nonnull UUID scenarioId) {
+                return scenarioToGamesIndex.getOrDefault(scenarioId, Set.of()).stream()
+                        .map(id -> Map.entry(id, gameStore.get(id).game().getCreated()))
+                        .toList();
+            }
+
             @Override
             protected void addCurrentUserGameUncached(@Nonnull UUID userId, @Nonnull UserGameAssociation association) {
+                uncachedWriteCount.incrementAndGet();
                 Objects.requireNonNull(userId);
                 Objects.requireNonNull(association);
                 currentUserGameStore.put(userId, association);
@@ -75,6 +1073,7 @@ public class MCRepositoryTest {
 
             @Override
             protected void updateCurrentUserGameUncached(@Nonnull UUID userId, @Nonnull UserGameAssociation association) {
+                uncachedWriteCount.incrementAndGet();
                 Objects.requireNonNull(userId);
                 Objects.requireNonNull(association);
                 currentUserGameStore.put(userId, association);
@@ -84,6 +1083,7 @@ public class MCRepositoryTest {
             @Override
             protected Optional<UserGameAssociation> findCurrentUserGameUncached(@Nonnull UUID userId) {
                 Objects.requireNonNull(userId);
+                uncachedReadCount.incrementAndGet();
                 return Optional.ofNullable(currentUserGameStore.get(userId));
             }
 
@@ -91,13 +1091,40 @@ public class MCRepositoryTest {
             @Override
             protected Optional<User> findUserUncached(@Nonnull UUID id) {
                 Objects.requireNonNull(id);
+                uncachedReadCount.incrementAndGet();
                 return Optional.ofNullable(userStore.get(id)).map(Fake::copy);
             }
 
+            @Nonnull
+            @Override
+            protected Map<UUID, User> findUsersUncached(@Nonnull Set<UUID> ids) {
+                uncachedReadCount.incrementAndGet();
+                final Map<UUID, User> result = new HashMap<>();
+                for (final var id : ids) {
+                    final var user = userStore.get(id);
+                    if (user != null) {
+                        result.put(id, copy(user));
+                    }
+                }
+                return result;
+            }
+
+            @Nonnull
+            @Override
+            protected Optional<User> findUserForUsernameUncached(@Nonnull String username) {
+                Objects.requireNonNull(username);
+                uncachedReadCount.incrementAndGet();
+                return userStore.values().stream()
+                        .filter(u -> u.getUsername().equals(username))
+                        .findAny()
+                        .map(Fake::copy);
+            }
+
             @Nonnull
             @Override
             protected Optional<UUID> findUserIdForUsernameUncached(@Nonnull String username) {
                 Objects.requireNonNull(username);
+                uncachedReadCount.incrementAndGet();
                 return userStore.values().stream()
                         .filter(u -> u.getUsername().equals(username))
                         .map(User::getId)
@@ -112,6 +1139,7 @@ public class MCRepositoryTest {
 
             @Override
             public void addUserUncached(@Nonnull UUID id, @Nonnull User user) {
+                uncachedWriteCount.incrementAndGet();
                 Objects.requireNonNull(id);
                 Objects.requireNonNull(user);
                 userStore.put(id, user);
@@ -119,6 +1147,7 @@ public class MCRepositoryTest {
 
             @Override
             public void updateUserUncached(@Nonnull UUID id, @Nonnull User user) {
+                uncachedWriteCount.incrementAndGet();
                 Objects.requireNonNull(id);
                 Objects.requireNonNull(user);
                 userStore.put(id, user);
@@ -0,0 +1,171 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.badamson.mc.Game;
+import uk.badamson.mc.NamedUUID;
+import uk.badamson.mc.Scenario;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ScenarioCatalogueTest {
+
+    private static final UUID ID_A = UUID.randomUUID();
+    private static final UUID ID_B = UUID.randomUUID();
+    private static final UUID CHARACTER_ID = UUID.randomUUID();
+
+    @Nonnull
+    private static Scenario createScenario(@Nonnull String title) {
+        return new Scenario(title, "Description", List.of(new NamedUUID(CHARACTER_ID, "Lt. Winters")));
+    }
+
+    @Nested
+    public class Snapshots {
+
+        @Test
+        public void indexes() {
+            final var scenarioA = createScenario("Section assault");
+            final var scenarioB = createScenario("Section assault");
+            final var catalogue = new ScenarioCatalogue(Map.of(ID_A, scenarioA, ID_B, scenarioB));
+
+            final var snapshot = catalogue.getSnapshot();
+
+            assertThat(snapshot.findScenario(ID_A), is(Optional.of(scenarioA)));
+            assertThat(snapshot.contains(ID_B), is(true));
+            assertThat(snapshot.contains(UUID.randomUUID()), is(false));
+            assertThat(snapshot.findScenariosByTitle("Section assault").keySet(), containsInAnyOrder(ID_A, ID_B));
+            assertThat(snapshot.findScenariosByTitle("Ambush").isEmpty(), is(true));
+            assertThat(snapshot.findId(scenarioB), is(ID_B));
+            assertThat("reference equality", snapshot.findId(createScenario("Section assault")), nullValue());
+        }
+
+        @Test
+        public void replace() {
+            final var catalogue = new ScenarioCatalogue(Map.of(ID_A, createScenario("Section assault")));
+            final var before = catalogue.getSnapshot();
+
+            catalogue.replace(Map.of(ID_B, createScenario("Ambush")));
+
+            assertThat("old snapshot unchanged", before.contains(ID_A), is(true));
+            assertThat(catalogue.getSnapshot().contains(ID_A), is(false));
+            assertThat(catalogue.getSnapshot().contains(ID_B), is(true));
+        }
+
+        @Test
+        public void contextUsesSnapshotWhenOpened() {
+            final var scenario = createScenario("Section assault");
+            final var catalogue = new ScenarioCatalogue(Map.of(ID_A, scenario));
+            final var repository = new InMemoryMCRepository(catalogue, null);
+            try (var context = repository.openContext()) {
+                catalogue.replace(Map.of());
+                final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, Map.of());
+                game.setScenario(context.findScenario(ID_A).orElseThrow());
+
+                context.addGame(ID_B, game);
+            }
+            try (var context = repository.openContext()) {
+                assertThat(context.findScenario(ID_A).isEmpty(), is(true));
+                assertThat(context.findGame(ID_B).orElseThrow().scenarioId(), is(ID_A));
+            }
+        }
+    }
+
+    @Nested
+    public class Loading {
+
+        private Path directory;
+
+        @BeforeEach
+        public void createDirectory() throws IOException {
+            directory = Files.createTempDirectory("mc");
+        }
+
+        @AfterEach
+        public void deleteDirectory() throws IOException {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+
+        private void write(@Nonnull String name, @Nonnull String content) throws IOException {
+            Files.writeString(directory.resolve(name), content);
+        }
+
+        @Test
+        public void load() throws IOException {
+            write("a.scenario", "id=" + ID_A + "\n"
+                    + "title=Section assault\n"
+                    + "description=Basic fire and movement tactics.\n"
+                    + "character.1.id=" + CHARACTER_ID + "\n"
+                    + "character.1.title=Lt. Winters\n");
+            write("ignored.txt", "not a scenario");
+
+            final var snapshot = ScenarioCatalogue.load(directory).getSnapshot();
+
+            assertThat(snapshot.getScenarios().keySet(), contains(ID_A));
+            final var scenario = snapshot.findScenario(ID_A).orElseThrow();
+            assertThat(scenario.getTitle(), is("Section assault"));
+            assertThat(scenario.getCharacters(), contains(new NamedUUID(CHARACTER_ID, "Lt. Winters")));
+        }
+
+        @Test
+        public void invalidReloadRetainsScenarios() throws IOException {
+            final var catalogue = new ScenarioCatalogue(Map.of(ID_A, createScenario("Section assault")));
+            write("b.scenario", "id=" + ID_B + "\ntitle=Ambush\n");
+
+            assertThrows(IOException.class, () -> catalogue.reload(directory));
+
+            assertThat(catalogue.getSnapshot().contains(ID_A), is(true));
+        }
+
+        @Test
+        public void duplicateId() throws IOException {
+            final var content = "id=" + ID_A + "\n"
+                    + "title=Section assault\n"
+                    + "description=Basic fire and movement tactics.\n"
+                    + "character.1.id=" + CHARACTER_ID + "\n"
+                    + "character.1.title=Lt. Winters\n";
+            write("a.scenario", content);
+            write("b.scenario", content);
+
+            assertThrows(IOException.class, () -> ScenarioCatalogue.load(directory));
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package uk.badamson.mc.repository;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.badamson.mc.*;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SharedCacheTest {
+
+    private static final UUID ID_A = UUID.randomUUID();
+    private static final UUID ID_B = UUID.randomUUID();
+    private static final UUID ID_C = UUID.randomUUID();
+
+    private static Game createGame(final Scenario scenario) {
+        final var game = new Game(Instant.now(), Game.RunState.WAITING_TO_START, true, Map.of());
+        game.setScenario(scenario);
+        return game;
+    }
+
+    private static Scenario getAScenario(final MCRepository repository) {
+        try (var context = repository.openContext()) {
+            return context.findAllScenarios().iterator().next().getValue();
+        }
+    }
+
+    // The low bits of the spread hash code select the stripe of a bounded cache, whatever the number of stripes.
+    private static int stripeBits(final Object key) {
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & 0xF;
+    }
+
+    @Test
+    public void negativeMaximum() {
+        assertThrows(IllegalArgumentException.class, () -> new SharedCache(-1, 1));
+    }
+
+    @Nested
+    public class Games {
+
+        @Test
+        public void findGiveDistinctCopies() {
+            final var repository = new MCRepositoryTest.Fake(new SharedCache(100, 100));
+            final var game = createGame(getAScenario(repository));
+            try (var context = repository.openContext()) {
+                context.addGame(ID_A, game);
+            }
+            final Game gameA;
+            final Game gameB;
+            try (var context = repository.openContext()) {
+                gameA = context.findGame(ID_A).orElseThrow().game();
+            }
+            try (var context = repository.openContext()) {
+                gameB = context.findGame(ID_A).orElseThrow().game();
+            }
+
+            assertThat(gameB, not(sameInstance(gameA)));
+            assertThat(gameB.getRunState(), is(gameA.getRunState()));
+        }
+
+        @Test
+        public void updateInvalidates() {
+            final var repository = new MCRepositoryTest.Fake(new SharedCache(100, 100));
+            final var game = createGame(getAScenario(repository));
+            try (var context = repository.openContext()) {
+                context.addGame(ID_A, game);
+            }
+            try (var context = repository.openContext()) {
+                context.findGame(ID_A);// cache
+            }
+            try (var context = repository.openContext()) {
+                final var loaded = context.findGame(ID_A).orElseThrow().game();
+                loaded.setScenario(game.getScenario());
+                loaded.setRunState(Game.RunState.RUNNING);
+                context.updateGame(loaded);
+            }
+
+            try (var context = repository.openContext()) {
+                final var result = context.findGame(ID_A);
+                assertThat(result.orElseThrow().game().getRunState(), is(Game.RunState.RUNNING));
+            }
+        }
+
+        @Test
+        public void absent() {
+            final var repository = new MCRepositoryTest.Fake(new SharedCache(100, 100));
+            try (var context = repository.openContext()) {
+                assertThat(context.findGame(ID_A).isEmpty(), is(true));
+            }
+        }
+    }
+
+    @Nested
+    public class Users {
+
+        @Test
+        public void findByUsernameAfterFindById() {
+            final var repository = new MCRepositoryTest.Fake(new SharedCache(100, 100));
+            final var user = new User(ID_A, "Jeff", "password", Set.of(), true, true, true, true);
+            try (var context = repository.openContext()) {
+                context.addUser(ID_A, user);
+            }
+            try (var context = repository.openContext()) {
+                context.findUser(ID_A);// cache
+            }
+
+            try (var context = repository.openContext()) {
+                final var found = context.findUserByUsername("Jeff");
+                assertThat(found.orElseThrow(), is(user));
+                assertThat(found.get(), not(sameInstance(user)));
+            }
+        }
+
+        @Test
+        public void renameInvalidatesOldUsername() {
+            final var repository = new MCRepositoryTest.Fake(new SharedCache(100, 100, true));
+            try (var context = repository.openContext()) {
+                context.addUser(ID_A, new User(ID_A, "Jeff", "password", Set.of(), true, true, true, true));
+            }
+            try (var context = repository.openContext()) {
+                context.findUserByUsername("Jeff");// cache
+            }
+
+            try (var context = repository.openContext()) {
+                context.addUser(ID_A, new User(ID_A, "Fred", "password", Set.of(), true, true, true, true));
+            }
+
+            try (var context = repository.openContext()) {
+                assertThat(context.findUserByUsername("Jeff").isPresent(), is(false));
+                assertThat(context.findUserByUsername("Fred").orElseThrow().getId(), is(ID_A));
+            }
+        }
+
+        @Test
+        public void renameAfterEvictionOfUsername() {
+            final var cache = new SharedCache(0, 1);
+            UUID otherId;
+            do {
+                otherId = UUID.randomUUID();
+            } while (stripeBits(otherId) != stripeBits(ID_A));
+            String otherUsername = "Fred";
+            for (int i = 0; (stripeBits(otherUsername) & 1) == (stripeBits("Jeff") & 1); ++i) {
+                otherUsername = "Fred" + i;
+            }
+            cache.putUserId("Jeff", ID_A, cache.usernameStamp("Jeff"));
+            cache.putUserId(otherUsername, otherId, cache.usernameStamp(otherUsername));
+
+            cache.invalidateUser(ID_A, "Bert");
+
+            assertThat(cache.getUserId("Jeff"), nullValue());
+        }
+
+        @Test
+        public void putUserIdWithNewUsername() {
+            final var cache = new SharedCache(0, 100);
+            cache.putUserId("Jeff", ID_A, cache.usernameStamp("Jeff"));
+
+            cache.putUserId("Fred", ID_A, cache.usernameStamp("Fred"));
+
+            assertThat(cache.getUserId("Jeff"), nullValue());
+        }
+    }
+
+    @Nested
+    public class Bounded {
+
+        @Test
+        public void evictsLeastRecentlyUsed() {
+            final var cache = new BoundedCache<UUID, String>(2, s -> 1);
+            cache.put(ID_A, "a", cache.stamp(ID_A));
+            cache.put(ID_B, "b", cache.stamp(ID_B));
+            cache.get(ID_A);
+            cache.put(ID_C, "c", cache.stamp(ID_C));
+
+            // Stripes share the limit, so only the total is certain.
+            final int present = (cache.get(ID_A) == null ? 0 : 1)
+                    + (cache.get(ID_B) == null ? 0 : 1)
+                    + (cache.get(ID_C) == null ? 0 : 1);
+            assertThat(present, lessThanOrEqualTo(2));
+        }
+
+        @Test
+        public void evictionListener() {
+            final Map<UUID, String> evicted = new HashMap<>();
+            final var cache = new BoundedCache<UUID, String>(1, s -> 1, evicted::put);
+            UUID other;
+            do {
+                other = UUID.randomUUID();
+            } while (stripeBits(other) != stripeBits(ID_A));
+            cache.put(ID_A, "a", cache.stamp(ID_A));
+            cache.invalidate(ID_A);
+            cache.put(ID_A, "a", cache.stamp(ID_A));
+
+            cache.put(other, "b", cache.stamp(other));
+
+            assertThat(evicted, is(Map.of(ID_A, "a")));
+        }
+
+        @Test
+        public void zeroMaximumCachesNothing() {
+            final var cache = new BoundedCache<UUID, String>(0, s -> 1);
+            cache.put(ID_A, "a", cache.stamp(ID_A));
+
+            assertThat(cache.get(ID_A), nullValue());
+        }
+
+        @Test
+        public void putAfterInvalidationIgnored() {
+            final var cache = new BoundedCache<UUID, String>(100, s -> 1);
+            final long stamp = cache.stamp(ID_A);
+            cache.invalidate(ID_A);
+
+            cache.put(ID_A, "stale", stamp);
+
+            assertThat(cache.get(ID_A), nullValue());
+        }
+
+        @Test
+        public void putWithCurrentStamp() {
+            final var cache = new BoundedCache<UUID, String>(100, s -> 1);
+
+            cache.put(ID_A, "a", cache.stamp(ID_A));
+
+            assertThat(cache.get(ID_A), is("a"));
+        }
+    }
+}
@@ -23,8 +23,11 @@ import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import uk.badamson.dbc.assertions.ObjectVerifier;
 import uk.badamson.mc.*;
+import uk.badamson.mc.repository.GameDelta;
+import uk.badamson.mc.repository.InMemoryMCRepository;
 import uk.badamson.mc.repository.MCRepository;
 import uk.badamson.mc.repository.MCRepositoryTest;
+import uk.badamson.mc.repository.VersionConflictException;
 
 import javax.annotation.Nonnull;
 import java.time.Clock;
@@ -32,10 +35,16 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static uk.badamson.mc.service.GameService.MAX_UPDATE_ATTEMPTS;
 
 public class GameServiceTest {
     private static final ZoneId UTC = ZoneId.from(ZoneOffset.UTC);
@@ -174,7 +183,7 @@ public class GameServiceTest {
         return result;
     }
 
-    private static Optional<FindGameResult> getGameAsNonGameManager(
+    private static Optional<UserGameView> getGameAsNonGameManager(
             final GameService service, final UUID id,
             final UUID user) {
         final var result = service.getGameAsNonGameManager(id, user);
@@ -182,7 +191,7 @@ public class GameServiceTest {
         assertInvariants(service);
         assertNotNull(result, "Returns a (non null) optional value.");// guard
         if (result.isPresent()) {
-            final var game = result.get().game();
+            final var game = result.get();
             assertAll(
                     () -> assertThat(
                     "The collection of players is either empty or contains the requesting user.",
@@ -377,6 +386,23 @@ public class GameServiceTest {
             assertThat(i.hasNext(), is(true));
             assertThat(i.next(), is(id));
         }
+
+        @Test
+        public void paged() {
+            final var repository = repositoryA;
+            final var scenarioService = scenarioServiceA;
+            final var service = new GameService(CLOCK_A, scenarioService, userServiceA, repository);
+            final var scenario = getAScenarioId(scenarioService);
+            final Set<UUID> ids = new HashSet<>();
+            for (int i = 0; i < 5; ++i) {
+                ids.add(service.create(scenario).getIdentifier());
+            }
+
+            final var result = service.getGameIdentifiers(2).toList();
+
+            assertThat("all games", Set.copyOf(result), is(ids));
+            assertThat("no duplicates", result.size(), is(ids.size()));
+        }
     }
 
 
@@ -413,6 +439,36 @@ public class GameServiceTest {
             assertThat("recruiting", result.game().isRecruiting(), is(false));
         }
 
+        @Test
+        public void savedWithinEnclosingWriteBehindContext() {
+            final var repository = new MCRepositoryTest.Fake(null, MCRepository.ContextMode.WRITE_BEHIND);
+            final var scenarioService = new ScenarioService(repository);
+            final var userService = new UserService(PasswordEncoderTest.FAKE, PASSWORD_A, repository);
+            final var service = new GameService(CLOCK_A, scenarioService, userService, repository);
+            final var id = service.create(getAScenarioId(scenarioService)).getIdentifier();
+
+            try (var ignored = repository.joinContext()) {
+                service.endRecruitment(id);
+
+                try (var context = repository.openContext()) {
+                    assertThat(context.findGame(id).orElseThrow().game().isRecruiting(), is(false));
+                }
+            }
+        }
+
+        @Test
+        public void resultNotHeldByEnclosingContext() {
+            final var scenario = getAScenarioId(scenarioServiceA);
+            final var service = new GameService(CLOCK_A, scenarioServiceA, userServiceA, repositoryA);
+            final var id = service.create(scenario).getIdentifier();
+
+            try (var context = repositoryA.joinContext()) {
+                final var result = endRecruitment(service, id);
+
+                assertThat(result.game(), not(sameInstance(context.findGame(id).orElseThrow().game())));
+            }
+        }
+
         @Test
         public void twice() {
             final var scenarioService = scenarioServiceA;
@@ -493,6 +549,22 @@ public class GameServiceTest {
             assertIsDefault(game);
         }
 
+        @Test
+        public void doesNotChangeGameOfEnclosingContext() {
+            final var scenario = getAScenarioId(scenarioServiceA);
+            final var service = new GameService(CLOCK_A, scenarioServiceA, userServiceA, repositoryA);
+            final var id = service.create(scenario).getIdentifier();
+
+            try (var context = repositoryA.joinContext()) {
+                final var held = context.findGame(id).orElseThrow().game();
+
+                final var result = getGameAsGameManager(service, id);
+
+                assertThat(result.orElseThrow().game(), not(sameInstance(held)));
+                assertThat(held.getScenario(), nullValue());
+            }
+        }
+
         @Nested
         public class Present {
 
@@ -586,7 +658,12 @@ public class GameServiceTest {
                     USER_ID_A);
 
             assertTrue(result.isPresent(), "present");// guard
-            assertIsDefault(result.get().game());
+            final var view = result.get();
+            assertAll(
+                    () -> assertThat("runState", view.getRunState(), is(Game.RunState.WAITING_TO_START)),
+                    () -> assertThat("recruiting", view.isRecruiting()),
+                    () -> assertThat("users", view.getUsers().entrySet(), empty()),
+                    () -> assertThat("character", view.getCharacter(), nullValue()));
         }
 
         @Nested
@@ -605,7 +682,7 @@ public class GameServiceTest {
                 final var result = getGameAsNonGameManager(service, gameId, userId);
 
                 assertTrue(result.isPresent(), "present");// guard
-                final var game = result.get().game();
+                final var game = result.get();
                 assertAll(
                         () -> assertThat("recruiting", game.isRecruiting(), is(true)),
                         () -> assertThat("users", game.getUsers(), anEmptyMap()));
@@ -629,7 +706,7 @@ public class GameServiceTest {
                 final var result = getGameAsNonGameManager(service, gameId, userId);
 
                 assertThat("present", result.isPresent());
-                final var game = result.get().game();
+                final var game = result.get();
                 assertAll(
                         () -> assertThat("recruiting", game.isRecruiting(), is(true)),
                         () -> assertThat("users", game.getUsers(), anEmptyMap()),
@@ -656,7 +733,7 @@ public class GameServiceTest {
                 final var result = getGameAsNonGameManager(service, gameId, userId);
 
                 assertThat("present", result.isPresent());
-                final var game = result.get().game();
+                final var game = result.get();
                 assertAll(
                         () -> assertThat("recruiting", game.isRecruiting(), is(false)),
                         () -> assertThat("users", game.getUsers(), anEmptyMap()),
@@ -681,10 +758,11 @@ public class GameServiceTest {
                 final var result = getGameAsNonGameManager(service, gameId, userId);
 
                 assertTrue(result.isPresent(), "present");// guard
-                final var game = result.get().game();
+                final var game = result.get();
                 assertAll(
                         () -> assertThat("recruiting", game.isRecruiting(), is(true)),
                         () -> assertThat("users", game.getUsers().values(), contains(userId)),
+                        () -> assertThat("character", game.getCharacter(), notNullValue()),
                         () -> assertThat("scenario", game.getScenario(), is(scenario))
                 );
             }
@@ -821,6 +899,34 @@ public class GameServiceTest {
         }
     }
 
+    @Nested
+    public class ConcurrentReads {
+
+        @Test
+        public void mayJoin() {
+            final var scenario = getAScenarioId(scenarioServiceA);
+            final var service = new GameService(CLOCK_A, scenarioServiceA, userServiceA, repositoryA, true);
+            final var game = service.create(scenario).getIdentifier();
+            final var user = userServiceA.add(createPlayerUserDetails(USERNAME_A)).getId();
+
+            assertTrue(mayUserJoinGame(service, user, game));
+            assertFalse(mayUserJoinGame(service, USER_ID_A, game));
+        }
+
+        @Test
+        public void join() {
+            final var scenario = getAScenarioId(scenarioServiceA);
+            final var service = new GameService(CLOCK_A, scenarioServiceA, userServiceA, repositoryA, true);
+            final var game = service.create(scenario).getIdentifier();
+            final var user = userServiceA.add(createPlayerUserDetails(USERNAME_A)).getId();
+
+            service.userJoinsGame(user, game);
+
+            assertThat(service.getCurrentGameOfUser(user), is(Optional.of(game)));
+            assertThrows(NoSuchElementException.class, () -> service.userJoinsGame(USER_ID_A, game));
+        }
+    }
+
     @Nested
     public class UserJoinsGame {
 
@@ -1039,6 +1145,85 @@ public class GameServiceTest {
                         hasItem(userA));
             }
 
+            @Test
+            public void concurrent() throws Exception {
+                final var repository = new InMemoryMCRepository();
+                final var scenarioService = new ScenarioService(repository);
+                final var userService = new UserService(PasswordEncoderTest.FAKE, PASSWORD_A, repository);
+                final var scenarioId = getAScenarioId(scenarioService);
+                final var service = new GameService(CLOCK_A, scenarioService, userService, repository);
+                final var id = service.create(scenarioId).getIdentifier();
+                final var userA = userService.add(createPlayerUserDetails(USERNAME_A)).getId();
+                final var userB = userService.add(createPlayerUserDetails(USERNAME_B)).getId();
+                final var executor = Executors.newFixedThreadPool(2);
+                try {
+                    final var joinA = executor.submit(() -> service.userJoinsGame(userA, id));
+                    final var joinB = executor.submit(() -> service.userJoinsGame(userB, id));
+                    joinA.get(10, TimeUnit.SECONDS);
+                    joinB.get(10, TimeUnit.SECONDS);
+                } finally {
+                    executor.shutdown();
+                }
+
+                final var users = service.getGameAsGameManager(id).orElseThrow().game().getUsers();
+                assertThat("Neither join is lost", Set.copyOf(users.values()), is(Set.of(userA, userB)));
+            }
+
+            @Test
+            public void burst() throws Exception {
+                final var conflicts = new AtomicInteger();
+                final var repository = new InMemoryMCRepository() {
+                    @Override
+                    protected void compareAndStoreGameDelta(@Nonnull UUID id, @Nonnull GameDelta delta,
+                                                            long expectedVersion) {
+                        try {
+                            Thread.sleep(1L);// widen the window for interleaving
+                            super.compareAndStoreGameDelta(id, delta, expectedVersion);
+                        } catch (VersionConflictException e) {
+                            conflicts.incrementAndGet();
+                            throw e;
+                        } catch (InterruptedException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                };
+                final var scenarioService = new ScenarioService(repository);
+                final var userService = new UserService(PasswordEncoderTest.FAKE, PASSWORD_A, repository);
+                final var scenarioId = getAScenarioId(scenarioService);
+                final var service = new GameService(CLOCK_A, scenarioService, userService, repository);
+                final var id = service.create(scenarioId).getIdentifier();
+                final int nCharacters = scenarioService.getScenario(scenarioId).orElseThrow().getCharacters().size();
+                final int nUsers = 4 * MAX_UPDATE_ATTEMPTS;
+                final List<UUID> users = new ArrayList<>();
+                for (int u = 0; u < nUsers; ++u) {
+                    users.add(userService.add(createPlayerUserDetails("User " + u)).getId());
+                }
+                final var executor = Executors.newFixedThreadPool(nUsers);
+                int joined = 0;
+                try {
+                    final List<Future<?>> joins = new ArrayList<>();
+                    for (final var user : users) {
+                        joins.add(executor.submit(() -> service.userJoinsGame(user, id)));
+                    }
+                    for (final var join : joins) {
+                        try {
+                            join.get(10, TimeUnit.SECONDS);
+                            ++joined;
+                        } catch (ExecutionException e) {
+                            assertThat("Only rejected because the game is full",
+                                    e.getCause(), instanceOf(IllegalGameStateException.class));
+                        }
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+
+                assertThat("joined", joined, is(nCharacters));
+                final var game = service.getGameAsGameManager(id).orElseThrow().game();
+                assertThat("No join is lost", game.getUsers().size(), is(nCharacters));
+                assertThat("Joins did not interleave", conflicts.get(), is(0));
+            }
+
         }
 
     }
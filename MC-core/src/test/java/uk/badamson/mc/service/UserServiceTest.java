@@ -380,6 +380,9 @@ public class UserServiceTest {
                         "A subsequently retrieved sequence of the users will include a user equivalent to the returned user [2].",
                         usersList, hasItem(user2));
                 assertThat("Added user", service.getUsers().count(), is(3L));
+                final var pagedUsers = service.getUsers(1).collect(toList());
+                assertThat("Paged", Set.copyOf(pagedUsers), is(Set.copyOf(usersList)));
+                assertThat("Paged, no duplicates", pagedUsers.size(), is(usersList.size()));
             }
         }
     }
@@ -436,6 +439,31 @@ public class UserServiceTest {
         }
     }
 
+    @Nested
+    public class GetUsersByIds {
+
+        @Test
+        public void mixed() {
+            final var userDetails = new BasicUserDetails(USERNAME_A, PASSWORD_A,
+                    Authority.ALL, true, true, true, true);
+            final var service = new UserService(PasswordEncoderTest.FAKE, PASSWORD_A, repositoryA);
+            final var user = service.add(userDetails);
+
+            final var result = service.getUsers(List.of(USER_ID_A, User.ADMINISTRATOR_ID, user.getId()));
+
+            assertThat(List.copyOf(result.keySet()), is(List.of(User.ADMINISTRATOR_ID, user.getId())));
+            assertThat(result.get(User.ADMINISTRATOR_ID).getAuthorities(), is(Authority.ALL));
+            assertThat(result.get(user.getId()).getUsername(), is(USERNAME_A));
+        }
+
+        @Test
+        public void none() {
+            final var service = new UserService(PasswordEncoderTest.FAKE, PASSWORD_A, repositoryA);
+
+            assertThat(service.getUsers(List.of()).isEmpty(), is(true));
+        }
+    }
+
     @Nested
     public class GetUserByUserName {
 
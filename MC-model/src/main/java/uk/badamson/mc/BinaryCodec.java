@@ -0,0 +1,377 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * <p>
+ * A compact binary encoding of {@link Game}, {@link User} and {@link UserGameAssociation} objects,
+ * for storage by repositories.
+ * </p>
+ * <ul>
+ *     <li>Each encoded object begins with a {@linkplain #VERSION version} byte,
+ *     so the encoding can change without making stored data unreadable.</li>
+ *     <li>{@link UUID} values are encoded as 16 bytes.</li>
+ *     <li>Enumerated values, and sets of them, are encoded as bytes.</li>
+ *     <li>Lengths and counts are encoded as variable length integers,
+ *     which usually occupy only one byte.</li>
+ *     <li>The encoding of a game does not include its {@linkplain Game#getScenario() scenario};
+ *     repositories record the ID of the scenario separately.</li>
+ *     <li>A game is decoded as a {@link GameSnapshot}, which is what repositories hold.</li>
+ * </ul>
+ * <p>
+ * Encoding and decoding use the position of a given {@link ByteBuffer},
+ * and do not allocate intermediate buffers.
+ * </p>
+ */
+@Immutable
+public final class BinaryCodec {
+
+    /**
+     * <p>
+     * The version of the encoding that this class writes.
+     * </p>
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * <p>
+     * The number of bytes of an encoded {@link UUID}.
+     * </p>
+     */
+    public static final int UUID_SIZE = Long.BYTES * 2;
+
+    private static final Game.RunState[] RUN_STATES = Game.RunState.values();
+    private static final Authority[] AUTHORITIES = Authority.values();
+    private static final int ASSOCIATION_SIZE = 1 + UUID_SIZE * 2;
+
+    private BinaryCodec() {
+        // Not instantiable
+    }
+
+    /**
+     * <p>
+     * Put a {@link UUID} at the position of a buffer, as 16 bytes.
+     * </p>
+     */
+    public static void putUUID(@Nonnull final ByteBuffer buffer, @Nonnull final UUID id) {
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+    }
+
+    @Nonnull
+    public static UUID getUUID(@Nonnull final ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * <p>
+     * The number of bytes needed to encode a non negative integer as a variable length integer.
+     * </p>
+     */
+    @Nonnegative
+    public static int varintSize(@Nonnegative final long value) {
+        return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    /**
+     * <p>
+     * Put a non negative integer at the position of a buffer, as a variable length integer:
+     * seven bits per byte, least significant first, with the top bit of each byte
+     * indicating whether more bytes follow.
+     * </p>
+     */
+    public static void putVarint(@Nonnull final ByteBuffer buffer, @Nonnegative final long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value");
+        }
+        long v = value;
+        while (0x80 <= v) {
+            buffer.put((byte) (v | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the buffer does not hold a valid variable length integer.
+     */
+    @Nonnegative
+    public static long getVarint(@Nonnull final ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            final byte b = buffer.get();
+            if (shift == Long.SIZE - 1 && 1 < (b & 0xFF)) {// would shift out bits, or continue
+                break;
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if (0 <= b) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length integer");
+    }
+
+    private static int getLength(@Nonnull final ByteBuffer buffer) {
+        final long length = getVarint(buffer);
+        if (buffer.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        return (int) length;
+    }
+
+    private static void requireVersion(@Nonnull final ByteBuffer buffer) {
+        final byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + version);
+        }
+    }
+
+    private static int utf8Size(@Nonnull final String s) {
+        int size = 0;
+        final int n = s.length();
+        for (int i = 0; i < n; ++i) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                size += 4;
+                ++i;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    private static int stringSize(@Nonnull final String s) {
+        final int size = utf8Size(s);
+        return varintSize(size) + size;
+    }
+
+    private static void putString(@Nonnull final ByteBuffer buffer, @Nonnull final String s) {
+        final var bytes = s.getBytes(StandardCharsets.UTF_8);
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    @Nonnull
+    private static String getString(@Nonnull final ByteBuffer buffer) {
+        final int length = getLength(buffer);
+        final String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            final var bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * <p>
+     * The number of bytes of the encoding of a game.
+     * </p>
+     */
+    @Nonnegative
+    public static int encodedSize(@Nonnull final Game game) {
+        final var created = game.getCreated();
+        final int nUsers = game.getUsers().size();
+        return 1 + Long.BYTES + varintSize(created.getNano()) + 2 + varintSize(nUsers) + nUsers * UUID_SIZE * 2;
+    }
+
+    /**
+     * <p>
+     * Put the encoding of a game at the position of a buffer.
+     * </p>
+     *
+     * @throws BufferOverflowException If the buffer has fewer than {@link #encodedSize(Game)} bytes remaining.
+     */
+    public static void encode(@Nonnull final Game game, @Nonnull final ByteBuffer buffer) {
+        Objects.requireNonNull(game, "game");
+        final var created = game.getCreated();
+        final var users = game.getUsers();
+        buffer.put(VERSION);
+        buffer.putLong(created.getEpochSecond());
+        putVarint(buffer, created.getNano());
+        buffer.put((byte) game.getRunState().ordinal());
+        buffer.put((byte) (game.isRecruiting() ? 1 : 0));
+        putVarint(buffer, users.size());
+        for (var entry : users.entrySet()) {
+            putUUID(buffer, entry.getKey());
+            putUUID(buffer, entry.getValue());
+        }
+    }
+
+    /**
+     * <p>
+     * Decode the game encoded at the position of a buffer, as a snapshot of the game.
+     * </p>
+     *
+     * @throws BufferUnderflowException If the buffer does not hold a complete encoded game.
+     * @throws IllegalArgumentException If the buffer holds a malformed encoding.
+     */
+    @Nonnull
+    public static GameSnapshot decodeGameSnapshot(@Nonnull final ByteBuffer buffer) {
+        requireVersion(buffer);
+        final long seconds = buffer.getLong();
+        final long nanos = getVarint(buffer);
+        final int runState = buffer.get();
+        if (runState < 0 || RUN_STATES.length <= runState || 999_999_999L < nanos) {
+            throw new IllegalArgumentException("Malformed game");
+        }
+        final boolean recruiting = buffer.get() != 0;
+        final long nUsers = getVarint(buffer);
+        if (buffer.remaining() < nUsers * UUID_SIZE * 2) {
+            throw new BufferUnderflowException();
+        }
+        final var users = new HashMap<UUID, UUID>((int) (nUsers * 4 / 3 + 1));
+        for (long u = 0; u < nUsers; ++u) {
+            users.put(getUUID(buffer), getUUID(buffer));
+        }
+        return new GameSnapshot(Instant.ofEpochSecond(seconds, nanos), RUN_STATES[runState], recruiting, users);
+    }
+
+    /**
+     * <p>
+     * The number of bytes of the encoding of a user.
+     * </p>
+     */
+    @Nonnegative
+    public static int encodedSize(@Nonnull final User user) {
+        final var password = user.getPassword();
+        return 1 + UUID_SIZE + stringSize(user.getUsername())
+                + (password == null ? 1 : 1 + stringSize(password)) + 2;
+    }
+
+    /**
+     * <p>
+     * Put the encoding of a user at the position of a buffer.
+     * </p>
+     *
+     * @throws BufferOverflowException If the buffer has fewer than {@link #encodedSize(User)} bytes remaining.
+     */
+    public static void encode(@Nonnull final User user, @Nonnull final ByteBuffer buffer) {
+        Objects.requireNonNull(user, "user");
+        buffer.put(VERSION);
+        putUUID(buffer, user.getId());
+        putString(buffer, user.getUsername());
+        final var password = user.getPassword();
+        if (password == null) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1);
+            putString(buffer, password);
+        }
+        int authorities = 0;
+        for (var authority : user.getAuthorities()) {
+            authorities |= 1 << authority.ordinal();
+        }
+        buffer.put((byte) authorities);
+        buffer.put((byte) ((user.isAccountNonExpired() ? 1 : 0)
+                | (user.isAccountNonLocked() ? 2 : 0)
+                | (user.isCredentialsNonExpired() ? 4 : 0)
+                | (user.isEnabled() ? 8 : 0)));
+    }
+
+    /**
+     * <p>
+     * Decode the user encoded at the position of a buffer.
+     * </p>
+     *
+     * @throws BufferUnderflowException If the buffer does not hold a complete encoded user.
+     * @throws IllegalArgumentException If the buffer holds a malformed encoding.
+     */
+    @Nonnull
+    public static User decodeUser(@Nonnull final ByteBuffer buffer) {
+        requireVersion(buffer);
+        final var id = getUUID(buffer);
+        final var username = getString(buffer);
+        final String password = buffer.get() == 0 ? null : getString(buffer);
+        final int authorityBits = buffer.get();
+        final var authorities = EnumSet.noneOf(Authority.class);
+        for (var authority : AUTHORITIES) {
+            if ((authorityBits & (1 << authority.ordinal())) != 0) {
+                authorities.add(authority);
+            }
+        }
+        final byte flags = buffer.get();
+        return new User(id, username, password, authorities,
+                (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0, (flags & 8) != 0);
+    }
+
+    /**
+     * <p>
+     * The number of bytes of the encoding of a user-game association.
+     * </p>
+     */
+    @Nonnegative
+    public static int encodedSize(@Nonnull final UserGameAssociation association) {
+        Objects.requireNonNull(association, "association");
+        return ASSOCIATION_SIZE;
+    }
+
+    /**
+     * <p>
+     * Put the encoding of a user-game association at the position of a buffer.
+     * </p>
+     *
+     * @throws BufferOverflowException If the buffer has fewer than
+     *                                 {@link #encodedSize(UserGameAssociation)} bytes remaining.
+     */
+    public static void encode(@Nonnull final UserGameAssociation association, @Nonnull final ByteBuffer buffer) {
+        buffer.put(VERSION);
+        putUUID(buffer, association.getUser());
+        putUUID(buffer, association.getGame());
+    }
+
+    /**
+     * <p>
+     * Decode the user-game association encoded at the position of a buffer.
+     * </p>
+     *
+     * @throws BufferUnderflowException If the buffer does not hold a complete encoded association.
+     * @throws IllegalArgumentException If the buffer holds a malformed encoding.
+     */
+    @Nonnull
+    public static UserGameAssociation decodeUserGameAssociation(@Nonnull final ByteBuffer buffer) {
+        requireVersion(buffer);
+        return new UserGameAssociation(getUUID(buffer), getUUID(buffer));
+    }
+}
@@ -18,7 +18,9 @@ package uk.badamson.mc;
  * along with MC.  If not, see <https://www.gnu.org/licenses/>.
  */
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.time.Instant;
 import java.util.*;
 
@@ -30,15 +32,32 @@ import java.util.*;
 public class Game {
 
     private final Instant created;
-    private final Map<UUID, UUID> users;
+    /*
+     * The users are held in persistent maps, as for a GameSnapshot,
+     * so copies of this game and snapshots of it can share them, and adding a user does not copy them.
+     */
+    private PersistentMap<UUID, UUID> users;
+    // The inverse of the users map: the character that each user plays.
+    private PersistentMap<UUID, UUID> characters;
     private RunState runState;
     private boolean recruiting;
     private Scenario scenario;
+    /*
+     * The characters of the scenario that no user plays, indexed by the position of the character
+     * in the list of characters of the scenario.
+     * Created when first needed, then maintained as users are added.
+     */
+    @Nullable
+    private BitSet freeCharacters;
+    private int nFreeCharacters;
 
     /**
      * <p>
      * Construct a copy of a game.
      * </p>
+     * <p>
+     * The copy shares the {@linkplain #getUsers() users map} of the game, rather than copying it.
+     * </p>
      *
      * @throws NullPointerException If {@code that} is null
      */
@@ -48,21 +67,39 @@ public class Game {
         created = that.created;
         runState = that.runState;
         recruiting = that.recruiting;
-        this.users = new HashMap<>(that.users);
+        users = that.users;
+        characters = that.characters;
+        if (that.freeCharacters != null) {
+            freeCharacters = (BitSet) that.freeCharacters.clone();
+            nFreeCharacters = that.nFreeCharacters;
+        }
     }
 
     public Game(@Nonnull final Instant created,
                 @Nonnull final RunState runState,
                 final boolean recruiting,
                 @Nonnull final Map<UUID, UUID> users) {
-        this.created = Objects.requireNonNull(created, "created");
-        this.runState = Objects.requireNonNull(runState, "runState");
-        this.recruiting = recruiting;
-        this.users = new HashMap<>(Objects.requireNonNull(users, "users"));
+        this(new GameSnapshot(created, runState, recruiting, users));
+    }
 
-        if (!isValidUsers(this.users)) {// copy then test to avoid race hazards
-            throw new IllegalArgumentException("users");
-        }
+    /**
+     * <p>
+     * Construct a game that has the state recorded by a snapshot, without a {@linkplain #getScenario() scenario}.
+     * </p>
+     * <p>
+     * The game shares the {@linkplain GameSnapshot#getUsers() users map} of the snapshot,
+     * so this takes constant time.
+     * </p>
+     *
+     * @throws NullPointerException If {@code snapshot} is null
+     */
+    public Game(@Nonnull final GameSnapshot snapshot) {
+        Objects.requireNonNull(snapshot, "snapshot");
+        created = snapshot.getCreated();
+        runState = snapshot.getRunState();
+        recruiting = snapshot.isRecruiting();
+        users = snapshot.users();
+        characters = snapshot.characters();
     }
 
     /**
@@ -71,20 +108,26 @@ public class Game {
      * </p>
      */
     public static boolean isValidUsers(final Map<UUID, UUID> users) {
-        return users != null
-                && users.entrySet().stream()
-                .allMatch(Game::isValidUsersEntry)
-                && hasNoDuplicates(users.values());
+        return users != null && invert(users) != null;
     }
 
-    private static boolean isValidUsersEntry(final Map.Entry<UUID, UUID> entry) {
-        final var character = entry.getKey();
-        final var user = entry.getValue();
-        return character != null && user != null;
-    }
-
-    private static boolean hasNoDuplicates(final Collection<UUID> values) {
-        return values.size() == Set.copyOf(values).size();
+    /**
+     * <p>
+     * The map from users to characters that is the inverse of a given users map,
+     * or null if the users map is not {@linkplain #isValidUsers(Map) valid}.
+     * </p>
+     */
+    @Nullable
+    private static HashMap<UUID, UUID> invert(@Nonnull final Map<UUID, UUID> users) {
+        final var inverse = new HashMap<UUID, UUID>(users.size() * 2);
+        for (final var entry : users.entrySet()) {
+            final var character = entry.getKey();
+            final var user = entry.getValue();
+            if (character == null || user == null || inverse.putIfAbsent(user, character) != null) {
+                return null;
+            }
+        }
+        return inverse;
     }
 
     /**
@@ -114,6 +157,20 @@ public class Game {
         return scenario;
     }
 
+    /**
+     * <p>
+     * An immutable snapshot of the current state of this game.
+     * </p>
+     * <p>
+     * The snapshot shares the {@linkplain #getUsers() users map} of this game,
+     * so this takes constant time.
+     * </p>
+     */
+    @Nonnull
+    public final GameSnapshot toSnapshot() {
+        return new GameSnapshot(users, characters, created, runState, recruiting);
+    }
+
     @Nonnull
     public RunState getRunState() {
         return runState;
@@ -149,7 +206,7 @@ public class Game {
      */
     @Nonnull
     public final Map<UUID, UUID> getUsers() {
-        return Collections.unmodifiableMap(users);
+        return users;
     }
 
     /**
@@ -157,6 +214,11 @@ public class Game {
      * Add a {@linkplain User#getId() user ID} to the {@linkplain #getUsers() set
      * of users who played, or are playing}, the game.
      * </p>
+     * <p>
+     * This derives new users maps that share most of the structure of the old maps,
+     * so it takes time proportional to the logarithm of the number of users,
+     * and does not change any map {@linkplain #getUsers() previously returned}.
+     * </p>
      *
      * @param character The ID of the character that the user played.
      * @param user      The unique ID of the user to add as a player.
@@ -178,12 +240,115 @@ public class Game {
         if (!recruiting) {
             throw new IllegalStateException("Game not recruiting players");
         }
-        if (!user.equals(users.get(character)) && users.containsValue(user)) {
+        final var currentCharacter = characters.get(user);
+        if (currentCharacter != null && !currentCharacter.equals(character)) {
             throw new IllegalArgumentException(
                     "User already present with a different character");
         }
 
-        users.put(character, user);
+        final var replaced = users.get(character);
+        users = users.plus(character, user);
+        if (replaced != null && !replaced.equals(user)) {
+            characters = characters.minus(replaced);
+        }
+        characters = characters.plus(user, character);
+        if (freeCharacters != null) {
+            final int index = scenario.indexOfCharacter(character);
+            if (0 <= index && freeCharacters.get(index)) {
+                freeCharacters.clear(index);
+                --nFreeCharacters;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * The ID of the character that a given user plays (or played, or will play) in this game,
+     * or null if the user is not one of the {@linkplain #getUsers() users} of this game.
+     * </p>
+     * <p>
+     * The game maintains an index of the characters of its users,
+     * so this does not scan the users.
+     * </p>
+     *
+     * @see #hasUser(UUID)
+     */
+    @Nullable
+    public final UUID getCharacterOfUser(@Nonnull final UUID user) {
+        Objects.requireNonNull(user, "user");
+        return characters.get(user);
+    }
+
+    /**
+     * <p>
+     * Whether a given user is one of the {@linkplain #getUsers() users} of this game.
+     * </p>
+     * <p>
+     * This does not scan the users.
+     * </p>
+     *
+     * @see #getCharacterOfUser(UUID)
+     */
+    public final boolean hasUser(@Nonnull final UUID user) {
+        Objects.requireNonNull(user, "user");
+        return getCharacterOfUser(user) != null;
+    }
+
+    @Nonnull
+    private BitSet getFreeCharacters() {
+        if (freeCharacters == null) {
+            if (scenario == null) {
+                throw new IllegalStateException("No scenario");
+            }
+            final int nCharacters = scenario.getCharacters().size();
+            final var free = new BitSet(nCharacters);
+            free.set(0, nCharacters);
+            for (final var character : users.keySet()) {
+                final int index = scenario.indexOfCharacter(character);
+                if (0 <= index) {
+                    free.clear(index);
+                }
+            }
+            freeCharacters = free;
+            nFreeCharacters = free.cardinality();
+        }
+        return freeCharacters;
+    }
+
+    /**
+     * <p>
+     * The ID of the {@linkplain Scenario#getCharacters() character of the scenario}
+     * that should be allocated to the next user to join this game:
+     * the first character, in order of selection priority, that is not one of the {@linkplain #getUsers() users}.
+     * Null if all the characters are played.
+     * </p>
+     * <p>
+     * The game maintains a record of the free characters, so this does not scan the characters or users,
+     * except to create that record when first needed.
+     * </p>
+     *
+     * @throws IllegalStateException If this game does not have a {@linkplain #getScenario() scenario}.
+     * @see #getNumberOfFreeCharacters()
+     */
+    @Nullable
+    public final UUID getFirstFreeCharacter() {
+        final int index = getFreeCharacters().nextSetBit(0);
+        return index < 0 ? null : scenario.getCharacters().get(index).getId();
+    }
+
+    /**
+     * <p>
+     * The number of {@linkplain Scenario#getCharacters() characters of the scenario}
+     * that are not played by any of the {@linkplain #getUsers() users} of this game.
+     * </p>
+     *
+     * @throws IllegalStateException If this game does not have a {@linkplain #getScenario() scenario}.
+     * @see #getFirstFreeCharacter()
+     */
+    @Nonnegative
+    public final int getNumberOfFreeCharacters() {
+        getFreeCharacters();
+        return nFreeCharacters;
     }
 
     /**
@@ -203,6 +368,9 @@ public class Game {
     }
 
     public void setScenario(Scenario scenario) {
+        if (scenario != this.scenario) {
+            freeCharacters = null;
+        }
         this.scenario = scenario;
     }
 
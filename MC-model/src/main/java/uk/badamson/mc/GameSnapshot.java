@@ -0,0 +1,325 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * <p>
+ * An immutable snapshot of the state of a {@linkplain Game game}.
+ * </p>
+ * <p>
+ * Snapshots may be freely shared between readers and threads, and cached.
+ * Writers derive new snapshots from old snapshots, rather than changing them.
+ * The {@linkplain #getUsers() users map} of a snapshot is a persistent map,
+ * so a snapshot {@linkplain #withUsers(Map) derived by adding users} shares most of the structure of the map
+ * of the snapshot it was derived from, and adding a user takes time proportional to the logarithm
+ * of the number of users, rather than to the number of users.
+ * {@link Game} objects hold their users in the same kind of map,
+ * so {@linkplain Game#Game(GameSnapshot) constructing a game from a snapshot}
+ * and {@linkplain Game#toSnapshot() taking a snapshot of a game} share the map, rather than copying it.
+ * </p>
+ * <p>
+ * A snapshot does not record the {@linkplain Game#getScenario() scenario} of a game.
+ * </p>
+ */
+@Immutable
+public final class GameSnapshot {
+
+    private final Instant created;
+    private final Game.RunState runState;
+    private final boolean recruiting;
+    private final PersistentMap<UUID, UUID> users;
+    // The inverse of the users map: the character that each user plays.
+    private final PersistentMap<UUID, UUID> characters;
+
+    /**
+     * <p>
+     * Construct a snapshot with given attribute values.
+     * </p>
+     *
+     * @throws NullPointerException     If any argument is null.
+     * @throws IllegalArgumentException If {@code users} is not a {@linkplain Game#isValidUsers(Map) valid} users map.
+     */
+    public GameSnapshot(@Nonnull final Instant created,
+                        @Nonnull final Game.RunState runState,
+                        final boolean recruiting,
+                        @Nonnull final Map<UUID, UUID> users) {
+        this.created = Objects.requireNonNull(created, "created");
+        this.runState = Objects.requireNonNull(runState, "runState");
+        this.recruiting = recruiting;
+        Objects.requireNonNull(users, "users");
+        // copy then test to avoid race hazards
+        PersistentMap<UUID, UUID> copy = PersistentMap.empty();
+        PersistentMap<UUID, UUID> inverse = PersistentMap.empty();
+        for (final var entry : users.entrySet()) {
+            final var character = entry.getKey();
+            final var user = entry.getValue();
+            if (character == null || user == null || inverse.containsKey(user)) {
+                throw new IllegalArgumentException("users");
+            }
+            copy = copy.plus(character, user);
+            inverse = inverse.plus(user, character);
+        }
+        this.users = copy;
+        this.characters = inverse;
+    }
+
+    /*
+     * The characters map must be the inverse of the users map, which must be valid.
+     */
+    GameSnapshot(@Nonnull final PersistentMap<UUID, UUID> users,
+                         @Nonnull final PersistentMap<UUID, UUID> characters,
+                         @Nonnull final Instant created,
+                         @Nonnull final Game.RunState runState,
+                         final boolean recruiting) {
+        this.created = created;
+        this.runState = runState;
+        this.recruiting = recruiting;
+        this.users = users;
+        this.characters = characters;
+    }
+
+    /**
+     * @see Game#getCreated()
+     */
+    @Nonnull
+    public Instant getCreated() {
+        return created;
+    }
+
+    /**
+     * @see Game#getRunState()
+     */
+    @Nonnull
+    public Game.RunState getRunState() {
+        return runState;
+    }
+
+    /**
+     * @see Game#isRecruiting()
+     */
+    public boolean isRecruiting() {
+        return recruiting;
+    }
+
+    /**
+     * <p>
+     * The users of the game, as for {@link Game#getUsers()}.
+     * </p>
+     * <ul>
+     * <li>Always returns a {@linkplain Game#isValidUsers(Map) valid users map}.</li>
+     * <li>The returned map of users is not modifiable,
+     * and is shared with other snapshots and games, rather than copied.</li>
+     * </ul>
+     */
+    @Nonnull
+    public Map<UUID, UUID> getUsers() {
+        return users;
+    }
+
+    @Nonnull
+    PersistentMap<UUID, UUID> users() {
+        return users;
+    }
+
+    @Nonnull
+    PersistentMap<UUID, UUID> characters() {
+        return characters;
+    }
+
+    /**
+     * <p>
+     * The {@linkplain #getUsers() users} of this snapshot that are not users of a given snapshot.
+     * </p>
+     * <p>
+     * That is, the entries of the users map of this snapshot that are not entries of the users map
+     * of the given snapshot: the users added since, if this snapshot was derived from the given snapshot.
+     * This skips the structure that the users maps share,
+     * so if this snapshot was derived from the given snapshot, directly or through a {@link Game},
+     * this takes time proportional to the number of changes,
+     * multiplied by the logarithm of the number of users.
+     * </p>
+     * <ul>
+     * <li>The returned map is not modifiable.</li>
+     * </ul>
+     *
+     * @throws NullPointerException If {@code that} is null.
+     * @see #hasAllCharactersOf(GameSnapshot)
+     */
+    @Nonnull
+    public Map<UUID, UUID> getUsersNotIn(@Nonnull final GameSnapshot that) {
+        Objects.requireNonNull(that, "that");
+        final Map<UUID, UUID> result = new HashMap<>();
+        users.forEachDifference(that.users, result::put, character -> {
+        });
+        return result.isEmpty() ? Map.of() : Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * <p>
+     * Whether every character that has a user in a given snapshot also has a user in this snapshot.
+     * </p>
+     * <p>
+     * As for {@link #getUsersNotIn(GameSnapshot)}, this skips the structure that the users maps share.
+     * </p>
+     *
+     * @throws NullPointerException If {@code that} is null.
+     */
+    public boolean hasAllCharactersOf(@Nonnull final GameSnapshot that) {
+        Objects.requireNonNull(that, "that");
+        final var missing = new boolean[1];
+        users.forEachDifference(that.users, (character, user) -> {
+        }, character -> missing[0] = true);
+        return !missing[0];
+    }
+
+    /**
+     * <p>
+     * The ID of the character that a given user plays in the game,
+     * or null if the user is not one of the {@linkplain #getUsers() users} of the game.
+     * </p>
+     *
+     * @throws NullPointerException If {@code user} is null.
+     * @see Game#getCharacterOfUser(UUID)
+     */
+    @Nullable
+    public UUID getCharacterOfUser(@Nonnull final UUID user) {
+        Objects.requireNonNull(user, "user");
+        return characters.get(user);
+    }
+
+    /**
+     * <p>
+     * A snapshot that is the same as this snapshot, except that it has a given {@linkplain #getRunState() run state}.
+     * </p>
+     * <p>
+     * Returns this snapshot if it already has that run state.
+     * </p>
+     *
+     * @throws NullPointerException If {@code runState} is null.
+     */
+    @Nonnull
+    public GameSnapshot withRunState(@Nonnull final Game.RunState runState) {
+        Objects.requireNonNull(runState, "runState");
+        return runState == this.runState ? this : new GameSnapshot(users, characters, created, runState, recruiting);
+    }
+
+    /**
+     * <p>
+     * A snapshot that is the same as this snapshot, except for whether it is {@linkplain #isRecruiting() recruiting}.
+     * </p>
+     * <p>
+     * Returns this snapshot if it already has that recruiting state.
+     * </p>
+     *
+     * @see Game#endRecruitment()
+     */
+    @Nonnull
+    public GameSnapshot withRecruiting(final boolean recruiting) {
+        return recruiting == this.recruiting ? this
+                : new GameSnapshot(users, characters, created, runState, recruiting);
+    }
+
+    /**
+     * <p>
+     * A snapshot that is the same as this snapshot, except that it has some additional {@linkplain #getUsers() users}.
+     * </p>
+     * <p>
+     * Unlike {@link Game#addUser(UUID, UUID)}, this does not require that the game is recruiting,
+     * because it is used to replay changes that were made while the game was recruiting.
+     * An added user replaces any user already playing the same character.
+     * Returns this snapshot if there are no users to add.
+     * The derived snapshot shares most of the structure of the users map of this snapshot,
+     * so this takes time proportional to the number of added users
+     * multiplied by the logarithm of the number of users.
+     * </p>
+     *
+     * @param added A map from the IDs of characters to the IDs of the users to add as playing them.
+     * @throws NullPointerException     If {@code added} is null, or has a null key or value.
+     * @throws IllegalArgumentException If the users of the derived snapshot would not be a
+     *                                  {@linkplain Game#isValidUsers(Map) valid} users map.
+     */
+    @Nonnull
+    public GameSnapshot withUsers(@Nonnull final Map<UUID, UUID> added) {
+        Objects.requireNonNull(added, "added");
+        if (added.isEmpty()) {
+            return this;
+        }
+        var changedUsers = users;
+        var changedCharacters = characters;
+        // Remove replaced users first, so their users may be added for other characters.
+        for (final var character : added.keySet()) {
+            final var replaced = users.get(character);
+            if (replaced != null) {
+                changedCharacters = changedCharacters.minus(replaced);
+            }
+        }
+        for (final var entry : added.entrySet()) {
+            final var character = entry.getKey();
+            final var user = entry.getValue();
+            final var currentCharacter = changedCharacters.get(user);
+            if (currentCharacter != null && !currentCharacter.equals(character)) {
+                throw new IllegalArgumentException("added");
+            }
+            changedUsers = changedUsers.plus(character, user);
+            changedCharacters = changedCharacters.plus(user, character);
+        }
+        return new GameSnapshot(changedUsers, changedCharacters, created, runState, recruiting);
+    }
+
+    /**
+     * <p>
+     * Whether this object is <i>equivalent</i> to another object.
+     * </p>
+     * <p>
+     * The {@link GameSnapshot} class has <i>value semantics</i>: this
+     * object is equivalent to another only if the other object is also a
+     * {@link GameSnapshot} and they have equivalent attribute values.
+     * </p>
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof final GameSnapshot other)) {
+            return false;
+        }
+        return recruiting == other.recruiting && runState == other.runState
+                && created.equals(other.created) && users.equals(other.users);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(created, runState, recruiting, users);
+    }
+
+    @Override
+    public String toString() {
+        return "GameSnapshot{" + created + ", " + runState + (recruiting ? ", recruiting" : "") + ", " + users + "}";
+    }
+}
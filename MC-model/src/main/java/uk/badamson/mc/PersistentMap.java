@@ -0,0 +1,454 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * An immutable map that can derive changed versions of itself cheaply,
+ * by sharing most of its structure with the derived versions.
+ * </p>
+ * <p>
+ * The map is a hash array mapped trie: a tree of nodes with up to 32 children,
+ * indexed by successive 5-bit fragments of the hash codes of the keys.
+ * {@linkplain #plus(Object, Object) Adding} or {@linkplain #minus(Object) removing} an entry
+ * copies only the nodes on the path to the entry,
+ * so it takes time and space proportional to the logarithm of the size of the map,
+ * rather than to its size.
+ * </p>
+ * <p>
+ * The map does not permit null keys or values.
+ * The methods that would change the map in place throw {@link UnsupportedOperationException}.
+ * </p>
+ */
+@Immutable
+final class PersistentMap<KEY, VALUE> extends AbstractMap<KEY, VALUE> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final Node EMPTY_NODE = new Node(0, new Object[0]);
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(EMPTY_NODE, 0);
+
+    private final Node root;
+    @Nonnegative
+    private final int size;
+
+    private PersistentMap(@Nonnull final Node root, @Nonnegative final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nonnull
+    static <KEY, VALUE> PersistentMap<KEY, VALUE> empty() {
+        return (PersistentMap<KEY, VALUE>) EMPTY;
+    }
+
+    /**
+     * <p>
+     * A persistent map with the same entries as a given map.
+     * </p>
+     * <p>
+     * Returns the given map if it is already a persistent map.
+     * </p>
+     *
+     * @throws NullPointerException If {@code map} is null, or has a null key or value.
+     */
+    @SuppressWarnings("unchecked")
+    @Nonnull
+    static <KEY, VALUE> PersistentMap<KEY, VALUE> copyOf(@Nonnull final Map<? extends KEY, ? extends VALUE> map) {
+        if (map instanceof PersistentMap) {
+            return (PersistentMap<KEY, VALUE>) map;
+        }
+        PersistentMap<KEY, VALUE> result = empty();
+        for (final var entry : map.entrySet()) {
+            result = result.plus(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static int hash(@Nonnull final Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int index(final int bitmap, final int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Nonnull
+    private static Object[] inserted(@Nonnull final Object[] slots, final int index, @Nonnull final Object slot) {
+        final var result = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, result, 0, index);
+        result[index] = slot;
+        System.arraycopy(slots, index, result, index + 1, slots.length - index);
+        return result;
+    }
+
+    @Nonnull
+    private static Object[] replaced(@Nonnull final Object[] slots, final int index, @Nonnull final Object slot) {
+        final var result = slots.clone();
+        result[index] = slot;
+        return result;
+    }
+
+    @Nonnull
+    private static Object[] removed(@Nonnull final Object[] slots, final int index) {
+        final var result = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, result, 0, index);
+        System.arraycopy(slots, index + 1, result, index, slots.length - index - 1);
+        return result;
+    }
+
+    /*
+     * Below the maximum depth, all keys in a node have the same hash code,
+     * so the node is an unindexed list of entries.
+     */
+    private static boolean isCollisionLevel(final int shift) {
+        return Integer.SIZE <= shift;
+    }
+
+    @Nonnull
+    private static Node put(@Nonnull final Node node, final int shift, final int hash,
+                            @Nonnull final Object key, @Nonnull final Object value,
+                            @Nonnull final boolean[] added) {
+        if (isCollisionLevel(shift)) {
+            for (int i = 0; i < node.slots.length; ++i) {
+                final var entry = (Map.Entry<?, ?>) node.slots[i];
+                if (entry.getKey().equals(key)) {
+                    return entry.getValue().equals(value) ? node
+                            : new Node(0, replaced(node.slots, i, new SimpleImmutableEntry<>(key, value)));
+                }
+            }
+            added[0] = true;
+            return new Node(0, inserted(node.slots, node.slots.length, new SimpleImmutableEntry<>(key, value)));
+        }
+        final int bit = 1 << ((hash >>> shift) & MASK);
+        final int index = index(node.bitmap, bit);
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            return new Node(node.bitmap | bit,
+                    inserted(node.slots, index, new SimpleImmutableEntry<>(key, value)));
+        }
+        final var slot = node.slots[index];
+        final Node child;
+        if (slot instanceof final Node subNode) {
+            child = put(subNode, shift + BITS, hash, key, value, added);
+            if (child == subNode) {
+                return node;
+            }
+        } else {
+            final var entry = (Map.Entry<?, ?>) slot;
+            if (entry.getKey().equals(key)) {
+                return entry.getValue().equals(value) ? node
+                        : new Node(node.bitmap, replaced(node.slots, index, new SimpleImmutableEntry<>(key, value)));
+            }
+            final var existing = put(EMPTY_NODE, shift + BITS, hash(entry.getKey()),
+                    entry.getKey(), entry.getValue(), new boolean[1]);
+            child = put(existing, shift + BITS, hash, key, value, added);
+        }
+        return new Node(node.bitmap, replaced(node.slots, index, child));
+    }
+
+    @Nonnull
+    private static Node remove(@Nonnull final Node node, final int shift, final int hash,
+                               @Nonnull final Object key) {
+        if (isCollisionLevel(shift)) {
+            for (int i = 0; i < node.slots.length; ++i) {
+                if (((Map.Entry<?, ?>) node.slots[i]).getKey().equals(key)) {
+                    return new Node(0, removed(node.slots, i));
+                }
+            }
+            return node;
+        }
+        final int bit = 1 << ((hash >>> shift) & MASK);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        final int index = index(node.bitmap, bit);
+        final var slot = node.slots[index];
+        if (slot instanceof final Node subNode) {
+            final var child = remove(subNode, shift + BITS, hash, key);
+            if (child == subNode) {
+                return node;
+            } else if (child.slots.length == 1 && !(child.slots[0] instanceof Node)) {
+                // Pull a lone entry up, so the tree is no deeper than necessary.
+                return new Node(node.bitmap, replaced(node.slots, index, child.slots[0]));
+            } else {
+                return new Node(node.bitmap, replaced(node.slots, index, child));
+            }
+        } else if (((Map.Entry<?, ?>) slot).getKey().equals(key)) {
+            return new Node(node.bitmap & ~bit, removed(node.slots, index));
+        } else {
+            return node;
+        }
+    }
+
+    @Nullable
+    private static Map.Entry<?, ?> find(@Nonnull final Node root, @Nonnull final Object key) {
+        final int hash = hash(key);
+        var node = root;
+        for (int shift = 0; ; shift += BITS) {
+            if (isCollisionLevel(shift)) {
+                for (final var slot : node.slots) {
+                    final var entry = (Map.Entry<?, ?>) slot;
+                    if (entry.getKey().equals(key)) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            final var slot = node.slots[index(node.bitmap, bit)];
+            if (slot instanceof final Node subNode) {
+                node = subNode;
+            } else {
+                final var entry = (Map.Entry<?, ?>) slot;
+                return entry.getKey().equals(key) ? entry : null;
+            }
+        }
+    }
+
+    @Nullable
+    private static Object child(@Nonnull final Node node, final int bit) {
+        return (node.bitmap & bit) == 0 ? null : node.slots[index(node.bitmap, bit)];
+    }
+
+    private static void collect(@Nullable final Object slot, @Nonnull final Map<Object, Object> entries) {
+        if (slot instanceof final Node node) {
+            for (final var child : node.slots) {
+                collect(child, entries);
+            }
+        } else if (slot != null) {
+            final var entry = (Map.Entry<?, ?>) slot;
+            entries.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void diff(@Nullable final Object slot, @Nullable final Object thatSlot, final int shift,
+                             @Nonnull final BiConsumer<Object, Object> added,
+                             @Nonnull final Consumer<Object> removed) {
+        if (slot == thatSlot) {
+            return;// shared structure
+        }
+        if (slot instanceof final Node node && thatSlot instanceof final Node thatNode && !isCollisionLevel(shift)) {
+            for (int bits = node.bitmap | thatNode.bitmap; bits != 0; bits &= bits - 1) {
+                final int bit = Integer.lowestOneBit(bits);
+                diff(child(node, bit), child(thatNode, bit), shift + BITS, added, removed);
+            }
+        } else {// the few entries below this position differ in shape, so compare them directly
+            final Map<Object, Object> entries = new HashMap<>();
+            final Map<Object, Object> thatEntries = new HashMap<>();
+            collect(slot, entries);
+            collect(thatSlot, thatEntries);
+            entries.forEach((key, value) -> {
+                if (!value.equals(thatEntries.get(key))) {
+                    added.accept(key, value);
+                }
+            });
+            thatEntries.keySet().forEach(key -> {
+                if (!entries.containsKey(key)) {
+                    removed.accept(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>
+     * Report the differences between this map and a given map.
+     * </p>
+     * <p>
+     * This skips the structure that the maps share,
+     * so for a map derived from the given map by a few changes,
+     * it takes time proportional to the number of changes multiplied by the logarithm of the size of the maps,
+     * rather than to their size.
+     * </p>
+     *
+     * @param added   Receives each entry of this map that is not an entry of {@code that} map.
+     * @param removed Receives each key of {@code that} map that is not a key of this map.
+     */
+    @SuppressWarnings("unchecked")
+    void forEachDifference(@Nonnull final PersistentMap<KEY, VALUE> that,
+                           @Nonnull final BiConsumer<? super KEY, ? super VALUE> added,
+                           @Nonnull final Consumer<? super KEY> removed) {
+        Objects.requireNonNull(that, "that");
+        Objects.requireNonNull(added, "added");
+        Objects.requireNonNull(removed, "removed");
+        diff(root, that.root, 0,
+                (key, value) -> added.accept((KEY) key, (VALUE) value),
+                key -> removed.accept((KEY) key));
+    }
+
+    /**
+     * <p>
+     * A map that is the same as this map, except that it maps a given key to a given value.
+     * </p>
+     * <p>
+     * Returns this map if it already has that entry.
+     * </p>
+     *
+     * @throws NullPointerException If {@code key} or {@code value} is null.
+     */
+    @Nonnull
+    PersistentMap<KEY, VALUE> plus(@Nonnull final KEY key, @Nonnull final VALUE value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        final var added = new boolean[1];
+        final var newRoot = put(root, 0, hash(key), key, value, added);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * <p>
+     * A map that is the same as this map, except that it has no entry for a given key.
+     * </p>
+     * <p>
+     * Returns this map if it has no entry for that key.
+     * </p>
+     *
+     * @throws NullPointerException If {@code key} is null.
+     */
+    @Nonnull
+    PersistentMap<KEY, VALUE> minus(@Nonnull final Object key) {
+        Objects.requireNonNull(key, "key");
+        final var newRoot = remove(root, 0, hash(key), key);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, size - 1);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(@Nullable final Object key) {
+        return key != null && find(root, key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public VALUE get(@Nullable final Object key) {
+        if (key == null) {
+            return null;
+        }
+        final var entry = find(root, key);
+        return entry == null ? null : (VALUE) entry.getValue();
+    }
+
+    @Nonnull
+    @Override
+    public Set<Entry<KEY, VALUE>> entrySet() {
+        return new AbstractSet<>() {
+            @Nonnull
+            @Override
+            public Iterator<Entry<KEY, VALUE>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Immutable
+    private static final class Node {
+        final int bitmap;
+        // Each slot is either a child node or an entry
+        final Object[] slots;
+
+        Node(final int bitmap, @Nonnull final Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private static final class EntryIterator<KEY, VALUE> implements Iterator<Entry<KEY, VALUE>> {
+
+        private final Deque<Node> nodes = new ArrayDeque<>();
+        private final Deque<Integer> positions = new ArrayDeque<>();
+        @Nullable
+        private Entry<KEY, VALUE> next;
+
+        EntryIterator(@Nonnull final Node root) {
+            nodes.push(root);
+            positions.push(0);
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (next == null && !nodes.isEmpty()) {
+                final var node = nodes.peek();
+                final int position = positions.pop();
+                if (node.slots.length <= position) {
+                    nodes.pop();
+                } else {
+                    positions.push(position + 1);
+                    final var slot = node.slots[position];
+                    if (slot instanceof final Node subNode) {
+                        nodes.push(subNode);
+                        positions.push(0);
+                    } else {
+                        next = (Entry<KEY, VALUE>) slot;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Nonnull
+        @Override
+        public Entry<KEY, VALUE> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final var result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -21,9 +21,12 @@ package uk.badamson.mc;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 import javax.annotation.Nonnull;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
 
 import static java.util.stream.Collectors.toUnmodifiableSet;
 
@@ -63,6 +66,7 @@ public class Scenario {
     private final String title;
     private final String description;
     private final List<NamedUUID> characters;
+    private final Map<UUID, Integer> characterIndexes;
 
     public Scenario(@Nonnull final String title,
                     @Nonnull final String description,
@@ -79,6 +83,11 @@ public class Scenario {
             // hazards
             throw new IllegalArgumentException("invalid characters");
         }
+        final Map<UUID, Integer> indexes = new HashMap<>(this.characters.size() * 2);
+        for (int c = 0; c < this.characters.size(); ++c) {
+            indexes.put(this.characters.get(c).getId(), c);
+        }
+        characterIndexes = indexes;
     }
 
     /**
@@ -98,6 +107,20 @@ public class Scenario {
         return characters;
     }
 
+    /**
+     * <p>
+     * The position, in the {@linkplain #getCharacters() list of characters}, of the character
+     * that has a given ID, or -1 if this scenario has no such character.
+     * </p>
+     * <p>
+     * This takes constant time, however many characters the scenario has.
+     * </p>
+     */
+    public final int indexOfCharacter(@Nonnull final UUID character) {
+        final var index = characterIndexes.get(character);
+        return index == null ? -1 : index;
+    }
+
     /**
      * <p>
      * A human readable description for this scenario.
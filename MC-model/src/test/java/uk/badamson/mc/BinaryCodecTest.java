@@ -0,0 +1,208 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryCodecTest {
+
+    private static final UUID ID_A = UUID.randomUUID();
+    private static final UUID ID_B = UUID.randomUUID();
+    private static final UUID ID_C = UUID.randomUUID();
+
+    @Nested
+    public class Varint {
+
+        @Test
+        public void zero() {
+            test(0L);
+        }
+
+        @Test
+        public void oneByteMaximum() {
+            test(127L);
+        }
+
+        @Test
+        public void twoBytes() {
+            test(128L);
+        }
+
+        @Test
+        public void maximum() {
+            test(Long.MAX_VALUE);
+        }
+
+        @Test
+        public void overflow() {
+            final var buffer = ByteBuffer.allocate(10);
+            for (int b = 0; b < 9; ++b) {
+                buffer.put((byte) 0x80);
+            }
+            buffer.put((byte) 2).flip();
+
+            assertThrows(IllegalArgumentException.class, () -> BinaryCodec.getVarint(buffer));
+        }
+
+        @Test
+        public void tooLong() {
+            final var buffer = ByteBuffer.allocate(11);
+            for (int b = 0; b < 10; ++b) {
+                buffer.put((byte) 0x80);
+            }
+            buffer.put((byte) 0).flip();
+
+            assertThrows(IllegalArgumentException.class, () -> BinaryCodec.getVarint(buffer));
+        }
+
+        private void test(final long value) {
+            final var buffer = ByteBuffer.allocate(BinaryCodec.varintSize(value));
+            BinaryCodec.putVarint(buffer, value);
+            assertFalse(buffer.hasRemaining(), "size");
+            buffer.flip();
+
+            assertEquals(value, BinaryCodec.getVarint(buffer));
+        }
+    }
+
+    @Nested
+    public class GameRoundTrip {
+
+        @Test
+        public void noUsers() {
+            test(new Game(Instant.ofEpochSecond(1000, 123), Game.RunState.WAITING_TO_START, true, Map.of()));
+        }
+
+        @Test
+        public void users() {
+            test(new Game(Instant.now(), Game.RunState.RUNNING, false, Map.of(ID_A, ID_B, ID_C, ID_A)));
+        }
+
+        @Test
+        public void truncated() {
+            final var game = new Game(Instant.now(), Game.RunState.RUNNING, false, Map.of(ID_A, ID_B));
+            final var buffer = ByteBuffer.allocate(BinaryCodec.encodedSize(game));
+            BinaryCodec.encode(game, buffer);
+            buffer.flip().limit(buffer.limit() - 1);
+
+            assertThrows(BufferUnderflowException.class, () -> BinaryCodec.decodeGameSnapshot(buffer));
+        }
+
+        @Test
+        public void duplicateUser() {
+            final var game = new Game(Instant.now(), Game.RunState.RUNNING, false, Map.of(ID_A, ID_B, ID_C, ID_A));
+            final var buffer = ByteBuffer.allocate(BinaryCodec.encodedSize(game));
+            BinaryCodec.encode(game, buffer);
+            buffer.position(buffer.limit() - BinaryCodec.UUID_SIZE);
+            BinaryCodec.putUUID(buffer, game.getUsers().values().iterator().next());
+            buffer.flip();
+
+            assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeGameSnapshot(buffer));
+        }
+
+        @Test
+        public void unknownVersion() {
+            final var buffer = ByteBuffer.allocate(64);
+            buffer.put((byte) (BinaryCodec.VERSION + 1)).flip();
+
+            assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeGameSnapshot(buffer));
+        }
+
+        private void test(final Game game) {
+            final var buffer = ByteBuffer.allocate(BinaryCodec.encodedSize(game));
+            BinaryCodec.encode(game, buffer);
+            assertFalse(buffer.hasRemaining(), "size");
+            buffer.flip();
+
+            final var decoded = BinaryCodec.decodeGameSnapshot(buffer);
+
+            assertAll(
+                    () -> assertEquals(game.getCreated(), decoded.getCreated(), "created"),
+                    () -> assertEquals(game.getRunState(), decoded.getRunState(), "runState"),
+                    () -> assertEquals(game.isRecruiting(), decoded.isRecruiting(), "recruiting"),
+                    () -> assertEquals(game.getUsers(), decoded.getUsers(), "users"));
+        }
+    }
+
+    @Nested
+    public class UserRoundTrip {
+
+        @Test
+        public void a() {
+            test(new User(ID_A, "Jeff", "password", EnumSet.of(Authority.ROLE_PLAYER), true, false, true, false));
+        }
+
+        @Test
+        public void b() {
+            test(new User(ID_B, "Zoë 😀", null, Authority.ALL, false, true, false, true));
+        }
+
+        @Test
+        public void administrator() {
+            test(User.createAdministrator("secret"));
+        }
+
+        private void test(final User user) {
+            final var buffer = ByteBuffer.allocate(BinaryCodec.encodedSize(user));
+            BinaryCodec.encode(user, buffer);
+            assertFalse(buffer.hasRemaining(), "size");
+            buffer.flip();
+
+            final var decoded = BinaryCodec.decodeUser(buffer);
+
+            assertAll(
+                    () -> assertEquals(user, decoded),
+                    () -> assertEquals(user.getUsername(), decoded.getUsername(), "username"),
+                    () -> assertEquals(user.getPassword(), decoded.getPassword(), "password"),
+                    () -> assertEquals(user.getAuthorities(), decoded.getAuthorities(), "authorities"),
+                    () -> assertEquals(user.isAccountNonExpired(), decoded.isAccountNonExpired(), "accountNonExpired"),
+                    () -> assertEquals(user.isAccountNonLocked(), decoded.isAccountNonLocked(), "accountNonLocked"),
+                    () -> assertEquals(user.isCredentialsNonExpired(), decoded.isCredentialsNonExpired(),
+                            "credentialsNonExpired"),
+                    () -> assertEquals(user.isEnabled(), decoded.isEnabled(), "enabled"));
+        }
+    }
+
+    @Test
+    public void userGameAssociationRoundTrip() {
+        final var association = new UserGameAssociation(ID_A, ID_B);
+        final var buffer = ByteBuffer.allocate(BinaryCodec.encodedSize(association));
+        BinaryCodec.encode(association, buffer);
+        assertFalse(buffer.hasRemaining(), "size");
+        buffer.flip();
+
+        assertEquals(association, BinaryCodec.decodeUserGameAssociation(buffer));
+    }
+
+    @Test
+    public void authoritiesFitInAByte() {
+        assertTrue(Authority.values().length <= Byte.SIZE - 1);
+    }
+}
@@ -0,0 +1,247 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.badamson.dbc.assertions.EqualsSemanticsVerifier;
+import uk.badamson.dbc.assertions.ObjectVerifier;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class GameSnapshotTest {
+    private static final Instant CREATED_A = Instant.EPOCH;
+    private static final Instant CREATED_B = Instant.now();
+    private static final UUID USER_ID_A = UUID.randomUUID();
+    private static final UUID USER_ID_B = UUID.randomUUID();
+    private static final UUID CHARACTER_ID_A = UUID.randomUUID();
+    private static final UUID CHARACTER_ID_B = UUID.randomUUID();
+
+    public static void assertInvariants(final GameSnapshot snapshot) {
+        ObjectVerifier.assertInvariants(snapshot);
+        assertThat("users", Game.isValidUsers(snapshot.getUsers()));
+    }
+
+    public static void assertInvariants(final GameSnapshot snapshotA, final GameSnapshot snapshotB) {
+        ObjectVerifier.assertInvariants(snapshotA, snapshotB);
+        EqualsSemanticsVerifier.assertValueSemantics(snapshotA, snapshotB, "created", GameSnapshot::getCreated);
+        EqualsSemanticsVerifier.assertValueSemantics(snapshotA, snapshotB, "runState", GameSnapshot::getRunState);
+        EqualsSemanticsVerifier.assertValueSemantics(snapshotA, snapshotB, "recruiting", GameSnapshot::isRecruiting);
+        EqualsSemanticsVerifier.assertValueSemantics(snapshotA, snapshotB, "users", GameSnapshot::getUsers);
+    }
+
+    @Nested
+    public class Constructor {
+
+        @Test
+        public void a() {
+            test(CREATED_A, Game.RunState.WAITING_TO_START, true, Map.of());
+        }
+
+        @Test
+        public void b() {
+            test(CREATED_B, Game.RunState.RUNNING, false, Map.of(CHARACTER_ID_B, USER_ID_B));
+        }
+
+        @Test
+        public void duplicateUser() {
+            final Map<UUID, UUID> users = Map.of(CHARACTER_ID_A, USER_ID_A, CHARACTER_ID_B, USER_ID_A);
+            assertThrows(IllegalArgumentException.class,
+                    () -> new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, users));
+        }
+
+        @Test
+        public void copiesUsers() {
+            final var users = new HashMap<UUID, UUID>();
+            final var snapshot = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, users);
+
+            users.put(CHARACTER_ID_A, USER_ID_A);
+
+            assertThat(snapshot.getUsers(), anEmptyMap());
+        }
+
+        private void test(final Instant created, final Game.RunState runState, final boolean recruiting,
+                          final Map<UUID, UUID> users) {
+            final var snapshot = new GameSnapshot(created, runState, recruiting, users);
+
+            assertInvariants(snapshot);
+            assertAll(
+                    () -> assertThat("characters", users.entrySet().stream()
+                            .allMatch(e -> e.getKey().equals(snapshot.getCharacterOfUser(e.getValue())))),
+                    () -> assertThat("created", snapshot.getCreated(), sameInstance(created)),
+                    () -> assertThat("runState", snapshot.getRunState(), sameInstance(runState)),
+                    () -> assertThat("recruiting", snapshot.isRecruiting(), is(recruiting)),
+                    () -> assertThat("users", snapshot.getUsers(), is(users)));
+        }
+    }
+
+    @Nested
+    public class Derive {
+
+        @Test
+        public void withRunState() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.WAITING_TO_START, true,
+                    Map.of(CHARACTER_ID_A, USER_ID_A));
+
+            final var snapshot = snapshot0.withRunState(Game.RunState.RUNNING);
+
+            assertInvariants(snapshot);
+            assertInvariants(snapshot0, snapshot);
+            assertAll(
+                    () -> assertThat("runState", snapshot.getRunState(), is(Game.RunState.RUNNING)),
+                    () -> assertThat("unchanged", snapshot0.getRunState(), is(Game.RunState.WAITING_TO_START)),
+                    () -> assertThat("users shared", snapshot.getUsers(), sameInstance(snapshot0.getUsers())));
+        }
+
+        @Test
+        public void withSameRunState() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, Map.of());
+
+            assertThat(snapshot0.withRunState(Game.RunState.RUNNING), sameInstance(snapshot0));
+        }
+
+        @Test
+        public void withRecruiting() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, Map.of());
+
+            final var snapshot = snapshot0.withRecruiting(false);
+
+            assertInvariants(snapshot);
+            assertAll(
+                    () -> assertThat("recruiting", snapshot.isRecruiting(), is(false)),
+                    () -> assertThat("unchanged", snapshot0.isRecruiting(), is(true)),
+                    () -> assertThat("same", snapshot.withRecruiting(false), sameInstance(snapshot)));
+        }
+
+        @Test
+        public void withUsers() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true,
+                    Map.of(CHARACTER_ID_A, USER_ID_A));
+
+            final var snapshot = snapshot0.withUsers(Map.of(CHARACTER_ID_B, USER_ID_B));
+
+            assertInvariants(snapshot);
+            assertAll(
+                    () -> assertThat("users", snapshot.getUsers(),
+                            is(Map.of(CHARACTER_ID_A, USER_ID_A, CHARACTER_ID_B, USER_ID_B))),
+                    () -> assertThat("unchanged", snapshot0.getUsers(), is(Map.of(CHARACTER_ID_A, USER_ID_A))));
+        }
+
+        @Test
+        public void withReplacedUser() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true,
+                    Map.of(CHARACTER_ID_A, USER_ID_A));
+
+            // The replaced user may then play another character
+            final var snapshot = snapshot0.withUsers(Map.of(CHARACTER_ID_A, USER_ID_B, CHARACTER_ID_B, USER_ID_A));
+
+            assertInvariants(snapshot);
+            assertAll(
+                    () -> assertThat("users", snapshot.getUsers(),
+                            is(Map.of(CHARACTER_ID_A, USER_ID_B, CHARACTER_ID_B, USER_ID_A))),
+                    () -> assertThat("character of A", snapshot.getCharacterOfUser(USER_ID_A), is(CHARACTER_ID_B)),
+                    () -> assertThat("character of B", snapshot.getCharacterOfUser(USER_ID_B), is(CHARACTER_ID_A)));
+        }
+
+        @Test
+        public void withManyUsers() {
+            var snapshot = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, Map.of());
+            final var expected = new HashMap<UUID, UUID>();
+            for (int u = 0; u < 500; ++u) {
+                final var character = UUID.randomUUID();
+                final var user = UUID.randomUUID();
+                final var previous = snapshot;
+
+                snapshot = snapshot.withUsers(Map.of(character, user));
+
+                assertThat("previous unchanged", previous.getUsers(), is(Map.copyOf(expected)));
+                expected.put(character, user);
+                assertThat("character", snapshot.getCharacterOfUser(user), is(character));
+            }
+            assertInvariants(snapshot);
+            assertThat(snapshot.getUsers(), is(expected));
+        }
+
+        @Test
+        public void withNoUsers() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, Map.of());
+
+            assertThat(snapshot0.withUsers(Map.of()), sameInstance(snapshot0));
+        }
+
+        @Test
+        public void withDuplicateUser() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true,
+                    Map.of(CHARACTER_ID_A, USER_ID_A));
+            final Map<UUID, UUID> added = Map.of(CHARACTER_ID_B, USER_ID_A);
+
+            assertThrows(IllegalArgumentException.class, () -> snapshot0.withUsers(added));
+        }
+    }
+
+    @Nested
+    public class Differences {
+
+        @Test
+        public void addedThroughGame() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true,
+                    Map.of(CHARACTER_ID_A, USER_ID_A));
+            final var game = new Game(snapshot0);
+            game.addUser(CHARACTER_ID_B, USER_ID_B);
+            final var snapshot = game.toSnapshot();
+
+            assertAll(
+                    () -> assertThat("added", snapshot.getUsersNotIn(snapshot0), is(Map.of(CHARACTER_ID_B, USER_ID_B))),
+                    () -> assertThat("none removed", snapshot.hasAllCharactersOf(snapshot0), is(true)),
+                    () -> assertThat("reverse added", snapshot0.getUsersNotIn(snapshot), anEmptyMap()),
+                    () -> assertThat("reverse removed", snapshot0.hasAllCharactersOf(snapshot), is(false)));
+        }
+
+        @Test
+        public void replaced() {
+            final var snapshot0 = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true,
+                    Map.of(CHARACTER_ID_A, USER_ID_A));
+
+            final var snapshot = snapshot0.withUsers(Map.of(CHARACTER_ID_A, USER_ID_B));
+
+            assertAll(
+                    () -> assertThat("added", snapshot.getUsersNotIn(snapshot0), is(Map.of(CHARACTER_ID_A, USER_ID_B))),
+                    () -> assertThat("none removed", snapshot.hasAllCharactersOf(snapshot0), is(true)));
+        }
+
+        @Test
+        public void equalButUnrelated() {
+            final Map<UUID, UUID> users = Map.of(CHARACTER_ID_A, USER_ID_A, CHARACTER_ID_B, USER_ID_B);
+            final var snapshotA = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, users);
+            final var snapshotB = new GameSnapshot(CREATED_B, Game.RunState.STOPPED, false, users);
+
+            assertAll(
+                    () -> assertThat("added", snapshotA.getUsersNotIn(snapshotB), anEmptyMap()),
+                    () -> assertThat("none removed", snapshotA.hasAllCharactersOf(snapshotB), is(true)));
+        }
+    }
+}
@@ -234,6 +234,70 @@ public class GameTest {
         }
     }
 
+    @Nested
+    public class Snapshots {
+
+        @Test
+        public void roundTrip() {
+            final var game0 = new Game(CREATED_B, Game.RunState.RUNNING, true, USERS_B);
+
+            final var snapshot = game0.toSnapshot();
+            final var game = new Game(snapshot);
+
+            assertInvariants(game);
+            assertAll(
+                    () -> assertThat("scenario", game.getScenario(), nullValue()),
+                    () -> assertThat("created", game.getCreated(), sameInstance(CREATED_B)),
+                    () -> assertThat("runState", game.getRunState(), is(Game.RunState.RUNNING)),
+                    () -> assertThat("recruiting", game.isRecruiting(), is(true)),
+                    () -> assertThat("users", game.getUsers(), is(USERS_B)),
+                    () -> assertThat("snapshot", game.toSnapshot(), is(snapshot)));
+        }
+
+        @Test
+        public void sharesUsers() {
+            final var snapshot = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, USERS_B);
+
+            final var game = new Game(snapshot);
+
+            assertThat(game.toSnapshot().getUsers(), sameInstance(snapshot.getUsers()));
+        }
+
+        @Test
+        public void addUserDoesNotChangeSnapshot() {
+            final var snapshot = new GameSnapshot(CREATED_A, Game.RunState.RUNNING, true, USERS_B);
+            final var game = new Game(snapshot);
+            final var copy = new Game(game);
+
+            addUser(game, CHARACTER_ID_A, USER_ID_A);
+
+            assertAll(
+                    () -> assertThat("snapshot", snapshot.getUsers(), is(USERS_B)),
+                    () -> assertThat("copy", copy.getUsers(), is(USERS_B)),
+                    () -> assertThat("game", game.getUsers(), hasEntry(CHARACTER_ID_A, USER_ID_A)));
+        }
+
+        @Test
+        public void snapshotAfterAddUserSharesUsers() {
+            final var game = new Game(CREATED_A, Game.RunState.RUNNING, true, USERS_B);
+            addUser(game, CHARACTER_ID_A, USER_ID_A);
+
+            final var snapshot = game.toSnapshot();
+
+            assertThat(snapshot.getUsers(), sameInstance(game.getUsers()));
+        }
+
+        @Test
+        public void addUserDoesNotChangeReturnedUsers() {
+            final var game = new Game(CREATED_A, Game.RunState.RUNNING, true, USERS_B);
+            final var users = game.getUsers();
+
+            addUser(game, CHARACTER_ID_A, USER_ID_A);
+
+            assertThat(users, is(USERS_B));
+        }
+    }
+
     @Nested
     public class ConstructWithAttributes {
 
@@ -304,6 +368,151 @@ public class GameTest {
         }
     }
 
+    @Nested
+    public class CharacterOfUser {
+
+        @Test
+        public void initialUser() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_B);
+
+            assertAll(
+                    () -> assertThat("character", game.getCharacterOfUser(USER_ID_B), is(CHARACTER_ID_B)),
+                    () -> assertThat("hasUser", game.hasUser(USER_ID_B), is(true)));
+        }
+
+        @Test
+        public void absent() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_B);
+
+            assertAll(
+                    () -> assertThat("character", game.getCharacterOfUser(USER_ID_A), nullValue()),
+                    () -> assertThat("hasUser", game.hasUser(USER_ID_A), is(false)));
+        }
+
+        @Test
+        public void addedUser() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_B);
+
+            game.addUser(CHARACTER_ID_A, USER_ID_A);
+
+            assertThat(game.getCharacterOfUser(USER_ID_A), is(CHARACTER_ID_A));
+        }
+
+        @Test
+        public void replacedUser() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_B);
+
+            game.addUser(CHARACTER_ID_B, USER_ID_A);
+
+            assertAll(
+                    () -> assertThat("replacement", game.getCharacterOfUser(USER_ID_A), is(CHARACTER_ID_B)),
+                    () -> assertThat("replaced", game.hasUser(USER_ID_B), is(false)));
+        }
+
+        @Test
+        public void userWithOtherCharacter() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_B);
+
+            assertThrows(IllegalArgumentException.class, () -> game.addUser(CHARACTER_ID_A, USER_ID_B));
+        }
+
+        @Test
+        public void copyIndependent() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_A);
+            final var copy = new Game(game);
+
+            copy.addUser(CHARACTER_ID_A, USER_ID_A);
+
+            assertAll(
+                    () -> assertThat("original", game.hasUser(USER_ID_A), is(false)),
+                    () -> assertThat("copy", copy.hasUser(USER_ID_A), is(true)));
+        }
+    }
+
+    @Nested
+    public class FreeCharacters {
+
+        private final Scenario scenario = new Scenario("Section Assault", "", List.of(
+                new NamedUUID(CHARACTER_ID_A, "Lt. Winters"),
+                new NamedUUID(CHARACTER_ID_B, "Sgt. Summer")));
+
+        @Test
+        public void noScenario() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_A);
+
+            assertThrows(IllegalStateException.class, game::getFirstFreeCharacter);
+            assertThrows(IllegalStateException.class, game::getNumberOfFreeCharacters);
+        }
+
+        @Test
+        public void none() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_A);
+            game.setScenario(scenario);
+
+            assertAll(
+                    () -> assertThat("first", game.getFirstFreeCharacter(), is(CHARACTER_ID_A)),
+                    () -> assertThat("number", game.getNumberOfFreeCharacters(), is(2)));
+        }
+
+        @Test
+        public void initialUsers() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_B);
+            game.setScenario(scenario);
+
+            assertAll(
+                    () -> assertThat("first", game.getFirstFreeCharacter(), is(CHARACTER_ID_A)),
+                    () -> assertThat("number", game.getNumberOfFreeCharacters(), is(1)));
+        }
+
+        @Test
+        public void addUsers() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_A);
+            game.setScenario(scenario);
+            game.getNumberOfFreeCharacters();// create the record
+
+            game.addUser(CHARACTER_ID_A, USER_ID_A);
+            assertAll(
+                    () -> assertThat("first", game.getFirstFreeCharacter(), is(CHARACTER_ID_B)),
+                    () -> assertThat("number", game.getNumberOfFreeCharacters(), is(1)));
+
+            game.addUser(CHARACTER_ID_A, USER_ID_B);// replace
+            assertThat("number unchanged by replacement", game.getNumberOfFreeCharacters(), is(1));
+
+            game.addUser(CHARACTER_ID_B, USER_ID_A);
+            assertAll(
+                    () -> assertThat("first", game.getFirstFreeCharacter(), nullValue()),
+                    () -> assertThat("number", game.getNumberOfFreeCharacters(), is(0)));
+        }
+
+        @Test
+        public void copyIndependent() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_A);
+            game.setScenario(scenario);
+            game.getNumberOfFreeCharacters();// create the record
+            final var copy = new Game(game);
+
+            copy.addUser(CHARACTER_ID_A, USER_ID_A);
+
+            assertAll(
+                    () -> assertThat("original", game.getNumberOfFreeCharacters(), is(2)),
+                    () -> assertThat("copy", copy.getNumberOfFreeCharacters(), is(1)));
+        }
+
+        @Test
+        public void changeScenario() {
+            final var game = new Game(CREATED_A, Game.RunState.WAITING_TO_START, true, USERS_A);
+            game.setScenario(scenario);
+            game.getNumberOfFreeCharacters();// create the record
+
+            game.setScenario(SCENARIO_A);
+
+            assertAll(
+                    () -> assertThat("first", game.getFirstFreeCharacter(),
+                            is(SCENARIO_A.getCharacters().get(0).getId())),
+                    () -> assertThat("number", game.getNumberOfFreeCharacters(), is(1)));
+        }
+    }
+
     @Nested
     public class IsValidUsers {
 
@@ -319,6 +528,13 @@ public class GameTest {
             assertTrue(Game.isValidUsers(users));
         }
 
+        @Test
+        public void duplicateUser() {
+            final Map<UUID, UUID> users = Map.of(CHARACTER_ID_A, USER_ID_A,
+                    CHARACTER_ID_B, USER_ID_A);
+            assertFalse(Game.isValidUsers(users));
+        }
+
         @Test
         public void two() {
             final Map<UUID, UUID> users = Map.of(CHARACTER_ID_A, USER_ID_A,
@@ -0,0 +1,262 @@
+package uk.badamson.mc;
+/*
+ * © Copyright Benedict Adamson 2022.
+ *
+ * This file is part of MC.
+ *
+ * MC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with MC.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PersistentMapTest {
+
+    private static <KEY, VALUE> void assertInvariants(final PersistentMap<KEY, VALUE> map,
+                                                      final Map<KEY, VALUE> expected) {
+        assertThat("equals", map, is(expected));
+        assertThat("hashCode", map.hashCode(), is(expected.hashCode()));
+        assertThat("size", map.size(), is(expected.size()));
+        assertThat("iterated size", map.entrySet().stream().count(), is((long) expected.size()));
+        for (final var entry : expected.entrySet()) {
+            assertThat("get", map.get(entry.getKey()), is(entry.getValue()));
+        }
+    }
+
+    /*
+     * A key with a chosen hash code, to force collisions.
+     */
+    private record Key(int hash, int id) {
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Nested
+    public class Empty {
+
+        @Test
+        public void test() {
+            final PersistentMap<UUID, UUID> map = PersistentMap.empty();
+
+            assertInvariants(map, Map.of());
+            assertThat(map.get(UUID.randomUUID()), nullValue());
+            assertThat(map.containsKey(null), is(false));
+            assertThat(map.minus(UUID.randomUUID()), sameInstance(map));
+        }
+    }
+
+    @Nested
+    public class Plus {
+
+        @Test
+        public void one() {
+            final var key = UUID.randomUUID();
+            final var value = UUID.randomUUID();
+            final PersistentMap<UUID, UUID> map0 = PersistentMap.empty();
+
+            final var map = map0.plus(key, value);
+
+            assertInvariants(map, Map.of(key, value));
+            assertInvariants(map0, Map.of());
+        }
+
+        @Test
+        public void sameEntry() {
+            final var key = UUID.randomUUID();
+            final var value = UUID.randomUUID();
+            final var map = PersistentMap.<UUID, UUID>empty().plus(key, value);
+
+            assertThat(map.plus(key, value), sameInstance(map));
+        }
+
+        @Test
+        public void replace() {
+            final var key = UUID.randomUUID();
+            final var value = UUID.randomUUID();
+            final var map0 = PersistentMap.<UUID, UUID>empty().plus(key, UUID.randomUUID());
+
+            assertInvariants(map0.plus(key, value), Map.of(key, value));
+        }
+
+        @Test
+        public void nullKey() {
+            final PersistentMap<UUID, UUID> map = PersistentMap.empty();
+            final var value = UUID.randomUUID();
+
+            assertThrows(NullPointerException.class, () -> map.plus(null, value));
+        }
+
+        @Test
+        public void collisions() {
+            final var expected = new HashMap<Key, Integer>();
+            var map = PersistentMap.<Key, Integer>empty();
+            for (int i = 0; i < 8; ++i) {
+                final var key = new Key(42, i);
+                map = map.plus(key, i);
+                expected.put(key, i);
+            }
+            map = map.plus(new Key(43, 0), -1);
+            expected.put(new Key(43, 0), -1);
+
+            assertInvariants(map, expected);
+            for (int i = 0; i < 8; ++i) {
+                final var key = new Key(42, i);
+                map = map.minus(key);
+                expected.remove(key);
+                assertInvariants(map, expected);
+            }
+        }
+    }
+
+    @Nested
+    public class RandomChanges {
+
+        @Test
+        public void matchesHashMap() {
+            final var random = new Random(1L);
+            final var keys = new UUID[200];
+            for (int k = 0; k < keys.length; ++k) {
+                keys[k] = UUID.randomUUID();
+            }
+            final var expected = new HashMap<UUID, Integer>();
+            var map = PersistentMap.<UUID, Integer>empty();
+            for (int i = 0; i < 5000; ++i) {
+                final var key = keys[random.nextInt(keys.length)];
+                final var previous = map;
+                final var previousExpected = Map.copyOf(expected);
+                if (random.nextInt(3) == 0) {
+                    map = map.minus(key);
+                    expected.remove(key);
+                } else {
+                    map = map.plus(key, i);
+                    expected.put(key, i);
+                }
+                assertThat("previous unchanged", previous, is(previousExpected));
+                assertThat(map.size(), is(expected.size()));
+            }
+            assertInvariants(map, expected);
+        }
+    }
+
+    @Nested
+    public class ForEachDifference {
+
+        private static <KEY, VALUE> void test(final PersistentMap<KEY, VALUE> map,
+                                              final PersistentMap<KEY, VALUE> that) {
+            final var added = new HashMap<KEY, VALUE>();
+            final var removed = new HashSet<KEY>();
+
+            map.forEachDifference(that, (key, value) -> assertThat(added.put(key, value), nullValue()),
+                    key -> assertThat(removed.add(key), is(true)));
+
+            final var expectedAdded = new HashMap<>(map);
+            expectedAdded.entrySet().removeAll(that.entrySet());
+            final var expectedRemoved = new HashSet<>(that.keySet());
+            expectedRemoved.removeAll(map.keySet());
+            assertThat("added", added, is(expectedAdded));
+            assertThat("removed", removed, is(expectedRemoved));
+        }
+
+        @Test
+        public void same() {
+            final var map = PersistentMap.<Integer, Integer>empty().plus(1, 1).plus(2, 2);
+
+            test(map, map);
+        }
+
+        @Test
+        public void unshared() {
+            var map = PersistentMap.<Integer, Integer>empty();
+            var that = PersistentMap.<Integer, Integer>empty();
+            for (int i = 0; i < 100; ++i) {
+                map = map.plus(i, i);
+                that = that.plus(99 - i, i % 3 == 0 ? -i : 99 - i);
+            }
+
+            test(map, that);
+            test(that, map);
+        }
+
+        @Test
+        public void collisions() {
+            var map = PersistentMap.<Key, Integer>empty();
+            for (int i = 0; i < 4; ++i) {
+                map = map.plus(new Key(42, i), i);
+            }
+            final var that = map.minus(new Key(42, 1)).plus(new Key(42, 2), -2).plus(new Key(42, 9), 9);
+
+            test(map, that);
+            test(that, map);
+        }
+
+        @Test
+        public void randomChanges() {
+            final var random = new Random(2L);
+            final var keys = new UUID[500];
+            for (int k = 0; k < keys.length; ++k) {
+                keys[k] = UUID.randomUUID();
+            }
+            var map = PersistentMap.<UUID, Integer>empty();
+            for (int i = 0; i < 2000; ++i) {
+                final var previous = map;
+                for (int c = random.nextInt(4); 0 <= c; --c) {
+                    final var key = keys[random.nextInt(keys.length)];
+                    map = random.nextInt(3) == 0 ? map.minus(key) : map.plus(key, random.nextInt(4));
+                }
+                test(map, previous);
+                test(previous, map);
+            }
+        }
+    }
+
+    @Nested
+    public class CopyOf {
+
+        @Test
+        public void map() {
+            final Map<UUID, UUID> source = Map.of(UUID.randomUUID(), UUID.randomUUID(),
+                    UUID.randomUUID(), UUID.randomUUID());
+
+            assertInvariants(PersistentMap.copyOf(source), source);
+        }
+
+        @Test
+        public void persistent() {
+            final var map = PersistentMap.<UUID, UUID>empty().plus(UUID.randomUUID(), UUID.randomUUID());
+
+            assertThat(PersistentMap.copyOf(map), sameInstance(map));
+        }
+
+        @Test
+        public void unmodifiable() {
+            final var map = PersistentMap.<UUID, UUID>empty().plus(UUID.randomUUID(), UUID.randomUUID());
+            final var key = UUID.randomUUID();
+            final var value = UUID.randomUUID();
+
+            assertThrows(UnsupportedOperationException.class, () -> map.put(key, value));
+        }
+    }
+}
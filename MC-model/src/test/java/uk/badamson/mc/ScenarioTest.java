@@ -47,6 +47,25 @@ public class ScenarioTest {
         }
     }
 
+    @Nested
+    public class IndexOfCharacter {
+
+        @Test
+        public void first() {
+            assertEquals(0, new Scenario(TITLE_A, DESCRIPTION_A, CHARACTERS_B).indexOfCharacter(ID_A));
+        }
+
+        @Test
+        public void second() {
+            assertEquals(1, new Scenario(TITLE_A, DESCRIPTION_A, CHARACTERS_B).indexOfCharacter(ID_B));
+        }
+
+        @Test
+        public void absent() {
+            assertEquals(-1, new Scenario(TITLE_A, DESCRIPTION_A, CHARACTERS_A).indexOfCharacter(ID_B));
+        }
+    }
+
     private static final UUID ID_A = UUID.randomUUID();
     private static final UUID ID_B = UUID.randomUUID();
     private static final String TITLE_A = "Beach Assault";